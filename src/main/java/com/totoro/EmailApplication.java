@@ -3,13 +3,14 @@ package com.totoro;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
-import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.EnableAsync;
-
-import java.util.concurrent.Executor;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 @SpringBootApplication
 @EnableAsync
+@EnableScheduling
 public class EmailApplication {
 
     /**
@@ -22,13 +23,16 @@ public class EmailApplication {
     }
 
     /**
-     * Task executor that is used to run 'Future - @Async' method
+     * Task scheduler that is used to run '@Scheduled' methods. It has more than one thread so a slow job (e.g. probing a provider that is down) doesn't delay the others
      *
-     * @return Executor
+     * @return Task scheduler
      */
     @Bean
-    public Executor taskExecutor() {
-        return new SimpleAsyncTaskExecutor();
+    public TaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(4);
+        scheduler.setThreadNamePrefix("scheduler-");
+        return scheduler;
     }
 
 }
@@ -1,31 +1,280 @@
 package com.totoro.api;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.totoro.dto.EmailResponseDto;
+import com.totoro.dto.EmailStatus;
 import com.totoro.dto.MailMessageDto;
+import com.totoro.exceptions.BadRequestException;
+import com.totoro.exceptions.ServiceUnavailableException;
+import com.totoro.idempotency.IdempotencyKeys;
+import com.totoro.quota.AdmissionControl;
 import com.totoro.services.EmailService;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 @RestController
 public class EmailResource {
 
+    /**
+     * Newline delimited JSON, one email per line
+     */
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    /**
+     * The client doesn't want to wait for the provider (RFC 7240)
+     */
+    public static final String PREFER_RESPOND_ASYNC = "respond-async";
+    /**
+     * A key chosen by the client, an email sent again with the same key gets the response of the first one instead of being sent twice
+     */
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    /**
+     * Set on a response that has been returned for an idempotency key that had already been used
+     */
+    public static final String IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
+
     private final EmailService emailService;
+    private final AdmissionControl admissionControl;
+    private final IdempotencyKeys idempotencyKeys;
+    private final ObjectMapper objectMapper;
+    private final long sendTimeout;
+    private final boolean spoolEnabled;
+    private final String clientHeader;
+    private final long dispatchRetryAfter;
+    private final int maxBatchSize;
 
     @Autowired
-    public EmailResource(EmailService emailService) {
+    public EmailResource(EmailService emailService, AdmissionControl admissionControl, IdempotencyKeys idempotencyKeys, ObjectMapper objectMapper,
+                         @Value("${email.request.send-timeout}") long sendTimeout, @Value("${email.spool.enabled}") boolean spoolEnabled,
+                         @Value("${email.quota.client-header}") String clientHeader, @Value("${email.dispatch.retry-after}") long dispatchRetryAfter,
+                         @Value("${email.batch.max-size}") int maxBatchSize) {
         this.emailService = emailService;
+        this.admissionControl = admissionControl;
+        this.idempotencyKeys = idempotencyKeys;
+        this.objectMapper = objectMapper;
+        this.sendTimeout = sendTimeout;
+        this.spoolEnabled = spoolEnabled;
+        this.clientHeader = clientHeader;
+        this.dispatchRetryAfter = dispatchRetryAfter;
+        this.maxBatchSize = maxBatchSize;
     }
 
+    /**
+     * Sends an email. The email is sent on one of the dispatch threads and the container thread is released straight away, the response is written
+     * once the provider has answered.
+     * <p>
+     * With 'Prefer: respond-async' the email is written into the spool instead and we return 202 with a tracking id as soon as it's on disk. The same happens
+     * when every dispatch thread is busy, or we return 503 if the spool is disabled.
+     * <p>
+     * With an 'Idempotency-Key' the response is remembered, the same email sent again with the same key gets that response (once the first one is done if
+     * it's still being sent) and isn't sent again
+     *
+     * @param mailMessage    Email to be sent
+     * @param prefer         Prefer header
+     * @param idempotencyKey Idempotency-Key header
+     * @param request        Current request
+     * @return Deferred response
+     * @throws Exception If the email is invalid
+     */
     @RequestMapping(value = "/api/emails", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity sendEmail(@Valid @RequestBody MailMessageDto mailMessage) throws Exception {
-        return new ResponseEntity<>(emailService.sendEmail(mailMessage), HttpStatus.CREATED);
+    public DeferredResult<ResponseEntity> sendEmail(@Valid @RequestBody MailMessageDto mailMessage,
+                                                    @RequestHeader(value = "Prefer", required = false) String prefer,
+                                                    @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey,
+                                                    HttpServletRequest request) throws Exception {
+        final String client = clientOf(request);
+        final String key = StringUtils.trimToNull(idempotencyKey);
+        if (key != null) {
+            ListenableFuture<ResponseEntity<EmailResponseDto>> first = idempotencyKeys.begin(client, key, mailMessage);
+            if (first != null) {
+                return replay(first);
+            }
+        }
+
+        try {
+            admissionControl.admit(client, mailMessage);
+
+            final DeferredResult<ResponseEntity> result = new DeferredResult<>(sendTimeout);
+            if (spoolEnabled && StringUtils.containsIgnoreCase(prefer, PREFER_RESPOND_ASYNC)) {
+                ResponseEntity<EmailResponseDto> accepted = accept(client, key, mailMessage);
+                HttpHeaders headers = new HttpHeaders();
+                headers.set("Preference-Applied", PREFER_RESPOND_ASYNC);
+                result.setResult(new ResponseEntity<>(accepted.getBody(), headers, HttpStatus.ACCEPTED));
+
+                return result;
+            }
+
+            ListenableFuture<EmailResponseDto> sending;
+            try {
+                sending = emailService.sendEmailAsync(mailMessage);
+            } catch (TaskRejectedException e) {
+                // Every dispatch thread is busy, the email is spooled or refused rather than sent on this thread
+                if (!spoolEnabled) {
+                    throw new ServiceUnavailableException("We are too busy to send your email right now, please try again later", dispatchRetryAfter);
+                }
+                result.setResult(accept(client, key, mailMessage));
+
+                return result;
+            }
+
+            result.onTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    // The email is still being sent and ends up in either the history or the queue table, so we don't want the client to send it again
+                    result.setResult(stillBeingSent());
+                }
+            });
+
+            sending.addCallback(new ListenableFutureCallback<EmailResponseDto>() {
+                @Override
+                public void onSuccess(EmailResponseDto response) {
+                    ResponseEntity<EmailResponseDto> created = new ResponseEntity<>(response, HttpStatus.CREATED);
+                    if (key != null) {
+                        idempotencyKeys.complete(client, key, created);
+                    }
+                    result.setResult(created);
+                }
+
+                @Override
+                public void onFailure(Throwable ex) {
+                    // Goes to the same handler as the other @Async exceptions
+                    ExecutionException error = new ExecutionException(ex);
+                    if (key != null) {
+                        idempotencyKeys.abandon(client, key, error);
+                    }
+                    result.setErrorResult(error);
+                }
+            });
+
+            return result;
+        } catch (Exception e) {
+            if (key != null) {
+                idempotencyKeys.abandon(client, key, e);
+            }
+            throw e;
+        }
+    }
+
+    @RequestMapping(value = "/api/emails/batch", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity sendEmails(@RequestBody List<MailMessageDto> mailMessages, HttpServletRequest request) throws Exception {
+        emailService.checkBatchSize(mailMessages);
+        admissionControl.admit(clientOf(request), mailMessages);
+        return ResponseFactory.createResponse(emailService.sendEmails(mailMessages));
+    }
+
+    @RequestMapping(value = "/api/emails/batch", method = RequestMethod.POST, consumes = APPLICATION_NDJSON_VALUE)
+    public ResponseEntity sendEmails(InputStream body, HttpServletRequest request) throws Exception {
+        List<MailMessageDto> mailMessages = readMailMessages(body);
+        emailService.checkBatchSize(mailMessages);
+        admissionControl.admit(clientOf(request), mailMessages);
+        return ResponseFactory.createResponse(emailService.sendEmails(mailMessages));
+    }
+
+    /**
+     * @param first Response of the first request with the same idempotency key, it may still be in flight
+     * @return Deferred response that is the same as the first one or fails the same way
+     */
+    private DeferredResult<ResponseEntity> replay(ListenableFuture<ResponseEntity<EmailResponseDto>> first) {
+        final DeferredResult<ResponseEntity> result = new DeferredResult<>(sendTimeout);
+        result.onTimeout(new Runnable() {
+            @Override
+            public void run() {
+                result.setResult(stillBeingSent());
+            }
+        });
+
+        first.addCallback(new ListenableFutureCallback<ResponseEntity<EmailResponseDto>>() {
+            @Override
+            public void onSuccess(ResponseEntity<EmailResponseDto> response) {
+                HttpHeaders headers = new HttpHeaders();
+                headers.set(IDEMPOTENT_REPLAYED, "true");
+                result.setResult(new ResponseEntity<>(response.getBody(), headers, response.getStatusCode()));
+            }
+
+            @Override
+            public void onFailure(Throwable ex) {
+                result.setErrorResult(ex);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Writes the email into the spool
+     *
+     * @param client      API client
+     * @param key         Idempotency key, if any
+     * @param mailMessage Email to be sent
+     * @return 202 with the tracking id of the email
+     * @throws Exception If the email is invalid or cannot be spooled
+     */
+    private ResponseEntity<EmailResponseDto> accept(String client, String key, MailMessageDto mailMessage) throws Exception {
+        ResponseEntity<EmailResponseDto> accepted = new ResponseEntity<>(emailService.acceptEmail(mailMessage), HttpStatus.ACCEPTED);
+        if (key != null) {
+            idempotencyKeys.complete(client, key, accepted);
+        }
+
+        return accepted;
+    }
+
+    private static ResponseEntity<EmailResponseDto> stillBeingSent() {
+        return new ResponseEntity<>(new EmailResponseDto("Your email is still being sent", new Date().getTime(), EmailStatus.ACCEPTED), HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * @param request Current request
+     * @return The API client that has sent the request, its address when it hasn't identified itself
+     */
+    private String clientOf(HttpServletRequest request) {
+        String client = request.getHeader(clientHeader);
+
+        return client != null && !client.isEmpty() ? client : request.getRemoteAddr();
+    }
+
+    /**
+     * Reads the emails one line at a time straight from the request body. It stops as soon as there is one email too many, the rest of an oversized batch is
+     * never read
+     *
+     * @param body Request body
+     * @return List of emails, no more than 'email.batch.max-size' plus one
+     * @throws IOException If the body cannot be read
+     */
+    private List<MailMessageDto> readMailMessages(InputStream body) throws IOException {
+        List<MailMessageDto> mailMessages = new ArrayList<>();
+
+        try (MappingIterator<MailMessageDto> iterator = objectMapper.readerFor(MailMessageDto.class).readValues(body)) {
+            while (mailMessages.size() <= maxBatchSize && iterator.hasNextValue()) {
+                mailMessages.add(iterator.nextValue());
+            }
+        } catch (JsonProcessingException e) {
+            throw new BadRequestException(String.format("Email %d is not a valid json", mailMessages.size() + 1));
+        }
+
+        return mailMessages;
     }
 
 }
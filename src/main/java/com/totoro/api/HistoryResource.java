@@ -0,0 +1,34 @@
+package com.totoro.api;
+
+import com.totoro.dto.HistoryQueryDto;
+import com.totoro.services.HistoryService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Read api of the emails that have been sent
+ */
+@RestController
+public class HistoryResource {
+
+    private final HistoryService historyService;
+
+    @Autowired
+    public HistoryResource(HistoryService historyService) {
+        this.historyService = historyService;
+    }
+
+    /**
+     * @param query Filters from the query string, see {@link HistoryQueryDto}
+     * @return A page of sent emails, newest first
+     */
+    @RequestMapping(value = "/api/emails/history", method = RequestMethod.GET)
+    public ResponseEntity getHistory(@ModelAttribute HistoryQueryDto query) {
+        return ResponseFactory.createResponse(historyService.getHistory(query));
+    }
+
+}
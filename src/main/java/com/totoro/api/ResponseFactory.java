@@ -58,7 +58,10 @@ public class ResponseFactory {
      * @param <T> Type
      */
     private static class ListResponse<T> implements Response<T> {
+        @JsonProperty
         Collection<T> data;
+
+        @JsonProperty
         int total;
     }
 
@@ -0,0 +1,57 @@
+package com.totoro.api;
+
+import com.totoro.dto.TemplateDto;
+import com.totoro.services.TemplateService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.validation.Valid;
+
+/**
+ * Templates that an email can be sent with, see 'templateId' on the email
+ */
+@RestController
+public class TemplateResource {
+
+    private final TemplateService templateService;
+
+    @Autowired
+    public TemplateResource(TemplateService templateService) {
+        this.templateService = templateService;
+    }
+
+    @RequestMapping(value = "/api/templates", method = RequestMethod.GET)
+    public ResponseEntity getTemplates() {
+        return ResponseFactory.createResponse(templateService.getTemplates());
+    }
+
+    @RequestMapping(value = "/api/templates/{id}", method = RequestMethod.GET)
+    public ResponseEntity getTemplate(@PathVariable long id) {
+        return ResponseFactory.createResponse(templateService.getTemplate(id));
+    }
+
+    @RequestMapping(value = "/api/templates", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity createTemplate(@Valid @RequestBody TemplateDto template) {
+        return ResponseFactory.createResponse(templateService.createTemplate(template), HttpStatus.CREATED);
+    }
+
+    @RequestMapping(value = "/api/templates/{id}", method = RequestMethod.PUT, consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity updateTemplate(@PathVariable long id, @Valid @RequestBody TemplateDto template) {
+        return ResponseFactory.createResponse(templateService.updateTemplate(id, template));
+    }
+
+    @RequestMapping(value = "/api/templates/{id}", method = RequestMethod.DELETE)
+    public ResponseEntity deleteTemplate(@PathVariable long id) {
+        templateService.deleteTemplate(id);
+
+        return new ResponseEntity(HttpStatus.NO_CONTENT);
+    }
+
+}
@@ -0,0 +1,422 @@
+package com.totoro.archive;
+
+import com.totoro.dto.EmailHistoryDto;
+import com.totoro.dto.HistoryQueryDto;
+import com.totoro.services.RecipientValidator;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the history table down to the last few months. Every closed month older than that is moved out of the table into segment files on the local disk (see
+ * {@link HistorySegment}), so the cost of an insert and of the indexes depends on the recent traffic rather than on everything we have ever sent.
+ * <p>
+ * A month is archived a chunk of rows at a time: the chunk is written into its own segment (history-2017-11-0000000000000000042.seg.gz, the id is the first row
+ * of the chunk) and only once it's on disk are the rows and their recipients deleted from the tables. If the application goes down in between, the same chunk is
+ * archived again into the same segment. The bodies stay in the body table, other emails may still use them.
+ * <p>
+ * The archive is searched by the history api once the table has run out of emails, see {@link #search(HistoryQueryDto, int, Set)}. The segments are on the disk
+ * of the instance that has archived them so only one instance should have the archive enabled, it is off by default.
+ */
+@Component
+public class HistoryArchive implements PublicMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryArchive.class);
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".seg.gz";
+    private static final String SUMMARY_SUFFIX = ".idx";
+    private static final String SELECT_SQL = "select id, created_at, sender, reply_to, to_recipients, cc_recipients, bcc_recipients, subject, body_hash, type, " +
+            "provider, response_id, response_message, tracking_id from email_history where created_at >= ? and created_at < ? order by id";
+    private static final char DELIMITER = ';';
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final File directory;
+    private final int keepMonths;
+    private final int segmentRows;
+
+    private final AtomicLong archivedRows = new AtomicLong();
+    private final AtomicLong writtenSegments = new AtomicLong();
+    private final AtomicLong readSegments = new AtomicLong();
+    private final AtomicLong skippedSegments = new AtomicLong();
+
+    /**
+     * @param enabled     Whether the history is archived at all
+     * @param directory   Where the segments are
+     * @param keepMonths  How many months (the current one included) stay in the table
+     * @param segmentRows How many rows a segment has at most, a chunk is held in memory while its segment is written
+     */
+    @Autowired
+    public HistoryArchive(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                          @Value("${email.history.archive.enabled}") boolean enabled,
+                          @Value("${email.history.archive.directory}") String directory,
+                          @Value("${email.history.archive.keep-months}") int keepMonths,
+                          @Value("${email.history.archive.segment-rows}") int segmentRows) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.directory = new File(directory);
+        this.keepMonths = Math.max(keepMonths, 1);
+        this.segmentRows = segmentRows;
+    }
+
+    @Scheduled(fixedDelayString = "${email.history.archive.interval}", initialDelayString = "${email.history.archive.interval}")
+    public void archive() {
+        if (!enabled) {
+            return;
+        }
+
+        LocalDateTime cutoff = new LocalDateTime().withDayOfMonth(1).withMillisOfDay(0).minusMonths(keepMonths - 1);
+        try {
+            int archived = archiveBefore(cutoff);
+            if (archived > 0) {
+                logger.info("Archived {} emails sent before {}", archived, cutoff);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not archive the email history", e);
+        }
+    }
+
+    /**
+     * Moves every email that has been sent before the cutoff into the archive, oldest month first
+     *
+     * @param cutoff Start of the oldest month that stays in the table
+     * @return Number of emails that have been archived
+     * @throws IOException If a segment cannot be written
+     */
+    int archiveBefore(LocalDateTime cutoff) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the archive directory " + directory);
+        }
+
+        int archived = 0;
+        Timestamp cutoffTimestamp = new Timestamp(cutoff.toDateTime().getMillis());
+        while (true) {
+            Timestamp oldest = jdbcTemplate.queryForObject("select min(created_at) from email_history where created_at < ?", Timestamp.class, cutoffTimestamp);
+            if (oldest == null) {
+                return archived;
+            }
+
+            LocalDateTime month = LocalDateTime.fromDateFields(oldest).withDayOfMonth(1).withMillisOfDay(0);
+            List<HistorySegment.Row> rows = selectChunk(month, month.plusMonths(1));
+            File segment = segmentFile(month, rows.get(0).getId());
+            HistorySegment.write(segment, rows);
+            SegmentSummary.of(rows).write(summaryFile(segment));
+            writtenSegments.incrementAndGet();
+            delete(rows);
+
+            archived += rows.size();
+            archivedRows.addAndGet(rows.size());
+        }
+    }
+
+    /**
+     * Whether a search can find anything in the archive. Only the months before the oldest one that is still in the table have been archived, so a query that
+     * starts after that month doesn't have to look at the segments at all
+     *
+     * @param query Filters and cursor
+     * @return Whether the archive is enabled and the query reaches back into the archived months
+     */
+    public boolean reaches(HistoryQueryDto query) {
+        if (!enabled) {
+            return false;
+        } else if (query.getSince() == null) {
+            return true;
+        }
+
+        Timestamp oldest = jdbcTemplate.queryForObject("select min(created_at) from email_history", Timestamp.class);
+        if (oldest == null) {
+            return true;
+        }
+
+        // The oldest month may be in the middle of being archived
+        LocalDateTime end = LocalDateTime.fromDateFields(oldest).withDayOfMonth(1).withMillisOfDay(0).plusMonths(1);
+        return query.getSince() < end.toDateTime().getMillis();
+    }
+
+    /**
+     * Searches the archive the same way as the history table, newest month first. It stops after the month in which it has found enough emails. A segment
+     * whose summary rules out the filters and the cursor of the query is skipped without reading it, see {@link SegmentSummary}
+     *
+     * @param query   Filters and cursor, the recipient has to be canonical
+     * @param limit   How many emails to return
+     * @param exclude Ids that have already been found in the table, a chunk is in both for a moment while it's being archived
+     * @return Emails newest first
+     */
+    public List<EmailHistoryDto> search(HistoryQueryDto query, int limit, Set<Long> exclude) {
+        if (!enabled || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<HistorySegment.Row> found = new ArrayList<>();
+        for (Map.Entry<LocalDateTime, List<File>> month : segmentsByMonth().entrySet()) {
+            if (!overlaps(query, month.getKey())) {
+                continue;
+            }
+
+            for (File file : month.getValue()) {
+                List<HistorySegment.Row> rows;
+                try {
+                    SegmentSummary summary = readSummary(file);
+                    if (summary != null && !summary.mayMatch(query)) {
+                        skippedSegments.incrementAndGet();
+                        continue;
+                    }
+
+                    rows = HistorySegment.read(file);
+                    if (summary == null) {
+                        writeSummary(file, rows);
+                    }
+                } catch (IOException e) {
+                    logger.error("Could not read the archived history in " + file, e);
+                    continue;
+                }
+                readSegments.incrementAndGet();
+
+                for (HistorySegment.Row row : rows) {
+                    if (!exclude.contains(row.getId()) && matches(query, row)) {
+                        found.add(row);
+                    }
+                }
+            }
+
+            // Every month that is left is older than the emails that have been found
+            if (found.size() >= limit) {
+                break;
+            }
+        }
+
+        Collections.sort(found, new Comparator<HistorySegment.Row>() {
+            @Override
+            public int compare(HistorySegment.Row a, HistorySegment.Row b) {
+                int byDate = Long.compare(b.getCreatedAt(), a.getCreatedAt());
+                return byDate != 0 ? byDate : Long.compare(b.getId(), a.getId());
+            }
+        });
+
+        List<EmailHistoryDto> emails = new ArrayList<>(Math.min(limit, found.size()));
+        for (HistorySegment.Row row : found.subList(0, Math.min(limit, found.size()))) {
+            emails.add(new EmailHistoryDto(row.getId(), new LocalDateTime(row.getCreatedAt()), row.get(HistorySegment.Row.SENDER),
+                    row.get(HistorySegment.Row.REPLY_TO), row.get(HistorySegment.Row.TO), row.get(HistorySegment.Row.CC), row.get(HistorySegment.Row.BCC),
+                    row.get(HistorySegment.Row.SUBJECT), row.get(HistorySegment.Row.TYPE), row.get(HistorySegment.Row.PROVIDER),
+                    row.get(HistorySegment.Row.RESPONSE_ID), row.get(HistorySegment.Row.RESPONSE_MESSAGE), row.get(HistorySegment.Row.TRACKING_ID)));
+        }
+
+        return emails;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("history.archive.rows", archivedRows.get()));
+        metrics.add(new Metric<>("history.archive.segments.written", writtenSegments.get()));
+        metrics.add(new Metric<>("history.archive.segments.read", readSegments.get()));
+        metrics.add(new Metric<>("history.archive.segments.skipped", skippedSegments.get()));
+
+        return metrics;
+    }
+
+    private List<HistorySegment.Row> selectChunk(LocalDateTime from, LocalDateTime to) {
+        final Timestamp fromTimestamp = new Timestamp(from.toDateTime().getMillis());
+        final Timestamp toTimestamp = new Timestamp(to.toDateTime().getMillis());
+
+        return jdbcTemplate.query(new PreparedStatementCreator() {
+            @Override
+            public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                PreparedStatement statement = connection.prepareStatement(SELECT_SQL);
+                statement.setTimestamp(1, fromTimestamp);
+                statement.setTimestamp(2, toTimestamp);
+                statement.setMaxRows(segmentRows);
+                return statement;
+            }
+        }, new RowMapper<HistorySegment.Row>() {
+            @Override
+            public HistorySegment.Row mapRow(ResultSet resultSet, int rowNum) throws SQLException {
+                String[] strings = new String[HistorySegment.Row.STRING_COLUMNS];
+                for (int i = 0; i < strings.length; i++) {
+                    strings[i] = resultSet.getString(i + 3);
+                }
+
+                return new HistorySegment.Row(resultSet.getLong(1), resultSet.getTimestamp(2).getTime(), strings);
+            }
+        });
+    }
+
+    private void delete(final List<HistorySegment.Row> rows) {
+        final BatchPreparedStatementSetter ids = new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement statement, int i) throws SQLException {
+                statement.setLong(1, rows.get(i).getId());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return rows.size();
+            }
+        };
+
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                jdbcTemplate.batchUpdate("delete from email_recipient where history_id = ?", ids);
+                jdbcTemplate.batchUpdate("delete from email_history where id = ?", ids);
+            }
+        });
+    }
+
+    private File segmentFile(LocalDateTime month, long firstId) {
+        return new File(directory, String.format(Locale.ROOT, "%s%04d-%02d-%019d%s", SEGMENT_PREFIX, month.getYear(), month.getMonthOfYear(), firstId,
+                SEGMENT_SUFFIX));
+    }
+
+    private File summaryFile(File segment) {
+        String name = segment.getName();
+        return new File(segment.getParentFile(), name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + SUMMARY_SUFFIX);
+    }
+
+    /**
+     * @return Summary of the segment or null when it has none, a segment that has been archived before the summaries or whose summary has not made it to disk
+     */
+    private SegmentSummary readSummary(File segment) {
+        File file = summaryFile(segment);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            return SegmentSummary.read(file);
+        } catch (IOException e) {
+            logger.warn("Could not read the summary " + file + ", it will be written again", e);
+            return null;
+        }
+    }
+
+    private void writeSummary(File segment, List<HistorySegment.Row> rows) {
+        try {
+            SegmentSummary.of(rows).write(summaryFile(segment));
+        } catch (IOException e) {
+            logger.warn("Could not write the summary of " + segment, e);
+        }
+    }
+
+    /**
+     * @return Segments by their month, newest month first
+     */
+    private Map<LocalDateTime, List<File>> segmentsByMonth() {
+        Map<LocalDateTime, List<File>> months = new TreeMap<>(Collections.reverseOrder());
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return months;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+
+            // history-yyyy-MM-...
+            int year = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), SEGMENT_PREFIX.length() + 4));
+            int monthOfYear = Integer.parseInt(name.substring(SEGMENT_PREFIX.length() + 5, SEGMENT_PREFIX.length() + 7));
+            LocalDateTime month = new LocalDateTime(year, monthOfYear, 1, 0, 0);
+            List<File> segments = months.get(month);
+            if (segments == null) {
+                segments = new ArrayList<>();
+                months.put(month, segments);
+            }
+            segments.add(file);
+        }
+
+        return months;
+    }
+
+    /**
+     * @return Whether the month can have emails within the date range and before the cursor of the query
+     */
+    private boolean overlaps(HistoryQueryDto query, LocalDateTime month) {
+        long start = month.toDateTime().getMillis();
+        long end = month.plusMonths(1).toDateTime().getMillis();
+
+        return (query.getSince() == null || end > query.getSince())
+                && (query.getUntil() == null || start < query.getUntil())
+                && (query.getBefore() == null || start <= query.getBefore());
+    }
+
+    private boolean matches(HistoryQueryDto query, HistorySegment.Row row) {
+        if (query.getProvider() != null && !query.getProvider().equals(row.get(HistorySegment.Row.PROVIDER))) {
+            return false;
+        }
+        if (query.getSender() != null && !query.getSender().equals(row.get(HistorySegment.Row.SENDER))) {
+            return false;
+        }
+        if (query.getResponseId() != null && !query.getResponseId().equals(row.get(HistorySegment.Row.RESPONSE_ID))) {
+            return false;
+        }
+        if (query.getSince() != null && row.getCreatedAt() < query.getSince()) {
+            return false;
+        }
+        if (query.getUntil() != null && row.getCreatedAt() >= query.getUntil()) {
+            return false;
+        }
+        if (query.getBefore() != null) {
+            long before = query.getBefore();
+            boolean seekPast = query.getBeforeId() != null && row.getCreatedAt() == before && row.getId() < query.getBeforeId();
+            if (row.getCreatedAt() >= before && !seekPast) {
+                return false;
+            }
+        }
+
+        return query.getRecipient() == null || hasRecipient(row, query.getRecipient());
+    }
+
+    private boolean hasRecipient(HistorySegment.Row row, String recipient) {
+        for (int column : new int[]{HistorySegment.Row.TO, HistorySegment.Row.CC, HistorySegment.Row.BCC}) {
+            String[] addresses = StringUtils.split(row.get(column), DELIMITER);
+            if (addresses == null) {
+                continue;
+            }
+            for (String address : addresses) {
+                if (recipient.equals(RecipientValidator.canonicalize(address))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.totoro.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzipped file of archived history rows. The rows are written column by column (all the ids, then all the dates, then all the senders...) rather than row by
+ * row, so the values of a column that repeat from one row to the next (sender, provider, subject, body hash) sit next to each other and compress really well.
+ * <p>
+ * The file starts with a magic number, the format version and the number of rows. The ids and the dates are written as the difference from the previous row,
+ * a string as its length in UTF-8 bytes (-1 for null) followed by the bytes.
+ */
+public final class HistorySegment {
+
+    private static final int MAGIC = 0x45485347;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private HistorySegment() {
+    }
+
+    /**
+     * Writes the rows into a temporary file first and moves it over the segment once it's on disk, so a segment is either complete or not there at all
+     *
+     * @param file Segment file
+     * @param rows Rows of the segment
+     * @throws IOException If the segment cannot be written
+     */
+    public static void write(File file, List<Row> rows) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            GZIPOutputStream gzip = new GZIPOutputStream(fileOut, BUFFER_SIZE);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gzip, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows.size());
+
+            long previous = 0;
+            for (Row row : rows) {
+                out.writeLong(row.id - previous);
+                previous = row.id;
+            }
+            previous = 0;
+            for (Row row : rows) {
+                out.writeLong(row.createdAt - previous);
+                previous = row.createdAt;
+            }
+            for (int column = 0; column < Row.STRING_COLUMNS; column++) {
+                for (Row row : rows) {
+                    writeString(out, row.strings[column]);
+                }
+            }
+
+            // Finishes the gzip stream without closing the file, it still has to be synced
+            out.flush();
+            gzip.finish();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file Segment file
+     * @return Rows of the segment in the order they have been written
+     * @throws IOException If the segment cannot be read
+     */
+    public static List<Row> read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a history segment");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has an unknown version " + version);
+            }
+
+            int size = in.readInt();
+            List<Row> rows = new ArrayList<>(size);
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                Row row = new Row();
+                row.id = previous + in.readLong();
+                previous = row.id;
+                rows.add(row);
+            }
+            previous = 0;
+            for (Row row : rows) {
+                row.createdAt = previous + in.readLong();
+                previous = row.createdAt;
+            }
+            for (int column = 0; column < Row.STRING_COLUMNS; column++) {
+                for (Row row : rows) {
+                    row.strings[column] = readString(in);
+                }
+            }
+
+            return rows;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An archived history row, the recipients are joined the same way as in the history table and the text is the hash of its body
+     */
+    public static final class Row {
+        public static final int SENDER = 0;
+        public static final int REPLY_TO = 1;
+        public static final int TO = 2;
+        public static final int CC = 3;
+        public static final int BCC = 4;
+        public static final int SUBJECT = 5;
+        public static final int BODY_HASH = 6;
+        public static final int TYPE = 7;
+        public static final int PROVIDER = 8;
+        public static final int RESPONSE_ID = 9;
+        public static final int RESPONSE_MESSAGE = 10;
+        public static final int TRACKING_ID = 11;
+        static final int STRING_COLUMNS = 12;
+
+        private long id;
+        private long createdAt;
+        private final String[] strings = new String[STRING_COLUMNS];
+
+        private Row() {
+        }
+
+        /**
+         * @param id        History id
+         * @param createdAt Epoch millis
+         * @param strings   The other columns, in the order of the constants above
+         */
+        public Row(long id, long createdAt, String... strings) {
+            if (strings.length != STRING_COLUMNS) {
+                throw new IllegalArgumentException("A history row has " + STRING_COLUMNS + " string columns");
+            }
+            this.id = id;
+            this.createdAt = createdAt;
+            System.arraycopy(strings, 0, this.strings, 0, STRING_COLUMNS);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        /**
+         * @param column One of the constants above
+         * @return Value of the column
+         */
+        public String get(int column) {
+            return strings[column];
+        }
+    }
+
+}
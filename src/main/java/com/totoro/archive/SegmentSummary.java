@@ -0,0 +1,205 @@
+package com.totoro.archive;
+
+import com.totoro.dto.HistoryQueryDto;
+import com.totoro.services.RecipientValidator;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What a search has to know about a segment to skip it without reading it: the dates of its oldest and newest rows and a bloom filter of its senders,
+ * providers, response ids and canonical recipients. It's written next to its segment (history-2017-11-0000000000000000042.idx) and is a lot smaller, 10 bits
+ * per value.
+ * <p>
+ * The filter can say that a value is in the segment when it isn't (about 1 in 100), never the other way around, so a segment it lets through is still
+ * filtered row by row.
+ */
+final class SegmentSummary {
+
+    private static final int MAGIC = 0x45485349;
+    /**
+     * Version 1 had no recipients, such a summary is written again the next time its segment is read
+     */
+    private static final int VERSION = 2;
+    private static final int BITS_PER_VALUE = 10;
+    private static final int HASHES = 7;
+    private static final int[] COLUMNS = {HistorySegment.Row.SENDER, HistorySegment.Row.PROVIDER, HistorySegment.Row.RESPONSE_ID};
+    private static final int[] RECIPIENT_COLUMNS = {HistorySegment.Row.TO, HistorySegment.Row.CC, HistorySegment.Row.BCC};
+    /**
+     * A search doesn't care about the role of a recipient, so the recipients of every role are added under the same key
+     */
+    private static final int RECIPIENT = HistorySegment.Row.TO;
+    private static final char DELIMITER = ';';
+
+    private final long minCreatedAt;
+    private final long maxCreatedAt;
+    private final long[] bits;
+
+    private SegmentSummary(long minCreatedAt, long maxCreatedAt, long[] bits) {
+        this.minCreatedAt = minCreatedAt;
+        this.maxCreatedAt = maxCreatedAt;
+        this.bits = bits;
+    }
+
+    /**
+     * @param rows Rows of the segment
+     * @return Summary of the rows
+     */
+    static SegmentSummary of(List<HistorySegment.Row> rows) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        Set<String> keys = new HashSet<>();
+        for (HistorySegment.Row row : rows) {
+            min = Math.min(min, row.getCreatedAt());
+            max = Math.max(max, row.getCreatedAt());
+            for (int column : COLUMNS) {
+                if (row.get(column) != null) {
+                    keys.add(key(column, row.get(column)));
+                }
+            }
+            for (int column : RECIPIENT_COLUMNS) {
+                String[] addresses = StringUtils.split(row.get(column), DELIMITER);
+                if (addresses == null) {
+                    continue;
+                }
+                for (String address : addresses) {
+                    keys.add(key(RECIPIENT, RecipientValidator.canonicalize(address)));
+                }
+            }
+        }
+
+        SegmentSummary summary = new SegmentSummary(min, max, new long[Math.max(1, (keys.size() * BITS_PER_VALUE + 63) / 64)]);
+        for (String key : keys) {
+            summary.add(key);
+        }
+
+        return summary;
+    }
+
+    /**
+     * @param query Filters and cursor of a search, the recipient has to be canonical
+     * @return False when no row of the segment can match the query
+     */
+    boolean mayMatch(HistoryQueryDto query) {
+        if (query.getSince() != null && maxCreatedAt < query.getSince()) {
+            return false;
+        }
+        if (query.getUntil() != null && minCreatedAt >= query.getUntil()) {
+            return false;
+        }
+        if (query.getBefore() != null && minCreatedAt > query.getBefore()) {
+            return false;
+        }
+
+        return mayContain(HistorySegment.Row.SENDER, query.getSender())
+                && mayContain(HistorySegment.Row.PROVIDER, query.getProvider())
+                && mayContain(HistorySegment.Row.RESPONSE_ID, query.getResponseId())
+                && mayContain(RECIPIENT, query.getRecipient());
+    }
+
+    /**
+     * Writes the summary into a temporary file first and moves it over the old one, like the segment itself
+     *
+     * @param file Summary file
+     * @throws IOException If the summary cannot be written
+     */
+    void write(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(minCreatedAt);
+            out.writeLong(maxCreatedAt);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file Summary file
+     * @return The summary
+     * @throws IOException If the summary cannot be read
+     */
+    static SegmentSummary read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a segment summary");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has an unknown version " + version);
+            }
+
+            long min = in.readLong();
+            long max = in.readLong();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+
+            return new SegmentSummary(min, max, bits);
+        }
+    }
+
+    private boolean mayContain(int column, String value) {
+        if (value == null) {
+            return true;
+        }
+
+        long[] hashes = hashes(key(column, value));
+        long size = bits.length * 64L;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((hashes[0] + i * hashes[1]) & Long.MAX_VALUE) % size;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void add(String key) {
+        long[] hashes = hashes(key);
+        long size = bits.length * 64L;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((hashes[0] + i * hashes[1]) & Long.MAX_VALUE) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static String key(int column, String value) {
+        return column + ":" + value;
+    }
+
+    /**
+     * @return The two halves of the md5 of the key, every bit of the filter is derived from them
+     */
+    private static long[] hashes(String key) {
+        ByteBuffer md5 = ByteBuffer.wrap(DigestUtils.md5(key.getBytes(StandardCharsets.UTF_8)));
+
+        return new long[]{md5.getLong(), md5.getLong()};
+    }
+
+}
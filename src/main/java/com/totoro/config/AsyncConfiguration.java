@@ -0,0 +1,58 @@
+package com.totoro.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Thread pools used by the '@Async' methods and by the email dispatching. Each of them is bounded and has its own pool so that one cannot starve the other,
+ * e.g. a slow queue table doesn't hold up the writes to the history table
+ */
+@Configuration
+public class AsyncConfiguration {
+
+    /**
+     * Task executor that is used to save sent emails into the history table
+     *
+     * @param corePoolSize  Number of threads that are kept in the pool
+     * @param maxPoolSize   Number of threads when the queue is full
+     * @param queueCapacity Number of emails that can wait for a thread
+     * @return Executor
+     */
+    @Bean
+    public InstrumentedTaskExecutor historyExecutor(@Value("${email.async.history.core-pool-size}") int corePoolSize,
+                                                    @Value("${email.async.history.max-pool-size}") int maxPoolSize,
+                                                    @Value("${email.async.history.queue-capacity}") int queueCapacity) {
+        return new InstrumentedTaskExecutor("history", corePoolSize, maxPoolSize, queueCapacity);
+    }
+
+    /**
+     * Task executor that is used to save emails that couldn't be sent into the queue table
+     *
+     * @param corePoolSize  Number of threads that are kept in the pool
+     * @param maxPoolSize   Number of threads when the queue is full
+     * @param queueCapacity Number of emails that can wait for a thread
+     * @return Executor
+     */
+    @Bean
+    public InstrumentedTaskExecutor queueExecutor(@Value("${email.async.queue.core-pool-size}") int corePoolSize,
+                                                  @Value("${email.async.queue.max-pool-size}") int maxPoolSize,
+                                                  @Value("${email.async.queue.queue-capacity}") int queueCapacity) {
+        return new InstrumentedTaskExecutor("queue", corePoolSize, maxPoolSize, queueCapacity);
+    }
+
+    /**
+     * Task executor that is used to send emails to the providers concurrently, e.g. the emails of a batch request. A task it cannot take is refused rather than
+     * run by the caller, which would hold a request thread for a whole round trip to the provider
+     *
+     * @param poolSize      Number of threads
+     * @param queueCapacity Number of emails that can wait for a thread
+     * @return Executor
+     */
+    @Bean
+    public InstrumentedTaskExecutor mailDispatchExecutor(@Value("${email.dispatch.pool-size}") int poolSize,
+                                                         @Value("${email.dispatch.queue-capacity}") int queueCapacity) {
+        return new InstrumentedTaskExecutor("mail-dispatch", poolSize, poolSize, queueCapacity, false);
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.totoro.config;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Publishes the gauges of every {@link InstrumentedTaskExecutor} to the '/metrics' endpoint
+ */
+@Component
+public class AsyncExecutorMetrics implements PublicMetrics {
+
+    private final List<InstrumentedTaskExecutor> executors;
+
+    @Autowired
+    public AsyncExecutorMetrics(List<InstrumentedTaskExecutor> executors) {
+        this.executors = executors;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        for (InstrumentedTaskExecutor executor : executors) {
+            metrics.addAll(executor.metrics());
+        }
+
+        return metrics;
+    }
+
+}
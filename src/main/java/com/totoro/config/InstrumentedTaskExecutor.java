@@ -0,0 +1,80 @@
+package com.totoro.config;
+
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool that keeps track of the tasks it couldn't take. When every thread is busy and the queue is full the caller either runs the task itself,
+ * this slows the caller down instead of failing the task or piling up threads, or gets a {@link org.springframework.core.task.TaskRejectedException} and
+ * decides what to do with the task.
+ *
+ * @see AsyncExecutorMetrics
+ */
+public class InstrumentedTaskExecutor extends ThreadPoolTaskExecutor {
+
+    private static final long serialVersionUID = -3405834125961547025L;
+
+    private final String name;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public InstrumentedTaskExecutor(String name, int corePoolSize, int maxPoolSize, int queueCapacity) {
+        this(name, corePoolSize, maxPoolSize, queueCapacity, true);
+    }
+
+    /**
+     * @param callerRuns Whether the caller runs a task the pool couldn't take, otherwise the task is refused
+     */
+    public InstrumentedTaskExecutor(String name, int corePoolSize, int maxPoolSize, int queueCapacity, boolean callerRuns) {
+        this.name = name;
+        setCorePoolSize(corePoolSize);
+        setMaxPoolSize(maxPoolSize);
+        setQueueCapacity(queueCapacity);
+        setThreadNamePrefix(name + "-");
+        // Let the queued tasks finish, they are usually writes we don't want to lose
+        setWaitForTasksToCompleteOnShutdown(true);
+        setAwaitTerminationSeconds(30);
+        final RejectedExecutionHandler policy = callerRuns ? new ThreadPoolExecutor.CallerRunsPolicy() : new ThreadPoolExecutor.AbortPolicy();
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                rejectedCount.incrementAndGet();
+                policy.rejectedExecution(task, executor);
+            }
+        });
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Number of tasks that the pool couldn't take, they have been run by the caller or refused
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return Gauges of the pool, e.g. executor.history.active
+     */
+    public Collection<Metric<?>> metrics() {
+        String prefix = "executor." + name + ".";
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>(prefix + "active", getActiveCount()));
+        metrics.add(new Metric<>(prefix + "pool", getPoolSize()));
+
+        ThreadPoolExecutor executor = getThreadPoolExecutor();
+        metrics.add(new Metric<>(prefix + "queue", executor.getQueue().size()));
+        metrics.add(new Metric<>(prefix + "completed", executor.getCompletedTaskCount()));
+        metrics.add(new Metric<>(prefix + "rejected", getRejectedCount()));
+
+        return metrics;
+    }
+
+}
@@ -4,13 +4,16 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.context.annotation.PropertySources;
+import org.springframework.util.Base64Utils;
+
+import java.nio.charset.StandardCharsets;
 
 @Configuration
 @PropertySources({
         @PropertySource("classpath:mailgun-mail.properties"),
         @PropertySource("classpath:mailgun-mail-test.properties")
 })
-public class MailGunHttpConfiguration {
+public class MailGunHttpConfiguration implements MailHttpConfiguration {
 
     @Value("${second.mail.http-api.provider}")
     private String provider;
@@ -26,41 +29,114 @@ public class MailGunHttpConfiguration {
     private String contentType;
     @Value("${second.mail.http-api.accept-type}")
     private String acceptType;
+    @Value("${second.mail.http-api.connect-timeout}")
+    private int connectTimeout;
+    @Value("${second.mail.http-api.read-timeout}")
+    private int readTimeout;
+    @Value("${second.mail.http-api.pool.acquire-timeout}")
+    private int poolAcquireTimeout;
+    @Value("${second.mail.http-api.pool.max-connections}")
+    private int poolMaxConnections;
+    @Value("${second.mail.http-api.rate-limit.per-second}")
+    private double rateLimit;
+    @Value("${second.mail.http-api.rate-limit.burst}")
+    private int rateLimitBurst;
+    @Value("${second.mail.http-api.max-in-flight}")
+    private int maxInFlight;
+    @Value("${second.mail.http-api.routing.weight}")
+    private int routingWeight;
 
     private String redirectUrl;
 
+    @Override
     public String getProvider() {
         return provider;
     }
 
+    @Override
     public String getFrom() {
         return from;
     }
 
+    @Override
     public String getUrl() {
         return url;
     }
 
+    @Override
     public String getRequestMethod() {
         return requestMethod;
     }
 
+    @Override
     public String getKey() {
         return key;
     }
 
+    @Override
     public String getContentType() {
         return contentType;
     }
 
+    @Override
     public String getAcceptType() {
         return acceptType;
     }
 
+    @Override
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @Override
+    public int getPoolAcquireTimeout() {
+        return poolAcquireTimeout;
+    }
+
+    @Override
+    public int getPoolMaxConnections() {
+        return poolMaxConnections;
+    }
+
+    @Override
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    @Override
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public int getRoutingWeight() {
+        return routingWeight;
+    }
+
+    /**
+     * MailGun uses basic authentication with 'api' as the user and the key as the password
+     */
+    @Override
+    public String getAuthorization() {
+        return "Basic " + Base64Utils.encodeToString(("api:" + key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
     public String getRedirectUrl() {
         return redirectUrl;
     }
 
+    @Override
     public void setRedirectUrl(String redirectUrl) {
         this.redirectUrl = redirectUrl;
     }
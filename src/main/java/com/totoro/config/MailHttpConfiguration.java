@@ -0,0 +1,62 @@
+package com.totoro.config;
+
+/**
+ * Common view of an email provider's HTTP API settings so that provider agnostic components (e.g. the health monitor) can work with either of them
+ */
+public interface MailHttpConfiguration {
+
+    String getProvider();
+
+    String getFrom();
+
+    String getUrl();
+
+    String getRequestMethod();
+
+    String getKey();
+
+    String getContentType();
+
+    String getAcceptType();
+
+    int getConnectTimeout();
+
+    int getReadTimeout();
+
+    /**
+     * @return How long to wait (in milliseconds) for a free connection from the pool
+     */
+    int getPoolAcquireTimeout();
+
+    int getPoolMaxConnections();
+
+    /**
+     * @return How many requests per second we send to the provider, 0 means no limit
+     */
+    double getRateLimit();
+
+    /**
+     * @return How many requests can go out at once after a quiet period
+     */
+    int getRateLimitBurst();
+
+    /**
+     * @return How many requests can be in flight to the provider at the same time, 0 means no limit
+     */
+    int getMaxInFlight();
+
+    /**
+     * @return Share of the traffic that goes to the provider relative to the other providers' weights
+     */
+    int getRoutingWeight();
+
+    /**
+     * @return Value of the 'Authorization' header expected by the provider
+     */
+    String getAuthorization();
+
+    String getRedirectUrl();
+
+    void setRedirectUrl(String redirectUrl);
+
+}
@@ -10,7 +10,7 @@ import org.springframework.context.annotation.PropertySources;
         @PropertySource("classpath:sendgrid-mail.properties"),
         @PropertySource("classpath:sendgrid-mail-test.properties")
 })
-public class SendGridHttpConfiguration {
+public class SendGridHttpConfiguration implements MailHttpConfiguration {
 
     @Value("${mail.http-api.provider}")
     private String provider;
@@ -26,41 +26,111 @@ public class SendGridHttpConfiguration {
     private String contentType;
     @Value("${mail.http-api.accept-type}")
     private String acceptType;
+    @Value("${mail.http-api.connect-timeout}")
+    private int connectTimeout;
+    @Value("${mail.http-api.read-timeout}")
+    private int readTimeout;
+    @Value("${mail.http-api.pool.acquire-timeout}")
+    private int poolAcquireTimeout;
+    @Value("${mail.http-api.pool.max-connections}")
+    private int poolMaxConnections;
+    @Value("${mail.http-api.rate-limit.per-second}")
+    private double rateLimit;
+    @Value("${mail.http-api.rate-limit.burst}")
+    private int rateLimitBurst;
+    @Value("${mail.http-api.max-in-flight}")
+    private int maxInFlight;
+    @Value("${mail.http-api.routing.weight}")
+    private int routingWeight;
 
     private String redirectUrl;
 
+    @Override
     public String getProvider() {
         return provider;
     }
 
+    @Override
     public String getFrom() {
         return from;
     }
 
+    @Override
     public String getUrl() {
         return url;
     }
 
+    @Override
     public String getRequestMethod() {
         return requestMethod;
     }
 
+    @Override
     public String getKey() {
         return key;
     }
 
+    @Override
     public String getContentType() {
         return contentType;
     }
 
+    @Override
     public String getAcceptType() {
         return acceptType;
     }
 
+    @Override
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @Override
+    public int getPoolAcquireTimeout() {
+        return poolAcquireTimeout;
+    }
+
+    @Override
+    public int getPoolMaxConnections() {
+        return poolMaxConnections;
+    }
+
+    @Override
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    @Override
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public int getRoutingWeight() {
+        return routingWeight;
+    }
+
+    @Override
+    public String getAuthorization() {
+        return "Bearer " + key;
+    }
+
+    @Override
     public String getRedirectUrl() {
         return redirectUrl;
     }
 
+    @Override
     public void setRedirectUrl(String redirectUrl) {
         this.redirectUrl = redirectUrl;
     }
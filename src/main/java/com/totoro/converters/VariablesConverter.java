@@ -0,0 +1,48 @@
+package com.totoro.converters;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A converter that stores the per recipient variables of an email as a json object in a single column. An email without variables is stored as null
+ */
+@Converter
+public class VariablesConverter implements AttributeConverter<Map<String, String>, String> {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<LinkedHashMap<String, String>> TYPE = new TypeReference<LinkedHashMap<String, String>>() {
+    };
+
+    @Override
+    public String convertToDatabaseColumn(Map<String, String> attribute) {
+        if (attribute == null || attribute.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return OBJECT_MAPPER.writeValueAsString(attribute);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not convert the variables to json", e);
+        }
+    }
+
+    @Override
+    public Map<String, String> convertToEntityAttribute(String dbData) {
+        if (dbData == null) {
+            return new LinkedHashMap<>();
+        }
+
+        try {
+            return OBJECT_MAPPER.readValue(dbData, TYPE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read the variables from json", e);
+        }
+    }
+
+}
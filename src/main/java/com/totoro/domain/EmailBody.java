@@ -0,0 +1,74 @@
+package com.totoro.domain;
+
+import com.totoro.converters.CompressedTextConverter;
+
+import javax.persistence.Column;
+import javax.persistence.Convert;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This table stores the text of the sent emails once per distinct text, keyed by the SHA-256 of the text. A notification that is sent a million times takes a
+ * single row here and every history row only has the hash of it
+ */
+@Entity
+public class EmailBody {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Id
+    @Column(length = 64)
+    private String hash;
+    @Convert(converter = CompressedTextConverter.class)
+    @Column(length = 100000)
+    private String text;
+
+    public EmailBody() {
+    }
+
+    private EmailBody(String hash, String text) {
+        this.hash = hash;
+        this.text = text;
+    }
+
+    /**
+     * @param text Text of an email
+     * @return The body of the text or null when there's no text
+     */
+    public static EmailBody of(String text) {
+        return text != null ? new EmailBody(hash(text), text) : null;
+    }
+
+    /**
+     * @param text Text of an email
+     * @return SHA-256 of the text in hex
+     */
+    static String hash(String text) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.totoro.domain;
 
 import com.fasterxml.jackson.annotation.JsonIdentityInfo;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.ObjectIdGenerators;
 import org.apache.commons.lang3.StringUtils;
 
@@ -9,13 +10,22 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
 import javax.persistence.Transient;
 import javax.validation.constraints.NotNull;
 
 /**
- * This table stores a list of emails that have been sent
+ * This table stores a list of emails that have been sent. The history api pages through it by (createdAt, id), on its own or after the provider or the sender
  */
 @Entity
+@Table(indexes = {@Index(name = "idx_email_history_tracking_id", columnList = "trackingId"),
+        @Index(name = "idx_email_history_created_at", columnList = "createdAt, id"),
+        @Index(name = "idx_email_history_provider", columnList = "provider, createdAt, id"),
+        @Index(name = "idx_email_history_sender", columnList = "sender, createdAt, id"),
+        @Index(name = "idx_email_history_response_id", columnList = "responseId")})
 @JsonIdentityInfo(generator = ObjectIdGenerators.PropertyGenerator.class, property = "id")
 public class EmailHistory extends BaseEntity implements Comparable<EmailHistory> {
     @Id
@@ -28,7 +38,12 @@ public class EmailHistory extends BaseEntity implements Comparable<EmailHistory>
     private String ccRecipients;
     private String bccRecipients;
     private String subject;
-    private String text;
+    /**
+     * The text is shared by every email that has the same one, see {@link EmailBody}
+     */
+    @ManyToOne
+    @JoinColumn(name = "body_hash")
+    private EmailBody body;
     private String type;
     private String provider;
     /**
@@ -36,6 +51,10 @@ public class EmailHistory extends BaseEntity implements Comparable<EmailHistory>
      */
     private String responseId;
     private String responseMessage;
+    /**
+     * Tracking id that has been given to the client when the email was accepted into the spool
+     */
+    private String trackingId;
 
     /**
      * Transient fields
@@ -54,7 +73,7 @@ public class EmailHistory extends BaseEntity implements Comparable<EmailHistory>
         this.ccRecipients = StringUtils.join(ccRecipients, DELIMITER);
         this.bccRecipients = StringUtils.join(bccRecipients, DELIMITER);
         this.subject = subject;
-        this.text = text;
+        this.body = EmailBody.of(text);
         this.type = type;
         this.provider = provider;
         this.responseId = responseId;
@@ -118,11 +137,16 @@ public class EmailHistory extends BaseEntity implements Comparable<EmailHistory>
     }
 
     public String getText() {
-        return text;
+        return body != null ? body.getText() : null;
     }
 
     public void setText(String text) {
-        this.text = text;
+        this.body = EmailBody.of(text);
+    }
+
+    @JsonIgnore
+    public EmailBody getBody() {
+        return body;
     }
 
     public String getType() {
@@ -157,6 +181,14 @@ public class EmailHistory extends BaseEntity implements Comparable<EmailHistory>
         this.responseMessage = responseMessage;
     }
 
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+    public void setTrackingId(String trackingId) {
+        this.trackingId = trackingId;
+    }
+
     @Override
     public int compareTo(@NotNull EmailHistory o) {
         return this.getCreatedAt().compareTo(o.getCreatedAt());
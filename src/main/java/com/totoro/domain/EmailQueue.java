@@ -2,19 +2,34 @@ package com.totoro.domain;
 
 import com.fasterxml.jackson.annotation.JsonIdentityInfo;
 import com.fasterxml.jackson.annotation.ObjectIdGenerators;
+import com.totoro.converters.CompressedTextConverter;
+import com.totoro.converters.VariablesConverter;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.persistence.Column;
+import javax.persistence.Convert;
 import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Transient;
 import javax.validation.constraints.NotNull;
+import java.util.Map;
 
 /**
- * This table stores a list of emails that need to be sent
+ * This table stores a list of emails that need to be sent.
+ * <p>
+ * A row is 'leased' by the instance that is re-attempting it (see claimedBy and leaseUntil) so that several instances can go through the queue at the same time
+ * without sending the same email twice. When nobody holds the lease, leaseUntil tells when the row can be re-attempted again. Only the pending rows are
+ * re-attempted, see {@link QueueStatus}.
  */
 @Entity
+@Table(indexes = {@Index(name = "idx_email_queue_status_lease_until", columnList = "status, leaseUntil, id"),
+        @Index(name = "idx_email_queue_tracking_id", columnList = "trackingId")})
 @JsonIdentityInfo(generator = ObjectIdGenerators.PropertyGenerator.class, property = "id")
 public class EmailQueue extends BaseEntity implements Comparable<EmailQueue> {
     @Id
@@ -27,9 +42,44 @@ public class EmailQueue extends BaseEntity implements Comparable<EmailQueue> {
     private String ccRecipients;
     private String bccRecipients;
     private String subject;
+    @Convert(converter = CompressedTextConverter.class)
     private String text;
     private String type;
     private String reason;
+    /**
+     * The instance that is currently re-attempting this email
+     */
+    private String claimedBy;
+    /**
+     * Epoch millis until which the row is leased (or cannot be re-attempted yet when nobody has claimed it)
+     */
+    private Long leaseUntil;
+    private int attempts;
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16, nullable = false)
+    private QueueStatus status = QueueStatus.PENDING;
+    /**
+     * Tracking id that has been given to the client when the email was accepted into the spool
+     */
+    private String trackingId;
+    /**
+     * Per recipient variables of the email
+     */
+    @Convert(converter = VariablesConverter.class)
+    @Column(length = 4000)
+    private Map<String, String> variables;
+    /**
+     * Template of the email, it's only rendered when the email is sent so the text is empty when that hasn't happened yet
+     */
+    private Long templateId;
+
+    /**
+     * Transient fields
+     */
+    @Transient
+    private static final char DELIMITER = ';';
+    @Transient
+    private static final int MAX_REASON_LENGTH = 255;
 
     public EmailQueue() {
     }
@@ -38,13 +88,13 @@ public class EmailQueue extends BaseEntity implements Comparable<EmailQueue> {
                       String subject, String text, String type, String reason) {
         this.sender = sender;
         this.replyTo = replyTo;
-        this.toRecipients = StringUtils.join(toRecipients, ";");
-        this.ccRecipients = StringUtils.join(ccRecipients, ";");
-        this.bccRecipients = StringUtils.join(bccRecipients, ";");
+        this.toRecipients = StringUtils.join(toRecipients, DELIMITER);
+        this.ccRecipients = StringUtils.join(ccRecipients, DELIMITER);
+        this.bccRecipients = StringUtils.join(bccRecipients, DELIMITER);
         this.subject = subject;
         this.text = text;
         this.type = type;
-        this.reason = reason;
+        setReason(reason);
     }
 
     public long getId() {
@@ -72,27 +122,27 @@ public class EmailQueue extends BaseEntity implements Comparable<EmailQueue> {
     }
 
     public String[] getToRecipients() {
-        return StringUtils.split(toRecipients);
+        return StringUtils.split(toRecipients, DELIMITER);
     }
 
     public void setToRecipients(String[] recipients) {
-        this.toRecipients = StringUtils.join(recipients, ";");
+        this.toRecipients = StringUtils.join(recipients, DELIMITER);
     }
 
     public String[] getCcRecipients() {
-        return StringUtils.split(ccRecipients);
+        return StringUtils.split(ccRecipients, DELIMITER);
     }
 
     public void setCcRecipients(String[] ccRecipients) {
-        this.ccRecipients = StringUtils.join(ccRecipients, ";");
+        this.ccRecipients = StringUtils.join(ccRecipients, DELIMITER);
     }
 
     public String[] getBccRecipients() {
-        return StringUtils.split(bccRecipients);
+        return StringUtils.split(bccRecipients, DELIMITER);
     }
 
     public void setBccRecipients(String[] bccRecipients) {
-        this.bccRecipients = StringUtils.join(bccRecipients, ";");
+        this.bccRecipients = StringUtils.join(bccRecipients, DELIMITER);
     }
 
     public String getSubject() {
@@ -123,8 +173,69 @@ public class EmailQueue extends BaseEntity implements Comparable<EmailQueue> {
         return reason;
     }
 
+    /**
+     * The reason can be a whole error response from the provider so we only keep the beginning of it
+     *
+     * @param reason Reason why we have it in the queue
+     */
     public void setReason(String reason) {
-        this.reason = reason;
+        this.reason = StringUtils.abbreviate(reason, MAX_REASON_LENGTH);
+    }
+
+    public String getClaimedBy() {
+        return claimedBy;
+    }
+
+    public void setClaimedBy(String claimedBy) {
+        this.claimedBy = claimedBy;
+    }
+
+    public Long getLeaseUntil() {
+        return leaseUntil;
+    }
+
+    public void setLeaseUntil(Long leaseUntil) {
+        this.leaseUntil = leaseUntil;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public QueueStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(QueueStatus status) {
+        this.status = status;
+    }
+
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+    public void setTrackingId(String trackingId) {
+        this.trackingId = trackingId;
+    }
+
+    public Map<String, String> getVariables() {
+        return variables;
+    }
+
+    public void setVariables(Map<String, String> variables) {
+        this.variables = variables;
+    }
+
+    public Long getTemplateId() {
+        return templateId;
+    }
+
+    public void setTemplateId(Long templateId) {
+        this.templateId = templateId;
     }
 
     public int compareTo(@NotNull EmailQueue o) {
@@ -0,0 +1,57 @@
+package com.totoro.domain;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * This table has one row per recipient of every sent email, so the emails that have been sent to an address can be found through the index instead of going
+ * through the recipients of every history row. The address is canonical (its domain is in lower case)
+ */
+@Entity
+@Table(indexes = {@Index(name = "idx_email_recipient_address", columnList = "address, historyId")})
+public class EmailRecipient {
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    @Column(name = "id", nullable = false)
+    private long id;
+    @Column(nullable = false)
+    private long historyId;
+    @Enumerated(EnumType.STRING)
+    @Column(length = 3, nullable = false)
+    private RecipientRole role;
+    @Column(nullable = false)
+    private String address;
+
+    public EmailRecipient() {
+    }
+
+    public EmailRecipient(long historyId, RecipientRole role, String address) {
+        this.historyId = historyId;
+        this.role = role;
+        this.address = address;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getHistoryId() {
+        return historyId;
+    }
+
+    public RecipientRole getRole() {
+        return role;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+}
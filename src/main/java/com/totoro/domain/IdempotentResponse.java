@@ -0,0 +1,77 @@
+package com.totoro.domain;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * This table stores the response of every email that has been sent with an 'Idempotency-Key', so a client that sends the same email again with the same key
+ * gets the same response instead of a second email. A key belongs to the client that has sent it, two clients can use the same key.
+ * <p>
+ * The rows are purged once they are older than the time we promise to remember a key for, see {@link com.totoro.idempotency.IdempotencyKeys}
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_idempotent_response_key", columnNames = {"clientId", "idempotencyKey"}),
+        indexes = @Index(name = "idx_idempotent_response_created_at", columnList = "createdAt"))
+public class IdempotentResponse extends BaseEntity {
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    @Column(name = "id", nullable = false)
+    private long id;
+    @Column(nullable = false)
+    private String clientId;
+    @Column(nullable = false)
+    private String idempotencyKey;
+    /**
+     * SHA-256 of the email that has been sent with the key
+     */
+    @Column(length = 64)
+    private String fingerprint;
+    private int status;
+    /**
+     * The response body as json
+     */
+    @Column(length = 4000)
+    private String response;
+
+    public IdempotentResponse() {
+    }
+
+    public IdempotentResponse(String clientId, String idempotencyKey, String fingerprint, int status, String response) {
+        this.clientId = clientId;
+        this.idempotencyKey = idempotencyKey;
+        this.fingerprint = fingerprint;
+        this.status = status;
+        this.response = response;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.totoro.domain;
+
+/**
+ * Where an email in the queue table stands
+ */
+public enum QueueStatus {
+    /**
+     * The email is re-attempted by the drainers once it's due
+     */
+    PENDING,
+    /**
+     * The provider has had the whole request but hasn't told us whether it has accepted the email. Sending it again could deliver it twice so it's never
+     * re-attempted automatically, somebody has to check with the provider first
+     */
+    UNCERTAIN,
+    /**
+     * The email has failed for good, either the provider has rejected it or it has run out of attempts (see 'email.queue.drain.max-attempts'). It's kept for
+     * somebody to look at and isn't re-attempted
+     */
+    FAILED
+}
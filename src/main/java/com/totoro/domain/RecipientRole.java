@@ -0,0 +1,10 @@
+package com.totoro.domain;
+
+/**
+ * Which field of an email a recipient was in
+ */
+public enum RecipientRole {
+    TO,
+    CC,
+    BCC
+}
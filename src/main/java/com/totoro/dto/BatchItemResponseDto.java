@@ -0,0 +1,77 @@
+package com.totoro.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * The result of a single email in a batch request, the index is the position of the email in the request
+ */
+public class BatchItemResponseDto {
+
+    private int index;
+    private EmailStatus status;
+    private String message;
+    private long timestamp;
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private List<String> errors;
+
+    public BatchItemResponseDto() {
+    }
+
+    public BatchItemResponseDto(int index, EmailResponseDto response) {
+        this.index = index;
+        this.status = response.getStatus();
+        this.message = response.getMessage();
+        this.timestamp = response.getTimestamp();
+    }
+
+    public BatchItemResponseDto(int index, List<String> errors, long timestamp) {
+        this.index = index;
+        this.status = EmailStatus.REJECTED;
+        this.message = "Your email is invalid";
+        this.errors = errors;
+        this.timestamp = timestamp;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public EmailStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(EmailStatus status) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public void setErrors(List<String> errors) {
+        this.errors = errors;
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.totoro.dto;
+
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.LocalDateTime;
+
+/**
+ * A sent email as it's returned by the history api. It has everything but the text so a page of history doesn't have to read the body table
+ */
+public class EmailHistoryDto {
+
+    private static final char DELIMITER = ';';
+
+    private long id;
+    private long createdAt;
+    private String from;
+    private String replyTo;
+    private String[] to;
+    private String[] cc;
+    private String[] bcc;
+    private String subject;
+    private String type;
+    private String provider;
+    private String responseId;
+    private String responseMessage;
+    private String trackingId;
+
+    public EmailHistoryDto() {
+    }
+
+    /**
+     * Used by the history query, the recipients are as they are in the history table
+     */
+    public EmailHistoryDto(long id, LocalDateTime createdAt, String from, String replyTo, String to, String cc, String bcc, String subject, String type,
+                           String provider, String responseId, String responseMessage, String trackingId) {
+        this.id = id;
+        this.createdAt = createdAt != null ? createdAt.toDateTime().getMillis() : 0;
+        this.from = from;
+        this.replyTo = replyTo;
+        this.to = StringUtils.split(to, DELIMITER);
+        this.cc = StringUtils.split(cc, DELIMITER);
+        this.bcc = StringUtils.split(bcc, DELIMITER);
+        this.subject = subject;
+        this.type = type;
+        this.provider = provider;
+        this.responseId = responseId;
+        this.responseMessage = responseMessage;
+        this.trackingId = trackingId;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return Epoch millis, together with the id it's the cursor of the next page
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getReplyTo() {
+        return replyTo;
+    }
+
+    public String[] getTo() {
+        return to;
+    }
+
+    public String[] getCc() {
+        return cc;
+    }
+
+    public String[] getBcc() {
+        return bcc;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public String getResponseId() {
+        return responseId;
+    }
+
+    public String getResponseMessage() {
+        return responseMessage;
+    }
+
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+}
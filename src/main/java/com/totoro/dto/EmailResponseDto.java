@@ -1,5 +1,7 @@
 package com.totoro.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 /**
  * Email response that we return to the caller that triggers the send email api
  */
@@ -7,6 +9,12 @@ public class EmailResponseDto {
 
     private String message;
     private long timestamp;
+    private EmailStatus status;
+    /**
+     * Only set when the email has been accepted into the spool
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String trackingId;
 
     public EmailResponseDto() {
     }
@@ -16,6 +24,19 @@ public class EmailResponseDto {
         this.timestamp = timestamp;
     }
 
+    public EmailResponseDto(String message, long timestamp, EmailStatus status) {
+        this.message = message;
+        this.timestamp = timestamp;
+        this.status = status;
+    }
+
+    public EmailResponseDto(String message, long timestamp, EmailStatus status, String trackingId) {
+        this.message = message;
+        this.timestamp = timestamp;
+        this.status = status;
+        this.trackingId = trackingId;
+    }
+
     public String getMessage() {
         return message;
     }
@@ -32,4 +53,20 @@ public class EmailResponseDto {
         this.timestamp = timestamp;
     }
 
+    public EmailStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(EmailStatus status) {
+        this.status = status;
+    }
+
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+    public void setTrackingId(String trackingId) {
+        this.trackingId = trackingId;
+    }
+
 }
@@ -0,0 +1,27 @@
+package com.totoro.dto;
+
+/**
+ * What happened to an email that the client has sent to us
+ */
+public enum EmailStatus {
+    /**
+     * The provider has accepted the email
+     */
+    SENT,
+    /**
+     * The email has been added into the queue table so it can be re-attempted
+     */
+    QUEUED,
+    /**
+     * The email has been accepted and is still being sent in the background, it ends up in either the history or the queue table
+     */
+    ACCEPTED,
+    /**
+     * The provider has had the email but hasn't confirmed it. It has been put aside in the queue table and isn't re-attempted, it may have been delivered
+     */
+    UNCERTAIN,
+    /**
+     * The email is invalid and won't be sent, either we or the provider have found something wrong with it
+     */
+    REJECTED
+}
@@ -0,0 +1,97 @@
+package com.totoro.dto;
+
+/**
+ * Filters of the history api, every filter is optional. The emails come newest first and the next page starts after the last email of the previous one
+ * ('before' and 'beforeId' are its 'createdAt' and 'id')
+ */
+public class HistoryQueryDto {
+
+    private String provider;
+    private String sender;
+    private String recipient;
+    private String responseId;
+    /**
+     * Epoch millis, inclusive
+     */
+    private Long since;
+    /**
+     * Epoch millis, exclusive
+     */
+    private Long until;
+    private Long before;
+    private Long beforeId;
+    private Integer limit;
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public void setProvider(String provider) {
+        this.provider = provider;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public void setSender(String sender) {
+        this.sender = sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public void setRecipient(String recipient) {
+        this.recipient = recipient;
+    }
+
+    public String getResponseId() {
+        return responseId;
+    }
+
+    public void setResponseId(String responseId) {
+        this.responseId = responseId;
+    }
+
+    public Long getSince() {
+        return since;
+    }
+
+    public void setSince(Long since) {
+        this.since = since;
+    }
+
+    public Long getUntil() {
+        return until;
+    }
+
+    public void setUntil(Long until) {
+        this.until = until;
+    }
+
+    public Long getBefore() {
+        return before;
+    }
+
+    public void setBefore(Long before) {
+        this.before = before;
+    }
+
+    public Long getBeforeId() {
+        return beforeId;
+    }
+
+    public void setBeforeId(Long beforeId) {
+        this.beforeId = beforeId;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
+}
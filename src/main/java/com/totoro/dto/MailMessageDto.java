@@ -1,7 +1,8 @@
 package com.totoro.dto;
 
-import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This is the object that the client sends to us via our rest api
@@ -20,14 +21,26 @@ public class MailMessageDto {
     @Size(max = 10)
     private String[] bcc;
 
-    @NotNull
+    /**
+     * The subject and the text are mandatory unless the email is sent with a template
+     */
     private String subject;
 
-    @NotNull
     private String text;
 
     private String type = "text/plain";
 
+    /**
+     * Template that the subject, the text and the type come from, see {@link com.totoro.templates.CompiledTemplate}
+     */
+    private Long templateId;
+
+    /**
+     * Per recipient variables, they replace the '%recipient.name%' placeholders in the subject and the text
+     */
+    @Size(max = 50)
+    private Map<String, String> variables;
+
     public String getFrom() {
         return from;
     }
@@ -104,4 +117,24 @@ public class MailMessageDto {
         this.type = type;
     }
 
+    public Long getTemplateId() {
+        return templateId;
+    }
+
+    public void setTemplateId(Long templateId) {
+        this.templateId = templateId;
+    }
+
+    public Map<String, String> getVariables() {
+        if (variables == null) {
+            variables = new LinkedHashMap<>();
+        }
+
+        return variables;
+    }
+
+    public void setVariables(Map<String, String> variables) {
+        this.variables = variables;
+    }
+
 }
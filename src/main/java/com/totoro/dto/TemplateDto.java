@@ -0,0 +1,56 @@
+package com.totoro.dto;
+
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+/**
+ * This is the template that the client sends to us via our rest api, the subject and the text can have '%recipient.name%' placeholders
+ */
+public class TemplateDto {
+    @NotNull
+    @Size(max = 255)
+    private String name;
+
+    @NotNull
+    @Size(max = 1000)
+    private String subject;
+
+    @NotNull
+    @Size(max = 100000)
+    private String text;
+
+    private String type = "text/plain";
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public void setSubject(String subject) {
+        this.subject = subject;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+}
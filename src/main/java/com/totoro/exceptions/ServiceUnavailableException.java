@@ -0,0 +1,31 @@
+package com.totoro.exceptions;
+
+import com.totoro.handlers.RestErrorHandler;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * This class should be used when we are too busy to take the request, whoever the caller is.
+ *
+ * @see RestErrorHandler#handleServiceUnavailableException
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+public class ServiceUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 5802645718862940313L;
+
+    /**
+     * Seconds until the caller can try again
+     */
+    private final long retryAfter;
+
+    public ServiceUnavailableException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+}
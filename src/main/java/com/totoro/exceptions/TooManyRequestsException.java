@@ -0,0 +1,31 @@
+package com.totoro.exceptions;
+
+import com.totoro.handlers.RestErrorHandler;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * This class should be used when the caller has gone over one of its quotas.
+ *
+ * @see RestErrorHandler#handleTooManyRequestsException
+ */
+@ResponseStatus(value = HttpStatus.TOO_MANY_REQUESTS)
+public class TooManyRequestsException extends RuntimeException {
+
+    private static final long serialVersionUID = -3198264380517409732L;
+
+    /**
+     * Seconds until the caller can try again
+     */
+    private final long retryAfter;
+
+    public TooManyRequestsException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+}
@@ -3,6 +3,8 @@ package com.totoro.handlers;
 import com.totoro.api.ResponseFactory;
 import com.totoro.exceptions.BadRequestException;
 import com.totoro.exceptions.ResourceNotFoundException;
+import com.totoro.exceptions.ServiceUnavailableException;
+import com.totoro.exceptions.TooManyRequestsException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -76,6 +78,36 @@ public class RestErrorHandler extends ResponseEntityExceptionHandler {
         return new ResponseEntity<Object>("Bad request", HttpStatus.BAD_REQUEST);
     }
 
+    /**
+     * Handles too many requests exception, the caller is told when to try again
+     *
+     * @param ex      Exception
+     * @param request Current request
+     * @return Response to the caller
+     */
+    @ExceptionHandler(value = TooManyRequestsException.class)
+    public ResponseEntity<Object> handleTooManyRequestsException(TooManyRequestsException ex, WebRequest request) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter()));
+
+        return new ResponseEntity<>(ResponseFactory.createError(HttpStatus.TOO_MANY_REQUESTS, ex.getMessage()).getBody(), headers, HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    /**
+     * Handles service unavailable exception, the caller is told when to try again
+     *
+     * @param ex      Exception
+     * @param request Current request
+     * @return Response to the caller
+     */
+    @ExceptionHandler(value = ServiceUnavailableException.class)
+    public ResponseEntity<Object> handleServiceUnavailableException(ServiceUnavailableException ex, WebRequest request) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter()));
+
+        return new ResponseEntity<>(ResponseFactory.createError(HttpStatus.SERVICE_UNAVAILABLE, ex.getMessage()).getBody(), headers, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
     @Override
     protected ResponseEntity<Object> handleExceptionInternal(Exception ex, Object body, HttpHeaders headers,
                                                              HttpStatus status, WebRequest request) {
@@ -0,0 +1,295 @@
+package com.totoro.idempotency;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.totoro.domain.IdempotentResponse;
+import com.totoro.dto.EmailResponseDto;
+import com.totoro.exceptions.BadRequestException;
+import com.totoro.repository.IdempotentResponseRepository;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.DataAccessException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the response of every email that has been sent with an 'Idempotency-Key' so a client that retries (after a timeout for instance) gets the response
+ * of the first attempt instead of a second email.
+ * <p>
+ * The responses of the most recently used keys are kept in memory, the others are read from the table (see {@link IdempotentResponse}). While the first request
+ * with a key is still being sent, the requests with the same key wait for it rather than sending the email again. That only holds within an instance, two
+ * instances that get the same key at the very same time can both send the email.
+ * <p>
+ * A key is remembered for 'email.idempotency.ttl' millis, the rows older than that are purged on a schedule.
+ */
+@Component
+public class IdempotencyKeys implements PublicMetrics {
+
+    /**
+     * Keys are chosen by the clients, a longer one doesn't fit in the table
+     */
+    public static final int MAX_KEY_LENGTH = 255;
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyKeys.class);
+
+    private final IdempotentResponseRepository idempotentResponseRepository;
+    private final ObjectMapper objectMapper;
+    private final long ttl;
+    private final Map<String, Stored> responses;
+    private final ConcurrentMap<String, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong tableHits = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong purged = new AtomicLong();
+
+    /**
+     * @param cacheSize How many responses are kept in memory
+     * @param ttl       How long a key is remembered for in millis
+     */
+    @Autowired
+    public IdempotencyKeys(IdempotentResponseRepository idempotentResponseRepository, ObjectMapper objectMapper,
+                           @Value("${email.idempotency.cache-size}") final int cacheSize, @Value("${email.idempotency.ttl}") long ttl) {
+        this.idempotentResponseRepository = idempotentResponseRepository;
+        this.objectMapper = objectMapper;
+        this.ttl = ttl;
+        this.responses = new LinkedHashMap<String, Stored>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Stored> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Starts a request with a key. The first request with a key gets null and has to send the email and then call either {@link #complete} or
+     * {@link #abandon}, the others get the response of the first one.
+     *
+     * @param client Client that has sent the request
+     * @param key    Idempotency key
+     * @param email  The email of the request, a key can only be used for one email
+     * @return Null when the caller has to send the email, otherwise the response of the first request which may still be in flight
+     */
+    public ListenableFuture<ResponseEntity<EmailResponseDto>> begin(String client, String key, Object email) {
+        if (key.length() > MAX_KEY_LENGTH) {
+            throw new BadRequestException(String.format("'Idempotency-Key' cannot be longer than %d characters", MAX_KEY_LENGTH));
+        }
+
+        String id = id(client, key);
+        String fingerprint = fingerprint(email);
+        Stored stored = cached(id);
+        if (stored != null) {
+            cacheHits.incrementAndGet();
+            return stored.replay(key, fingerprint);
+        }
+
+        InFlight mine = new InFlight(fingerprint);
+        InFlight current = inFlight.putIfAbsent(id, mine);
+        if (current != null) {
+            waits.incrementAndGet();
+            checkFingerprint(key, current.fingerprint, fingerprint);
+            return current.future;
+        }
+
+        // Nobody else can be sending this key now, but it may have been completed in the meantime or by another instance
+        try {
+            IdempotentResponse row = idempotentResponseRepository.findByClientIdAndIdempotencyKey(client, key);
+            if (row != null && isExpired(row.getCreatedAt().toDateTime().getMillis())) {
+                // Not purged yet, it would be in the way of the new response
+                idempotentResponseRepository.delete(row);
+            } else if (row != null) {
+                tableHits.incrementAndGet();
+                stored = new Stored(row.getFingerprint(), HttpStatus.valueOf(row.getStatus()), read(row.getResponse()),
+                        row.getCreatedAt().toDateTime().getMillis());
+                cache(id, stored);
+                inFlight.remove(id, mine);
+                mine.future.set(stored.response);
+
+                return stored.replay(key, fingerprint);
+            }
+        } catch (RuntimeException e) {
+            abandon(client, key, e);
+            throw e;
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the response of the first request with a key and hands it to the requests that are waiting for it
+     *
+     * @param client   Client that has sent the request
+     * @param key      Idempotency key
+     * @param response Response of the request
+     */
+    public void complete(String client, String key, ResponseEntity<EmailResponseDto> response) {
+        String id = id(client, key);
+        InFlight current = inFlight.get(id);
+        if (current == null) {
+            return;
+        }
+
+        // The row goes in before the key leaves the in flight keys, a request that comes in between finds one or the other
+        try {
+            idempotentResponseRepository.save(new IdempotentResponse(client, key, current.fingerprint, response.getStatusCode().value(), write(response.getBody())));
+        } catch (DataAccessException e) {
+            // The email has been sent, the key is still remembered in memory
+            logger.warn("Could not store the response of idempotency key {}", key, e);
+        }
+        cache(id, new Stored(current.fingerprint, response.getStatusCode(), response.getBody(), System.currentTimeMillis()));
+        inFlight.remove(id, current);
+        current.future.set(response);
+    }
+
+    /**
+     * Forgets the first request with a key when it has failed, the requests that are waiting for it fail the same way and the key can be used again
+     *
+     * @param client Client that has sent the request
+     * @param key    Idempotency key
+     * @param ex     Why the request has failed
+     */
+    public void abandon(String client, String key, Throwable ex) {
+        InFlight current = inFlight.remove(id(client, key));
+        if (current != null) {
+            current.future.setException(ex);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${email.idempotency.purge-interval}", initialDelayString = "${email.idempotency.purge-interval}")
+    public void purge() {
+        try {
+            purged.addAndGet(idempotentResponseRepository.deleteCreatedBefore(new LocalDateTime(System.currentTimeMillis() - ttl)));
+        } catch (DataAccessException e) {
+            logger.error("Could not purge the expired idempotency keys", e);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("idempotency.cache.hits", cacheHits.get()));
+        metrics.add(new Metric<>("idempotency.table.hits", tableHits.get()));
+        metrics.add(new Metric<>("idempotency.waits", waits.get()));
+        metrics.add(new Metric<>("idempotency.misses", misses.get()));
+        metrics.add(new Metric<>("idempotency.purged", purged.get()));
+        metrics.add(new Metric<>("idempotency.in-flight", inFlight.size()));
+
+        return metrics;
+    }
+
+    private static String id(String client, String key) {
+        // A header value cannot have a new line in it so the id is never ambiguous
+        return client + '\n' + key;
+    }
+
+    private Stored cached(String id) {
+        synchronized (responses) {
+            Stored stored = responses.get(id);
+            if (stored != null && isExpired(stored.createdAt)) {
+                responses.remove(id);
+                return null;
+            }
+
+            return stored;
+        }
+    }
+
+    private void cache(String id, Stored stored) {
+        synchronized (responses) {
+            responses.put(id, stored);
+        }
+    }
+
+    private boolean isExpired(long createdAt) {
+        return createdAt + ttl < System.currentTimeMillis();
+    }
+
+    private String fingerprint(Object email) {
+        try {
+            return DigestUtils.sha256Hex(objectMapper.writeValueAsBytes(email));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not fingerprint the email", e);
+        }
+    }
+
+    private String write(EmailResponseDto response) {
+        try {
+            return objectMapper.writeValueAsString(response);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not convert the response to json", e);
+        }
+    }
+
+    private EmailResponseDto read(String response) {
+        try {
+            return objectMapper.readValue(response, EmailResponseDto.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read the response from json", e);
+        }
+    }
+
+    private static void checkFingerprint(String key, String expected, String fingerprint) {
+        if (!expected.equals(fingerprint)) {
+            throw new BadRequestException(String.format("Idempotency key %s has already been used for a different email", key));
+        }
+    }
+
+    /**
+     * A response that has been stored
+     */
+    private static final class Stored {
+        private final String fingerprint;
+        private final ResponseEntity<EmailResponseDto> response;
+        /**
+         * Epoch millis
+         */
+        private final long createdAt;
+
+        private Stored(String fingerprint, HttpStatus status, EmailResponseDto response, long createdAt) {
+            this.fingerprint = fingerprint;
+            this.response = new ResponseEntity<>(response, status);
+            this.createdAt = createdAt;
+        }
+
+        private ListenableFuture<ResponseEntity<EmailResponseDto>> replay(String key, String fingerprint) {
+            checkFingerprint(key, this.fingerprint, fingerprint);
+            SettableListenableFuture<ResponseEntity<EmailResponseDto>> future = new SettableListenableFuture<>();
+            future.set(response);
+
+            return future;
+        }
+    }
+
+    /**
+     * The first request with a key while it's being sent
+     */
+    private static final class InFlight {
+        private final String fingerprint;
+        private final SettableListenableFuture<ResponseEntity<EmailResponseDto>> future = new SettableListenableFuture<>();
+
+        private InFlight(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+}
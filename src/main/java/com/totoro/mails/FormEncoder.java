@@ -0,0 +1,104 @@
+package com.totoro.mails;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes 'application/x-www-form-urlencoded' values straight to a stream in UTF-8, the same way {@link java.net.URLEncoder} encodes them but without the
+ * intermediate Strings and byte arrays. It can also tell the encoded length of a value without encoding it.
+ */
+final class FormEncoder {
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    private FormEncoder() {
+    }
+
+    /**
+     * @param out   Where to write the pair to
+     * @param first Whether this is the first pair of the body, i.e. no '&' in front of it
+     * @param name  Name of the field, it's written as it is
+     * @param value Value of the field
+     * @throws IOException If the pair cannot be written
+     */
+    static void writePair(OutputStream out, boolean first, String name, String value) throws IOException {
+        if (!first) {
+            out.write('&');
+        }
+        for (int i = 0; i < name.length(); i++) {
+            out.write(name.charAt(i));
+        }
+        out.write('=');
+        encode(out, value);
+    }
+
+    /**
+     * @return Length in bytes of the pair written by {@link #writePair(OutputStream, boolean, String, String)}
+     */
+    static long pairLength(boolean first, String name, String value) {
+        return (first ? 0 : 1) + name.length() + 1 + encodedLength(value);
+    }
+
+    static void encode(OutputStream out, String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (isUnreserved(c)) {
+                out.write(c);
+            } else if (c == ' ') {
+                out.write('+');
+            } else if (c < 0x80) {
+                escape(out, c);
+            } else if (c < 0x800) {
+                escape(out, 0xC0 | (c >> 6));
+                escape(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                escape(out, 0xF0 | (codePoint >> 18));
+                escape(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                escape(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                escape(out, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate cannot be encoded, URLEncoder turns it into '?' as well
+                escape(out, '?');
+            } else {
+                escape(out, 0xE0 | (c >> 12));
+                escape(out, 0x80 | ((c >> 6) & 0x3F));
+                escape(out, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    static long encodedLength(String value) {
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (isUnreserved(c) || c == ' ') {
+                length++;
+            } else if (c < 0x80) {
+                length += 3;
+            } else if (c < 0x800) {
+                length += 6;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                i++;
+                length += 12;
+            } else if (Character.isSurrogate(c)) {
+                length += 3;
+            } else {
+                length += 9;
+            }
+        }
+
+        return length;
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_';
+    }
+
+    private static void escape(OutputStream out, int b) throws IOException {
+        out.write('%');
+        out.write(HEX[(b >> 4) & 0x0F]);
+        out.write(HEX[b & 0x0F]);
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.totoro.mails;
+
+/**
+ * Works out the length in bytes of the json that {@link SendGridRequest} writes, without writing it. The values are escaped the same way as the Jackson
+ * generator does it: '"', '\' and the control characters are escaped, anything else is written in UTF-8 except for the surrogates which are escaped one by one.
+ */
+final class JsonLength {
+
+    private JsonLength() {
+    }
+
+    /**
+     * @return Length of a quoted string value, or of null
+     */
+    static long string(String value) {
+        if (value == null) {
+            return 4;
+        }
+
+        long length = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20) {
+                // \b, \t, \n, \f and \r have a short escape, the other control characters are written as in \u001F
+                length += c == '\b' || c == '\t' || c == '\n' || c == '\f' || c == '\r' ? 2 : 6;
+            } else if (c == '"' || c == '\\') {
+                length += 2;
+            } else if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                length += 6;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * @return Length of a field, i.e. its quoted name, ':' and its value
+     */
+    static long field(String name, long valueLength) {
+        return string(name) + 1 + valueLength;
+    }
+
+    /**
+     * @return Length of an object or an array with these members, i.e. the brackets and a ',' between every two members
+     */
+    static long container(int members, long membersLength) {
+        return 2 + Math.max(members - 1, 0) + membersLength;
+    }
+
+}
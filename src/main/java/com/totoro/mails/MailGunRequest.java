@@ -1,8 +1,12 @@
 package com.totoro.mails;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Map;
 
 /**
  * Mail gun request builder to use this just call MailGunRequest.build(from, to[], subject, text) and chain it with cc(), bcc() and so on as needed
@@ -10,37 +14,68 @@ import java.nio.charset.StandardCharsets;
  */
 public class MailGunRequest extends MailRequest {
 
+    /**
+     * MailGun takes at most this many recipients in one batch request
+     */
+    public static final int MAX_BATCH_RECIPIENTS = 1000;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * 'recipient-variables' in json, null when it's not a batch request
+     */
+    private final String recipientVariables;
+
     MailGunRequest(Builder builder) {
         super(builder.from, builder.to, builder.cc, builder.bcc, builder.subject, builder.text, builder.type);
+        this.recipientVariables = builder.recipientVariables;
     }
 
     @Override
-    public String getData() throws UnsupportedEncodingException {
-        StringBuilder sb = new StringBuilder();
-        sb.append("from=").append(URLEncoder.encode(from, StandardCharsets.UTF_8.name()));
+    public void writeTo(OutputStream out) throws IOException {
+        FormEncoder.writePair(out, true, "from", from);
+        writeRecipients(out, "to", to);
+        writeRecipients(out, "cc", cc);
+        writeRecipients(out, "bcc", bcc);
+        FormEncoder.writePair(out, false, "subject", subject);
+        FormEncoder.writePair(out, false, "text", text);
+        if (recipientVariables != null) {
+            FormEncoder.writePair(out, false, "recipient-variables", recipientVariables);
+        }
+    }
 
-        if (to != null && to.length > 0) {
-            for (String recipient : to) {
-                sb.append("&to=").append(URLEncoder.encode(recipient, StandardCharsets.UTF_8.name()));
-            }
+    @Override
+    public long getContentLength() {
+        long length = FormEncoder.pairLength(true, "from", from);
+        length += recipientsLength("to", to);
+        length += recipientsLength("cc", cc);
+        length += recipientsLength("bcc", bcc);
+        length += FormEncoder.pairLength(false, "subject", subject);
+        length += FormEncoder.pairLength(false, "text", text);
+        if (recipientVariables != null) {
+            length += FormEncoder.pairLength(false, "recipient-variables", recipientVariables);
         }
 
-        if (cc != null && cc.length > 0) {
-            for (String recipient : cc) {
-                sb.append("&cc=").append(URLEncoder.encode(recipient, StandardCharsets.UTF_8.name()));
+        return length;
+    }
+
+    private static void writeRecipients(OutputStream out, String name, String[] recipients) throws IOException {
+        if (recipients != null) {
+            for (String recipient : recipients) {
+                FormEncoder.writePair(out, false, name, recipient);
             }
         }
+    }
 
-        if (bcc != null && bcc.length > 0) {
-            for (String recipient : bcc) {
-                sb.append("&bcc=").append(URLEncoder.encode(recipient, StandardCharsets.UTF_8.name()));
+    private static long recipientsLength(String name, String[] recipients) {
+        long length = 0;
+        if (recipients != null) {
+            for (String recipient : recipients) {
+                length += FormEncoder.pairLength(false, name, recipient);
             }
         }
 
-        sb.append("&subject=").append(URLEncoder.encode(subject, StandardCharsets.UTF_8.name()));
-        sb.append("&text=").append(URLEncoder.encode(text, StandardCharsets.UTF_8.name()));
-
-        return sb.toString();
+        return length;
     }
 
     public static class Builder {
@@ -51,6 +86,7 @@ public class MailGunRequest extends MailRequest {
         private String[] cc;
         private String[] bcc;
         private String type;
+        private String recipientVariables;
 
         public Builder(String from, String[] to, String subject, String text) {
             this.from = from;
@@ -74,6 +110,30 @@ public class MailGunRequest extends MailRequest {
             return this;
         }
 
+        /**
+         * Turns the request into a batch request, MailGun sends a separate email to every 'to' recipient and nobody sees the others. The '%recipient.name%'
+         * placeholders are replaced with the variables of each recipient
+         *
+         * @param variables Variables of every 'to' recipient, keyed by the recipient
+         * @throws IOException If the variables cannot be written as json
+         */
+        public Builder recipientVariables(Map<String, Map<String, String>> variables) throws IOException {
+            StringWriter json = new StringWriter();
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(json)) {
+                generator.writeStartObject();
+                for (Map.Entry<String, Map<String, String>> recipient : variables.entrySet()) {
+                    generator.writeObjectFieldStart(recipient.getKey());
+                    for (Map.Entry<String, String> variable : recipient.getValue().entrySet()) {
+                        generator.writeStringField(variable.getKey(), variable.getValue());
+                    }
+                    generator.writeEndObject();
+                }
+                generator.writeEndObject();
+            }
+            this.recipientVariables = json.toString();
+            return this;
+        }
+
         public MailGunRequest build() {
             return new MailGunRequest(this);
         }
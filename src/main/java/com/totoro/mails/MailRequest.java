@@ -1,5 +1,14 @@
 package com.totoro.mails;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request body of an email provider. The body is written straight to the connection with {@link #writeTo(OutputStream)} in UTF-8, it's never built up as a String
+ * on the way out so a large html email isn't copied over and over again
+ */
 public abstract class MailRequest {
     final String from;
     final String[] to;
@@ -19,7 +28,30 @@ public abstract class MailRequest {
         this.type = type;
     }
 
-    public abstract String getData() throws Exception;
+    /**
+     * Writes the request body in UTF-8
+     *
+     * @param out Where to write the body to, it's neither flushed nor closed
+     * @throws IOException If the body cannot be written
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * @return Exact length of the request body in bytes, worked out without building the body
+     * @throws IOException If the body cannot be written
+     */
+    public abstract long getContentLength() throws IOException;
+
+    /**
+     * @return The request body as a String, meant for logging and tests
+     * @throws IOException If the body cannot be written
+     */
+    public String getData() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
 
     public String getFrom() {
         return from;
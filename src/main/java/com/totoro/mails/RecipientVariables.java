@@ -0,0 +1,65 @@
+package com.totoro.mails;
+
+import java.util.Map;
+
+/**
+ * Per recipient variables of an email. They're written as '%recipient.name%' in the subject and the text, the same placeholders that MailGun substitutes in batch
+ * mode (see https://documentation.mailgun.com/en/latest/user_manual.html#batch-sending). SendGrid gets the same placeholders as substitutions and an email that is
+ * sent on its own has them replaced before it leaves.
+ */
+public final class RecipientVariables {
+
+    private static final String PREFIX = "%recipient.";
+    private static final char SUFFIX = '%';
+
+    private RecipientVariables() {
+    }
+
+    /**
+     * @param name Variable name
+     * @return The placeholder of the variable
+     */
+    public static String placeholder(String name) {
+        return PREFIX + name + SUFFIX;
+    }
+
+    /**
+     * Replaces the placeholders of the given variables, a placeholder without a variable is left as it is
+     *
+     * @param text      Subject or text of an email
+     * @param variables Variables of the recipient
+     * @return The text with the variables in it
+     */
+    public static String substitute(String text, Map<String, String> variables) {
+        if (text == null || variables == null || variables.isEmpty()) {
+            return text;
+        }
+
+        int start = text.indexOf(PREFIX);
+        if (start < 0) {
+            return text;
+        }
+
+        StringBuilder sb = new StringBuilder(text.length());
+        int copied = 0;
+        while (start >= 0) {
+            int end = text.indexOf(SUFFIX, start + PREFIX.length());
+            if (end < 0) {
+                break;
+            }
+
+            String value = variables.get(text.substring(start + PREFIX.length(), end));
+            if (value == null) {
+                // Not one of ours, the closing '%' may open the next placeholder
+                start = text.indexOf(PREFIX, start + 1);
+                continue;
+            }
+            sb.append(text, copied, start).append(value);
+            copied = end + 1;
+            start = text.indexOf(PREFIX, copied);
+        }
+
+        return sb.append(text, copied, text.length()).toString();
+    }
+
+}
@@ -1,45 +0,0 @@
-package com.totoro.mails;
-
-public class SendGridErrorResponse {
-
-    private Error[] errors;
-
-    public Error[] getErrors() {
-        return errors;
-    }
-
-    public void setErrors(Error[] errors) {
-        this.errors = errors;
-    }
-
-    public static class Error {
-        private String message;
-        private String field;
-        private String help;
-
-        public String getMessage() {
-            return message;
-        }
-
-        public void setMessage(String message) {
-            this.message = message;
-        }
-
-        public String getField() {
-            return field;
-        }
-
-        public void setField(String field) {
-            this.field = field;
-        }
-
-        public String getHelp() {
-            return help;
-        }
-
-        public void setHelp(String help) {
-            this.help = help;
-        }
-    }
-
-}
@@ -1,6 +1,14 @@
 package com.totoro.mails;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Send grid request builder to use this just call SendGridRequest.build(from, to[], subject, text) and chain it with cc(), bcc() and so on as needed
@@ -8,52 +16,140 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  */
 public class SendGridRequest extends MailRequest {
 
+    /**
+     * Thread safe and expensive to create, so it's shared by every request. The stream belongs to the caller so the generator mustn't close it
+     */
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    /**
+     * SendGrid takes at most this many personalizations, and recipients in total, in one request
+     */
+    public static final int MAX_PERSONALIZATIONS = 1000;
+
+    private final List<Personalization> personalizations;
+    private final Map<String, String> variables;
+
     SendGridRequest(Builder builder) {
         super(builder.from, builder.to, builder.cc, builder.bcc, builder.subject, builder.text, builder.type);
+        this.personalizations = builder.personalizations;
+        this.variables = builder.variables;
     }
 
     @Override
-    public String getData() throws Exception {
-        ObjectMapper objectMapper = new ObjectMapper();
+    public void writeTo(OutputStream out) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+
+            // Every personalization is a separate email with the same content, its recipients don't see the others
+            generator.writeArrayFieldStart("personalizations");
+            writePersonalization(generator, to, cc, bcc, variables);
+            for (Personalization personalization : personalizations) {
+                writePersonalization(generator, personalization.to, personalization.cc, personalization.bcc, personalization.variables);
+            }
+            generator.writeEndArray();
 
-        To[] toArr = null;
-        if (to != null && to.length > 0) {
-            toArr = new To[to.length];
+            generator.writeObjectFieldStart("from");
+            generator.writeStringField("email", from);
+            generator.writeEndObject();
 
-            for (int i = 0; i < to.length; i++) {
-                toArr[i] = new To(to[i]);
-            }
+            generator.writeArrayFieldStart("content");
+            generator.writeStartObject();
+            generator.writeStringField("type", type);
+            generator.writeStringField("value", text);
+            generator.writeEndObject();
+            generator.writeEndArray();
+
+            generator.writeEndObject();
+        }
+    }
+
+    @Override
+    public long getContentLength() {
+        long personalizationsLength = personalizationLength(to, cc, bcc, variables);
+        for (Personalization personalization : personalizations) {
+            personalizationsLength += personalizationLength(personalization.to, personalization.cc, personalization.bcc, personalization.variables);
         }
 
-        Cc[] ccArr = null;
-        if (cc != null && cc.length > 0) {
-            ccArr = new Cc[cc.length];
+        long length = JsonLength.field("personalizations", JsonLength.container(personalizations.size() + 1, personalizationsLength));
+        length += JsonLength.field("from", JsonLength.container(1, JsonLength.field("email", JsonLength.string(from))));
+        long content = JsonLength.container(2, JsonLength.field("type", JsonLength.string(type)) + JsonLength.field("value", JsonLength.string(text)));
+        length += JsonLength.field("content", JsonLength.container(1, content));
+
+        return JsonLength.container(3, length);
+    }
 
-            for (int i = 0; i < cc.length; i++) {
-                ccArr[i] = new Cc(cc[i]);
+    private void writePersonalization(JsonGenerator generator, String[] to, String[] cc, String[] bcc, Map<String, String> variables) throws IOException {
+        generator.writeStartObject();
+        writeRecipients(generator, "to", to);
+        writeRecipients(generator, "cc", cc);
+        writeRecipients(generator, "bcc", bcc);
+        generator.writeStringField("subject", subject);
+        // The placeholders are the same as MailGun's so an email reads the same whichever provider sends it
+        if (variables != null && !variables.isEmpty()) {
+            generator.writeObjectFieldStart("substitutions");
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                generator.writeStringField(RecipientVariables.placeholder(variable.getKey()), variable.getValue());
             }
+            generator.writeEndObject();
         }
+        generator.writeEndObject();
+    }
 
-        Bcc[] bccArr = null;
-        if (bcc != null && bcc.length > 0) {
-            bccArr = new Bcc[bcc.length];
-
-            for (int i = 0; i < bcc.length; i++) {
-                bccArr[i] = new Bcc(bcc[i]);
+    private long personalizationLength(String[] to, String[] cc, String[] bcc, Map<String, String> variables) {
+        int fields = 1;
+        long length = JsonLength.field("subject", JsonLength.string(subject));
+        if (hasRecipients(to)) {
+            fields++;
+            length += recipientsLength("to", to);
+        }
+        if (hasRecipients(cc)) {
+            fields++;
+            length += recipientsLength("cc", cc);
+        }
+        if (hasRecipients(bcc)) {
+            fields++;
+            length += recipientsLength("bcc", bcc);
+        }
+        if (variables != null && !variables.isEmpty()) {
+            long substitutions = 0;
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                substitutions += JsonLength.field(RecipientVariables.placeholder(variable.getKey()), JsonLength.string(variable.getValue()));
             }
+            fields++;
+            length += JsonLength.field("substitutions", JsonLength.container(variables.size(), substitutions));
+        }
+
+        return JsonLength.container(fields, length);
+    }
+
+    /**
+     * SendGrid rejects an empty recipient list so the field is left out when there are no recipients
+     */
+    private static void writeRecipients(JsonGenerator generator, String name, String[] recipients) throws IOException {
+        if (!hasRecipients(recipients)) {
+            return;
+        }
+
+        generator.writeArrayFieldStart(name);
+        for (String recipient : recipients) {
+            generator.writeStartObject();
+            generator.writeStringField("email", recipient);
+            generator.writeEndObject();
         }
+        generator.writeEndArray();
+    }
 
-        Envelope envelope = new Envelope(
-                new Personalization[]{
-                        new Personalization(toArr, ccArr, bccArr, subject)
-                },
-                new From(from),
-                new Content[]{
-                        new Content(type, text)
-                }
-        );
+    private static long recipientsLength(String name, String[] recipients) {
+        long length = 0;
+        for (String recipient : recipients) {
+            length += JsonLength.container(1, JsonLength.field("email", JsonLength.string(recipient)));
+        }
 
-        return objectMapper.writeValueAsString(envelope);
+        return JsonLength.field(name, JsonLength.container(recipients.length, length));
+    }
+
+    private static boolean hasRecipients(String[] recipients) {
+        return recipients != null && recipients.length > 0;
     }
 
     public static class Builder {
@@ -64,6 +160,8 @@ public class SendGridRequest extends MailRequest {
         private String[] cc;
         private String[] bcc;
         private String type;
+        private final List<Personalization> personalizations = new ArrayList<>();
+        private Map<String, String> variables;
 
         public Builder(String from, String[] to, String subject, String text) {
             this.from = from;
@@ -87,158 +185,39 @@ public class SendGridRequest extends MailRequest {
             return this;
         }
 
-        public SendGridRequest build() {
-            return new SendGridRequest(this);
-        }
-    }
-
-    private static class Envelope {
-        private Personalization[] personalizations;
-        private From from;
-        private Content[] content;
-
-        Envelope(Personalization[] personalizations, From from, Content[] content) {
-            this.personalizations = personalizations;
-            this.from = from;
-            this.content = content;
-        }
-
-        public Personalization[] getPersonalizations() {
-            return personalizations;
+        /**
+         * @param variables Variables of the recipients given to the constructor and to cc() and bcc(), see {@link RecipientVariables}
+         */
+        public Builder variables(Map<String, String> variables) {
+            this.variables = variables;
+            return this;
         }
 
-        public From getFrom() {
-            return from;
+        /**
+         * Adds another email with the same content but its own recipients and variables, the ones given to the constructor, cc(), bcc() and variables()
+         * are the first one
+         */
+        public Builder personalization(String[] to, String[] cc, String[] bcc, Map<String, String> variables) {
+            personalizations.add(new Personalization(to, cc, bcc, variables));
+            return this;
         }
 
-        public Content[] getContent() {
-            return content;
+        public SendGridRequest build() {
+            return new SendGridRequest(this);
         }
     }
 
     private static class Personalization {
-        private To[] to;
-        private Cc[] cc;
-        private Bcc[] bcc;
-        private String subject;
+        private final String[] to;
+        private final String[] cc;
+        private final String[] bcc;
+        private final Map<String, String> variables;
 
-        Personalization(To[] to, Cc[] cc, Bcc[] bcc, String subject) {
+        Personalization(String[] to, String[] cc, String[] bcc, Map<String, String> variables) {
             this.to = to;
             this.cc = cc;
             this.bcc = bcc;
-            this.subject = subject;
-        }
-
-        public To[] getTo() {
-            return to;
-        }
-
-        public String getSubject() {
-            return subject;
-        }
-
-        public Cc[] getCc() {
-            return cc;
-        }
-
-        public Bcc[] getBcc() {
-            return bcc;
-        }
-    }
-
-    private static class To {
-        private String name;
-        private String email;
-
-        To(String email) {
-            this.email = email;
-        }
-
-        To(String name, String email) {
-            this.name = name;
-            this.email = email;
-        }
-
-        public String getName() {
-            return name;
-        }
-
-        public String getEmail() {
-            return email;
-        }
-    }
-
-    private static class Cc {
-        private String name;
-        private String email;
-
-        Cc(String email) {
-            this.email = email;
-        }
-
-        Cc(String name, String email) {
-            this.name = name;
-            this.email = email;
-        }
-
-        public String getName() {
-            return name;
-        }
-
-        public String getEmail() {
-            return email;
-        }
-    }
-
-    private static class Bcc {
-        private String name;
-        private String email;
-
-        Bcc(String email) {
-            this.email = email;
-        }
-
-        Bcc(String name, String email) {
-            this.name = name;
-            this.email = email;
-        }
-
-        public String getName() {
-            return name;
-        }
-
-        public String getEmail() {
-            return email;
-        }
-    }
-
-    private static class From {
-        private String email;
-
-        From(String email) {
-            this.email = email;
-        }
-
-        public String getEmail() {
-            return email;
-        }
-    }
-
-    private static class Content {
-        private String type;
-        private String value;
-
-        Content(String type, String value) {
-            this.type = type;
-            this.value = value;
-        }
-
-        public String getType() {
-            return type;
-        }
-
-        public String getValue() {
-            return value;
+            this.variables = variables;
         }
     }
 
@@ -0,0 +1,217 @@
+package com.totoro.providers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sending to a provider that keeps failing or is too slow, so the senders fail over straight away instead of waiting for timeouts.
+ * <p>
+ * CLOSED - calls go through and their outcome is counted over a rolling window. Once there are enough calls and the failure rate or the slow call rate goes over its
+ * threshold the circuit opens.
+ * OPEN - calls are rejected until the open duration is over, then the circuit becomes half open.
+ * HALF_OPEN - a few trial calls go through, the circuit closes when all of them succeed and opens again as soon as one of them fails.
+ * <p>
+ * Checking a closed circuit is a volatile read, only recording an outcome and the transitions take the lock.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+    private static final int BUCKETS = 10;
+
+    private final String name;
+    private final long bucketSize;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final long slowCallThreshold;
+    private final int slowCallRateThreshold;
+    private final long openDuration;
+    private final int halfOpenCalls;
+
+    /**
+     * Rolling window, one bucket per tenth of the window. Guarded by this
+     */
+    private final long[] bucketIndex = new long[BUCKETS];
+    private final int[] calls = new int[BUCKETS];
+    private final int[] failures = new int[BUCKETS];
+    private final int[] slowCalls = new int[BUCKETS];
+
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param name                  Provider name
+     * @param window                Size of the rolling window in milliseconds
+     * @param minimumCalls          Number of calls in the window before the rates are looked at
+     * @param failureRateThreshold  Percentage of failed calls that opens the circuit
+     * @param slowCallThreshold     Milliseconds after which a call is slow
+     * @param slowCallRateThreshold Percentage of slow calls that opens the circuit
+     * @param openDuration          How long the circuit stays open in milliseconds
+     * @param halfOpenCalls         Number of trial calls when the circuit is half open
+     */
+    public CircuitBreaker(String name, long window, int minimumCalls, int failureRateThreshold, long slowCallThreshold, int slowCallRateThreshold,
+                          long openDuration, int halfOpenCalls) {
+        this.name = name;
+        this.bucketSize = Math.max(window / BUCKETS, 1);
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallThreshold = slowCallThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openDuration = openDuration;
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Asks whether a call can go out. A successful call must be followed by {@link #onSuccess}, {@link #onFailure} or {@link #release}
+     *
+     * @return False if the circuit is open
+     */
+    public boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (System.currentTimeMillis() - openedAt < openDuration) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                transitionTo(State.HALF_OPEN);
+                halfOpenPermits = halfOpenCalls;
+                halfOpenSuccesses = 0;
+            }
+            if (state == State.HALF_OPEN) {
+                if (halfOpenPermits > 0) {
+                    halfOpenPermits--;
+                    return true;
+                }
+                rejected.incrementAndGet();
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Gives back a call that didn't go out after all, e.g. because the provider is throttled
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            halfOpenPermits++;
+        }
+    }
+
+    /**
+     * @param elapsed How long the call took in milliseconds
+     */
+    public void onSuccess(long elapsed) {
+        record(false, elapsed >= slowCallThreshold);
+    }
+
+    /**
+     * @param elapsed How long the call took in milliseconds
+     */
+    public void onFailure(long elapsed) {
+        record(true, elapsed >= slowCallThreshold);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return How many calls have been rejected because of the circuit
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private synchronized void record(boolean failed, boolean slow) {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case HALF_OPEN:
+                if (failed || slow) {
+                    open(now);
+                } else if (++halfOpenSuccesses >= halfOpenCalls) {
+                    transitionTo(State.CLOSED);
+                    clearWindow();
+                }
+                return;
+            case OPEN:
+                // The call went out before the circuit opened
+                return;
+            default:
+                break;
+        }
+
+        long index = now / bucketSize;
+        int bucket = (int) (index % BUCKETS);
+        if (bucketIndex[bucket] != index) {
+            bucketIndex[bucket] = index;
+            calls[bucket] = 0;
+            failures[bucket] = 0;
+            slowCalls[bucket] = 0;
+        }
+        calls[bucket]++;
+        if (failed) {
+            failures[bucket]++;
+        }
+        if (slow) {
+            slowCalls[bucket]++;
+        }
+
+        int totalCalls = 0;
+        int totalFailures = 0;
+        int totalSlowCalls = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (index - bucketIndex[i] < BUCKETS) {
+                totalCalls += calls[i];
+                totalFailures += failures[i];
+                totalSlowCalls += slowCalls[i];
+            }
+        }
+        if (totalCalls < minimumCalls) {
+            return;
+        }
+
+        if (totalFailures * 100 >= failureRateThreshold * totalCalls || totalSlowCalls * 100 >= slowCallRateThreshold * totalCalls) {
+            logger.warn("{} out of {} calls to {} have failed and {} have been slow", totalFailures, totalCalls, name, totalSlowCalls);
+            open(now);
+        }
+    }
+
+    private void open(long now) {
+        openedAt = now;
+        transitionTo(State.OPEN);
+        clearWindow();
+    }
+
+    private void transitionTo(State next) {
+        if (state != next) {
+            logger.warn("The circuit of {} is now {}", name, next);
+            state = next;
+        }
+    }
+
+    private void clearWindow() {
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketIndex[i] = -BUCKETS;
+            calls[i] = 0;
+            failures[i] = 0;
+            slowCalls[i] = 0;
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.totoro.providers;
+
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds one {@link CircuitBreaker} per email provider (see 'email.circuit-breaker.*' in application.properties) and publishes their state to the '/metrics' endpoint
+ */
+@Component
+public class CircuitBreakers implements PublicMetrics {
+
+    private final Map<String, CircuitBreaker> breakers = new LinkedHashMap<>();
+
+    @Autowired
+    public CircuitBreakers(SendGridHttpConfiguration sendGridHttpConfig, MailGunHttpConfiguration mailGunHttpConfig,
+                           @Value("${email.circuit-breaker.window}") long window,
+                           @Value("${email.circuit-breaker.minimum-calls}") int minimumCalls,
+                           @Value("${email.circuit-breaker.failure-rate-threshold}") int failureRateThreshold,
+                           @Value("${email.circuit-breaker.slow-call-threshold}") long slowCallThreshold,
+                           @Value("${email.circuit-breaker.slow-call-rate-threshold}") int slowCallRateThreshold,
+                           @Value("${email.circuit-breaker.open-duration}") long openDuration,
+                           @Value("${email.circuit-breaker.half-open-calls}") int halfOpenCalls) {
+        for (MailHttpConfiguration config : new MailHttpConfiguration[]{sendGridHttpConfig, mailGunHttpConfig}) {
+            breakers.put(config.getProvider(), new CircuitBreaker(config.getProvider(), window, minimumCalls, failureRateThreshold, slowCallThreshold,
+                    slowCallRateThreshold, openDuration, halfOpenCalls));
+        }
+    }
+
+    /**
+     * @param config Provider config
+     * @return The circuit breaker of the provider
+     */
+    public CircuitBreaker get(MailHttpConfiguration config) {
+        return breakers.get(config.getProvider());
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+            String prefix = "mail.circuit." + entry.getKey() + ".";
+
+            // 0 closed, 1 open, 2 half open
+            metrics.add(new Metric<>(prefix + "state", entry.getValue().getState().ordinal()));
+            metrics.add(new Metric<>(prefix + "rejected", entry.getValue().getRejected()));
+        }
+
+        return metrics;
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.totoro.providers;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the latest call latencies of a provider in a ring buffer and works out a percentile of them. The percentile is recomputed every so many samples rather than
+ * on every read so reading it is just a volatile read.
+ */
+public class LatencyWindow {
+
+    private final AtomicLongArray samples;
+    private final AtomicLong count = new AtomicLong();
+    private final double percentile;
+    private final int minimumSamples;
+    private final int recomputeEvery;
+
+    private volatile long value = -1;
+
+    /**
+     * @param size           How many of the latest samples are kept
+     * @param percentile     Percentile to work out, e.g. 95
+     * @param minimumSamples How many samples are needed before there's a percentile
+     */
+    public LatencyWindow(int size, double percentile, int minimumSamples) {
+        this.samples = new AtomicLongArray(size);
+        this.percentile = percentile;
+        this.minimumSamples = Math.min(minimumSamples, size);
+        this.recomputeEvery = Math.max(1, Math.min(this.minimumSamples, size / 8));
+    }
+
+    /**
+     * @param latency Latency of a call in milliseconds
+     */
+    public void record(long latency) {
+        long index = count.getAndIncrement();
+        samples.set((int) (index % samples.length()), latency);
+
+        long recorded = index + 1;
+        if (recorded == minimumSamples || recorded > minimumSamples && recorded % recomputeEvery == 0) {
+            recompute(Math.min(recorded, samples.length()));
+        }
+    }
+
+    /**
+     * @return The percentile in milliseconds or -1 when there aren't enough samples yet
+     */
+    public long get() {
+        return value;
+    }
+
+    private void recompute(long size) {
+        long[] sorted = new long[(int) size];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        value = sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.totoro.providers;
+
+/**
+ * An immutable snapshot of the last health check against an email provider. A new instance is published after every probe so readers never see a half updated state
+ */
+public final class ProviderHealth {
+
+    public enum Status {
+        /**
+         * The provider hasn't been probed yet
+         */
+        UNKNOWN,
+        UP,
+        DOWN
+    }
+
+    private final Status status;
+    /**
+     * How long the last probe took in milliseconds
+     */
+    private final long latency;
+    private final int consecutiveFailures;
+    private final long checkedAt;
+
+    public ProviderHealth(Status status, long latency, int consecutiveFailures, long checkedAt) {
+        this.status = status;
+        this.latency = latency;
+        this.consecutiveFailures = consecutiveFailures;
+        this.checkedAt = checkedAt;
+    }
+
+    /**
+     * @return The snapshot we use before the first probe has completed
+     */
+    public static ProviderHealth unknown() {
+        return new ProviderHealth(Status.UNKNOWN, 0, 0, 0);
+    }
+
+    /**
+     * A provider is considered available unless the last probe has failed. We don't know anything about it before the first probe so we give it the benefit of the doubt
+     *
+     * @return True if the send path can use the provider
+     */
+    public boolean isAvailable() {
+        return status != Status.DOWN;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public long getCheckedAt() {
+        return checkedAt;
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.totoro.providers;
+
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Probes the email providers in the background, each one on its own cadence, and keeps the latest {@link ProviderHealth} per provider.
+ * The send path only reads the cached snapshot so it doesn't pay for a health check round trip on every email.
+ */
+@Component
+public class ProviderHealthMonitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProviderHealthMonitor.class);
+    private static final int PROBE_TIMEOUT = 3000;
+
+    private final SendGridHttpConfiguration sendGridHttpConfig;
+    private final MailGunHttpConfiguration mailGunHttpConfig;
+    private final ProviderTransports transports;
+    /**
+     * Latest snapshot keyed by the provider name
+     */
+    private final ConcurrentMap<String, ProviderHealth> snapshots = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ProviderHealthMonitor(SendGridHttpConfiguration sendGridHttpConfig, MailGunHttpConfiguration mailGunHttpConfig,
+                                 ProviderTransports transports) {
+        this.sendGridHttpConfig = sendGridHttpConfig;
+        this.mailGunHttpConfig = mailGunHttpConfig;
+        this.transports = transports;
+    }
+
+    @Scheduled(fixedDelayString = "${mail.http-api.health-check-interval}")
+    public void checkSendGrid() {
+        check(sendGridHttpConfig);
+    }
+
+    @Scheduled(fixedDelayString = "${second.mail.http-api.health-check-interval}")
+    public void checkMailGun() {
+        check(mailGunHttpConfig);
+    }
+
+    /**
+     * Returns the latest snapshot of the provider without doing any I/O
+     *
+     * @param config Provider config
+     * @return Latest health snapshot or an 'unknown' one if the provider hasn't been probed yet
+     */
+    public ProviderHealth getHealth(MailHttpConfiguration config) {
+        ProviderHealth health = snapshots.get(config.getProvider());
+        return health == null ? ProviderHealth.unknown() : health;
+    }
+
+    /**
+     * @param config Provider config
+     * @return True if the provider can be used to send emails
+     */
+    public boolean isAvailable(MailHttpConfiguration config) {
+        return getHealth(config).isAvailable();
+    }
+
+    /**
+     * Probes the provider and publishes a new snapshot
+     *
+     * @param config Provider config
+     * @return The new snapshot
+     */
+    ProviderHealth check(MailHttpConfiguration config) {
+        ProviderHealth previous = getHealth(config);
+
+        long start = System.nanoTime();
+        boolean up = healthCheck(config);
+        long latency = (System.nanoTime() - start) / 1000000L;
+
+        ProviderHealth current;
+        if (up) {
+            current = new ProviderHealth(ProviderHealth.Status.UP, latency, 0, System.currentTimeMillis());
+        } else {
+            current = new ProviderHealth(ProviderHealth.Status.DOWN, latency, previous.getConsecutiveFailures() + 1, System.currentTimeMillis());
+        }
+        snapshots.put(config.getProvider(), current);
+
+        if (previous.getStatus() != current.getStatus()) {
+            logger.info("Provider {} is now {} (latency {}ms)", config.getProvider(), current.getStatus(), latency);
+        }
+
+        return current;
+    }
+
+    /**
+     * A simple way of checking if the server is responding
+     *
+     * @param config Provider config
+     * @return True if the server returns HTTP_OK or False if the server cannot be reached
+     */
+    private boolean healthCheck(MailHttpConfiguration config) {
+        try {
+            return transports.get(config).probe(PROBE_TIMEOUT) == HttpURLConnection.HTTP_OK;
+        } catch (IOException e) {
+            // TODO: Send a notification to the person responsible
+            logger.error("Ummm, it looks like I couldn't establish a connection to " + e.getMessage());
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.totoro.providers;
+
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedges an email to the next provider when the provider it has been routed to is slower than usual (see 'email.hedge.*') to take it.
+ * <p>
+ * Neither provider lets us send the same email twice safely, so an email is only hedged while its request body hasn't been written yet, i.e. while we're still
+ * waiting for a pooled connection or for the connection to be set up. Once the body is on its way we wait for the provider's answer (bounded by the read timeout).
+ * See {@link SendGuard}. The delay is therefore worked out from how long that phase takes (lease plus connect), not from the whole call which would put it
+ * long after the point where an email can still be hedged.
+ * <p>
+ * It's a sequential failover rather than a real hedge: the email is never sent to both providers at once, we don't take the first of two answers.
+ */
+@Component
+public class ProviderHedging implements PublicMetrics, DisposableBean {
+
+    private final Map<String, LatencyWindow> latencies = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> hedged = new LinkedHashMap<>();
+    private final ScheduledThreadPoolExecutor timer;
+    private final boolean enabled;
+    private final long minimumDelay;
+    private final long maximumDelay;
+
+    /**
+     * @param percentile     The email is hedged when the provider has taken longer than this percentile of its latest calls
+     * @param window         How many of the latest calls the percentile is worked out from
+     * @param minimumSamples How many calls a provider needs to have made before its emails are hedged
+     * @param minimumDelay   Milliseconds, an email is never hedged sooner than this
+     * @param maximumDelay   Milliseconds, an email is always hedged by this time if the body hasn't been written
+     */
+    @Autowired
+    public ProviderHedging(SendGridHttpConfiguration sendGridHttpConfig, MailGunHttpConfiguration mailGunHttpConfig,
+                           @Value("${email.hedge.enabled}") boolean enabled,
+                           @Value("${email.hedge.percentile}") double percentile,
+                           @Value("${email.hedge.window}") int window,
+                           @Value("${email.hedge.minimum-samples}") int minimumSamples,
+                           @Value("${email.hedge.minimum-delay}") long minimumDelay,
+                           @Value("${email.hedge.maximum-delay}") long maximumDelay) {
+        this.enabled = enabled;
+        this.minimumDelay = minimumDelay;
+        this.maximumDelay = maximumDelay;
+        for (MailHttpConfiguration config : new MailHttpConfiguration[]{sendGridHttpConfig, mailGunHttpConfig}) {
+            latencies.put(config.getProvider(), new LatencyWindow(window, percentile, minimumSamples));
+            hedged.put(config.getProvider(), new AtomicLong());
+        }
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("hedge-timer-");
+        threadFactory.setDaemon(true);
+        timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+        // Most emails are sent well before their hedge is due, don't keep the cancelled timers around
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Starts the hedge timer of an email
+     *
+     * @param config Provider the email has been routed to
+     * @return The guard to pass to the transport or null when the email shouldn't be hedged
+     */
+    public SendGuard guard(MailHttpConfiguration config) {
+        long delay = getDelay(config);
+        if (delay < 0) {
+            return null;
+        }
+
+        final SendGuard guard = new SendGuard();
+        final AtomicLong counter = hedged.get(config.getProvider());
+        guard.setTimer(timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (guard.hedge()) {
+                    counter.incrementAndGet();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+
+        return guard;
+    }
+
+    /**
+     * @param config  Provider config
+     * @param elapsed Milliseconds from the start of a call until its body started to be written, or until it failed without getting there
+     */
+    public void record(MailHttpConfiguration config, long elapsed) {
+        latencies.get(config.getProvider()).record(elapsed);
+    }
+
+    /**
+     * @param config Provider config
+     * @return Milliseconds after which an email to the provider gets hedged or -1 when it doesn't
+     */
+    public long getDelay(MailHttpConfiguration config) {
+        long percentile = latencies.get(config.getProvider()).get();
+        if (!enabled || percentile < 0) {
+            return -1;
+        }
+
+        return Math.max(minimumDelay, Math.min(percentile, maximumDelay));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        for (Map.Entry<String, LatencyWindow> entry : latencies.entrySet()) {
+            String prefix = "mail.hedge." + entry.getKey() + ".";
+
+            metrics.add(new Metric<>(prefix + "percentile", entry.getValue().get()));
+            metrics.add(new Metric<>(prefix + "hedged", hedged.get(entry.getKey()).get()));
+        }
+
+        return metrics;
+    }
+
+    @Override
+    public void destroy() {
+        timer.shutdownNow();
+    }
+
+}
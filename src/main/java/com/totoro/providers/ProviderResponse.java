@@ -0,0 +1,65 @@
+package com.totoro.providers;
+
+import org.apache.http.Header;
+
+/**
+ * The response we got back from an email provider. The body has been read (up to a cap, see {@link ResponseReader}) so the connection is already released
+ */
+public class ProviderResponse {
+
+    private final int statusCode;
+    private final Header[] headers;
+    private final String body;
+    private final String id;
+    private final String message;
+    private final String errorMessage;
+
+    /**
+     * @param id           'id' of a json body
+     * @param message      'message' of a json body
+     * @param errorMessage 'errors[0].message' of a json body
+     */
+    public ProviderResponse(int statusCode, Header[] headers, String body, String id, String message, String errorMessage) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+        this.id = id;
+        this.message = message;
+        this.errorMessage = errorMessage;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @param name Header name, case insensitive
+     * @return The first value of the header or null if the provider didn't send it
+     */
+    public String getHeader(String name) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.totoro.providers;
+
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which provider an email goes to first. The traffic is spread by the configured weights (see 'http-api.routing.weight' in the mail properties), scaled down by
+ * the live error rate and latency of every provider (exponentially weighted moving averages) so a slow or failing provider sheds load on its own.
+ * <p>
+ * A provider always keeps a small share of the traffic so we notice when it gets better. The moving averages are updated with compare-and-set.
+ */
+@Component
+public class ProviderRouter implements PublicMetrics {
+
+    private final Map<String, Score> scores = new LinkedHashMap<>();
+    private final double alpha;
+    private final double latencyTarget;
+    private final double minimumShare;
+
+    /**
+     * @param alpha         How much a new sample counts in the moving averages, between 0 and 1
+     * @param latencyTarget Milliseconds, a provider slower than this gets less traffic in proportion
+     * @param minimumShare  Share of its weight that a provider keeps no matter how bad it is
+     */
+    @Autowired
+    public ProviderRouter(SendGridHttpConfiguration sendGridHttpConfig, MailGunHttpConfiguration mailGunHttpConfig,
+                          @Value("${email.routing.ewma-alpha}") double alpha,
+                          @Value("${email.routing.latency-target}") long latencyTarget,
+                          @Value("${email.routing.minimum-share}") double minimumShare) {
+        this.alpha = alpha;
+        this.latencyTarget = latencyTarget;
+        this.minimumShare = minimumShare;
+        for (MailHttpConfiguration config : new MailHttpConfiguration[]{sendGridHttpConfig, mailGunHttpConfig}) {
+            scores.put(config.getProvider(), new Score(config.getRoutingWeight()));
+        }
+    }
+
+    /**
+     * Orders the providers for a single email, the first one is picked at random by the effective weights and the rest follow from the highest weight
+     *
+     * @param candidates Providers that can take the email
+     * @return The same providers in the order they should be tried
+     */
+    public List<MailHttpConfiguration> route(List<MailHttpConfiguration> candidates) {
+        if (candidates.size() < 2) {
+            return candidates;
+        }
+
+        final Map<MailHttpConfiguration, Double> weights = new LinkedHashMap<>();
+        double total = 0;
+        for (MailHttpConfiguration config : candidates) {
+            double weight = getEffectiveWeight(config);
+            weights.put(config, weight);
+            total += weight;
+        }
+
+        List<MailHttpConfiguration> routed = new ArrayList<>(candidates);
+        double pick = ThreadLocalRandom.current().nextDouble() * total;
+        for (int i = 0; i < routed.size(); i++) {
+            pick -= weights.get(routed.get(i));
+            if (pick < 0 || i == routed.size() - 1) {
+                MailHttpConfiguration first = routed.remove(i);
+                Collections.sort(routed, new Comparator<MailHttpConfiguration>() {
+                    @Override
+                    public int compare(MailHttpConfiguration o1, MailHttpConfiguration o2) {
+                        return Double.compare(weights.get(o2), weights.get(o1));
+                    }
+                });
+                routed.add(0, first);
+                break;
+            }
+        }
+
+        return routed;
+    }
+
+    /**
+     * @param config  Provider config
+     * @param elapsed How long the call took in milliseconds
+     */
+    public void onSuccess(MailHttpConfiguration config, long elapsed) {
+        Score score = scores.get(config.getProvider());
+        score.latency.update(elapsed, alpha);
+        score.errors.update(0, alpha);
+    }
+
+    /**
+     * @param config  Provider config
+     * @param elapsed How long the call took in milliseconds
+     */
+    public void onFailure(MailHttpConfiguration config, long elapsed) {
+        Score score = scores.get(config.getProvider());
+        score.latency.update(elapsed, alpha);
+        score.errors.update(1, alpha);
+    }
+
+    /**
+     * @param config Provider config
+     * @return The configured weight scaled down by the error rate and by how much the provider is slower than the target
+     */
+    public double getEffectiveWeight(MailHttpConfiguration config) {
+        Score score = scores.get(config.getProvider());
+        double latency = score.latency.get();
+        double health = 1 - score.errors.get();
+        if (latency > latencyTarget) {
+            health *= latencyTarget / latency;
+        }
+
+        return score.weight * Math.max(health, minimumShare);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        for (Map.Entry<String, Score> entry : scores.entrySet()) {
+            String prefix = "mail.routing." + entry.getKey() + ".";
+            Score score = entry.getValue();
+
+            metrics.add(new Metric<>(prefix + "latency", score.latency.get()));
+            metrics.add(new Metric<>(prefix + "error-rate", score.errors.get()));
+        }
+
+        return metrics;
+    }
+
+    private static final class Score {
+        private final int weight;
+        private final Ewma latency = new Ewma();
+        private final Ewma errors = new Ewma();
+
+        private Score(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Exponentially weighted moving average kept as the bits of a double in an AtomicLong
+     */
+    private static final class Ewma {
+        private final AtomicLong bits = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+
+        private void update(double sample, double alpha) {
+            while (true) {
+                long current = bits.get();
+                double average = Double.longBitsToDouble(current);
+                // The first sample is the average
+                double next = Double.isNaN(average) ? sample : average + alpha * (sample - average);
+                if (bits.compareAndSet(current, Double.doubleToLongBits(next))) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return The average or 0 before the first sample
+         */
+        private double get() {
+            double average = Double.longBitsToDouble(bits.get());
+            return Double.isNaN(average) ? 0 : average;
+        }
+    }
+
+}
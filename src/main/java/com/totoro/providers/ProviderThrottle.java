@@ -0,0 +1,162 @@
+package com.totoro.providers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the requests to an email provider, both the rate (a token bucket) and the number of requests in flight. Everything is done with compare-and-set so the
+ * senders never block each other.
+ * <p>
+ * The token bucket is kept as the time at which the bucket would be full again (GCRA). A token is available when taking it doesn't push that time more than a full bucket
+ * into the future, so a single AtomicLong is the whole state.
+ */
+public class ProviderThrottle {
+
+    /**
+     * How long a waiting sender sleeps between attempts when it has to wait for a request in flight to finish
+     */
+    private static final long IN_FLIGHT_POLL = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Nanos between two tokens, 0 means no rate limit
+     */
+    private final long interval;
+    /**
+     * How far into the future the bucket can be emptied, i.e. the size of the bucket in nanos
+     */
+    private final long tolerance;
+    private final int maxInFlight;
+
+    private final AtomicLong fullAt;
+    private final AtomicLong pausedUntil;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * @param ratePerSecond Requests per second, 0 means no limit
+     * @param burst         Number of requests that can go out at once after a quiet period
+     * @param maxInFlight   Requests in flight at the same time, 0 means no limit
+     */
+    public ProviderThrottle(double ratePerSecond, int burst, int maxInFlight) {
+        this.interval = ratePerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0;
+        this.tolerance = interval * Math.max(burst, 1);
+        this.maxInFlight = maxInFlight;
+
+        long now = System.nanoTime();
+        this.fullAt = new AtomicLong(now);
+        this.pausedUntil = new AtomicLong(now);
+    }
+
+    /**
+     * Takes a token and a slot for a request in flight. A successful call must be followed by {@link #release()} once the request has finished
+     *
+     * @param timeout How long to wait in nanos, 0 doesn't wait at all
+     * @return True if the request can go out
+     */
+    public boolean acquire(long timeout) {
+        long deadline = System.nanoTime() + timeout;
+
+        while (!tryEnter()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throttled.incrementAndGet();
+                return false;
+            }
+            LockSupport.parkNanos(Math.min(remaining, IN_FLIGHT_POLL));
+        }
+
+        long wait;
+        while ((wait = tryTake()) > 0) {
+            if (System.nanoTime() + wait > deadline) {
+                release();
+                throttled.incrementAndGet();
+                return false;
+            }
+            LockSupport.parkNanos(wait);
+        }
+
+        return true;
+    }
+
+    /**
+     * Gives back the slot of a request that has finished
+     */
+    public void release() {
+        if (maxInFlight > 0) {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stops handing out tokens for a while, e.g. when the provider has told us to slow down
+     *
+     * @param millis How long
+     */
+    public void pause(long millis) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long current;
+        do {
+            current = pausedUntil.get();
+            if (current - until >= 0) {
+                return;
+            }
+        } while (!pausedUntil.compareAndSet(current, until));
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return How many requests couldn't go out in time
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    private boolean tryEnter() {
+        if (maxInFlight <= 0) {
+            return true;
+        }
+
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+    /**
+     * @return 0 if a token has been taken, otherwise how many nanos until the next token
+     */
+    private long tryTake() {
+        long now = System.nanoTime();
+        long paused = pausedUntil.get() - now;
+        if (paused > 0) {
+            return paused;
+        }
+        if (interval == 0) {
+            return 0;
+        }
+
+        while (true) {
+            long current = fullAt.get();
+            // An idle bucket is full, it doesn't keep collecting tokens
+            long next = (current - now > 0 ? current : now) + interval;
+            long wait = next - now - tolerance;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.totoro.providers;
+
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds one {@link ProviderThrottle} per email provider (see 'http-api.rate-limit.*' and 'http-api.max-in-flight' in the mail properties) and publishes them to the
+ * '/metrics' endpoint
+ */
+@Component
+public class ProviderThrottles implements PublicMetrics {
+
+    private final Map<String, ProviderThrottle> throttles = new LinkedHashMap<>();
+
+    @Autowired
+    public ProviderThrottles(SendGridHttpConfiguration sendGridHttpConfig, MailGunHttpConfiguration mailGunHttpConfig) {
+        register(sendGridHttpConfig);
+        register(mailGunHttpConfig);
+    }
+
+    /**
+     * @param config Provider config
+     * @return The throttle of the provider
+     */
+    public ProviderThrottle get(MailHttpConfiguration config) {
+        return throttles.get(config.getProvider());
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        for (Map.Entry<String, ProviderThrottle> entry : throttles.entrySet()) {
+            String prefix = "mail.throttle." + entry.getKey() + ".";
+
+            metrics.add(new Metric<>(prefix + "in-flight", entry.getValue().getInFlight()));
+            metrics.add(new Metric<>(prefix + "throttled", entry.getValue().getThrottled()));
+        }
+
+        return metrics;
+    }
+
+    private void register(MailHttpConfiguration config) {
+        throttles.put(config.getProvider(), new ProviderThrottle(config.getRateLimit(), config.getRateLimitBurst(), config.getMaxInFlight()));
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.totoro.providers;
+
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.mails.MailRequest;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP transport to a single email provider. It keeps a bounded pool of keep-alive connections (TLS sessions are reused along with them) so we don't pay for the
+ * connection setup on every email. The authorization header is computed once since the key doesn't change at runtime.
+ * <p>
+ * Instances are thread safe and are meant to be shared, see {@link ProviderTransports}
+ */
+public class ProviderTransport implements Closeable {
+
+    /**
+     * Idle connections are closed after this many milliseconds, providers tend to drop them on their side anyway
+     */
+    private static final long MAX_IDLE_TIME = 30000;
+    /**
+     * Provider responses are tiny, anything bigger than this many bytes is cut off
+     */
+    private static final int MAX_RESPONSE_SIZE = 64 * 1024;
+
+    private final MailHttpConfiguration config;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final RequestConfig requestConfig;
+    private final String authorization;
+    /**
+     * Request bodies are always written in UTF-8, make sure the provider knows it
+     */
+    private final String contentType;
+
+    public ProviderTransport(MailHttpConfiguration config) {
+        this.config = config;
+        this.authorization = config.getAuthorization();
+        ContentType configured = ContentType.parse(config.getContentType());
+        this.contentType = (configured.getCharset() == null ? configured.withCharset(StandardCharsets.UTF_8) : configured).toString();
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(config.getPoolMaxConnections());
+        // We only ever talk to one host so the whole pool is available to it
+        connectionManager.setDefaultMaxPerRoute(config.getPoolMaxConnections());
+
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(config.getConnectTimeout())
+                .setSocketTimeout(config.getReadTimeout())
+                .setConnectionRequestTimeout(config.getPoolAcquireTimeout())
+                .setRedirectsEnabled(false)
+                .build();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                // Connections aren't tied to a user so any pooled connection can be reused by any request
+                .disableConnectionState()
+                .disableCookieManagement()
+                .evictExpiredConnections()
+                .evictIdleConnections(MAX_IDLE_TIME, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Sends the request body to the provider
+     *
+     * @param mailRequest Request body
+     * @return Response from the provider
+     * @throws IOException When we couldn't get a connection from the pool, connect to the provider or read its response in time
+     */
+    public ProviderResponse send(MailRequest mailRequest) throws IOException {
+        return send(mailRequest, null);
+    }
+
+    /**
+     * Sends the request body to the provider unless the email gets hedged before the body is written
+     *
+     * @param mailRequest Request body
+     * @param guard       Hedge guard of the email, null when the email can't be hedged
+     * @return Response from the provider
+     * @throws IOException When we couldn't get a connection from the pool, connect to the provider or read its response in time, or the email has been hedged
+     */
+    public ProviderResponse send(MailRequest mailRequest, SendGuard guard) throws IOException {
+        MailRequestEntity entity = new MailRequestEntity(mailRequest, guard);
+        entity.setContentType(contentType);
+
+        HttpUriRequest request = RequestBuilder.create(config.getRequestMethod())
+                .setUri(getTargetUrl())
+                .setHeader(HttpHeaders.ACCEPT, config.getAcceptType())
+                .setHeader(HttpHeaders.AUTHORIZATION, authorization)
+                .setEntity(entity)
+                .build();
+        if (guard != null) {
+            guard.bind(request);
+        }
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            return ResponseReader.read(response, MAX_RESPONSE_SIZE);
+        }
+    }
+
+    /**
+     * A simple way of checking if the provider is responding, it sends an OPTIONS request over one of the pooled connections
+     *
+     * @param timeout Connect and read timeout in milliseconds
+     * @return Status code returned by the provider
+     * @throws IOException When the provider cannot be reached
+     */
+    public int probe(int timeout) throws IOException {
+        RequestConfig probeConfig = RequestConfig.copy(requestConfig)
+                .setConnectTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+
+        HttpUriRequest request = RequestBuilder.options(getUrl(config.getUrl()))
+                .setConfig(probeConfig)
+                .build();
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    /**
+     * @return Current state of the connection pool
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    public MailHttpConfiguration getConfig() {
+        return config;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    private String getTargetUrl() throws IOException {
+        return getUrl(config.getRedirectUrl() == null ? config.getUrl() : config.getRedirectUrl());
+    }
+
+    /**
+     * Streams the request body straight to the connection, the body is only written if the email hasn't been hedged to the other provider in the meantime
+     */
+    private static final class MailRequestEntity extends AbstractHttpEntity {
+
+        private final MailRequest mailRequest;
+        private final SendGuard guard;
+        private long contentLength = -1;
+
+        private MailRequestEntity(MailRequest mailRequest, SendGuard guard) {
+            this.mailRequest = mailRequest;
+            this.guard = guard;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            if (contentLength < 0) {
+                try {
+                    contentLength = mailRequest.getContentLength();
+                } catch (IOException e) {
+                    // Falls back to chunked encoding, writeTo() will fail the same way anyway
+                    return -1;
+                }
+            }
+
+            return contentLength;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            // Only here for the HttpEntity contract, the client writes the body with writeTo()
+            return new ByteArrayInputStream(mailRequest.getData().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            if (guard != null && !guard.startWriting()) {
+                throw new IOException("The email has been hedged to the other provider");
+            }
+
+            mailRequest.writeTo(outstream);
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    private String getUrl(String url) throws IOException {
+        if (StringUtils.isBlank(url)) {
+            throw new IOException("The url of " + config.getProvider() + " is not configured");
+        }
+
+        return url;
+    }
+
+}
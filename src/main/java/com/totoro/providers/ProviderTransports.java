@@ -0,0 +1,68 @@
+package com.totoro.providers;
+
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds one {@link ProviderTransport} per email provider and publishes the state of their connection pools to the '/metrics' endpoint
+ */
+@Component
+public class ProviderTransports implements PublicMetrics, DisposableBean {
+
+    private final Map<String, ProviderTransport> transports = new LinkedHashMap<>();
+
+    @Autowired
+    public ProviderTransports(SendGridHttpConfiguration sendGridHttpConfig, MailGunHttpConfiguration mailGunHttpConfig) {
+        register(sendGridHttpConfig);
+        register(mailGunHttpConfig);
+    }
+
+    /**
+     * @param config Provider config
+     * @return The transport to the provider
+     */
+    public ProviderTransport get(MailHttpConfiguration config) {
+        return transports.get(config.getProvider());
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        for (Map.Entry<String, ProviderTransport> entry : transports.entrySet()) {
+            String prefix = "mail.transport." + entry.getKey() + ".pool.";
+            PoolStats stats = entry.getValue().getPoolStats();
+
+            metrics.add(new Metric<>(prefix + "leased", stats.getLeased()));
+            metrics.add(new Metric<>(prefix + "available", stats.getAvailable()));
+            metrics.add(new Metric<>(prefix + "pending", stats.getPending()));
+            metrics.add(new Metric<>(prefix + "max", stats.getMax()));
+        }
+
+        return metrics;
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        for (ProviderTransport transport : transports.values()) {
+            transport.close();
+        }
+    }
+
+    private void register(MailHttpConfiguration config) {
+        transports.put(config.getProvider(), new ProviderTransport(config));
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.totoro.providers;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the response of an email provider in a single pass over the connection. A json body is parsed as it's read, only the fields we keep are picked out
+ * ('id', 'message' and 'errors[0].message') and everything else is skipped. The body is capped so a huge or never ending response can't eat up the memory,
+ * whatever is past the cap is left unread and the connection is dropped instead of going back to the pool.
+ */
+final class ResponseReader {
+
+    /**
+     * Thread safe and expensive to create, so it's shared by every response. The stream belongs to the caller so the parser mustn't close it
+     */
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private ResponseReader() {
+    }
+
+    /**
+     * @param response Response from the provider
+     * @param maxSize  How many bytes of the body are read at most
+     * @return The response with its body and fields
+     * @throws IOException If the body cannot be read
+     */
+    static ProviderResponse read(HttpResponse response, int maxSize) throws IOException {
+        int statusCode = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return new ProviderResponse(statusCode, response.getAllHeaders(), "", null, null, null);
+        }
+
+        ContentType contentType = ContentType.get(entity);
+        Charset charset = contentType == null || contentType.getCharset() == null ? StandardCharsets.UTF_8 : contentType.getCharset();
+        long length = entity.getContentLength();
+        CappedInputStream in = new CappedInputStream(entity.getContent(), maxSize, length < 0 || length > maxSize ? 256 : (int) length);
+
+        Fields fields = new Fields();
+        if (contentType != null && contentType.getMimeType().toLowerCase().contains("json")) {
+            parse(in, charset, fields);
+        }
+        in.drain();
+
+        return new ProviderResponse(statusCode, response.getAllHeaders(), in.getBody(charset), fields.id, fields.message, fields.errorMessage);
+    }
+
+    private static void parse(InputStream in, Charset charset, Fields fields) throws IOException {
+        // Jackson works out the UTF flavour by itself, anything else needs to be decoded first
+        try (JsonParser parser = charset.name().startsWith("UTF-") ? JSON_FACTORY.createParser(in) : JSON_FACTORY.createParser(new InputStreamReader(in, charset))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("id".equals(name) && value == JsonToken.VALUE_STRING) {
+                    fields.id = parser.getText();
+                } else if ("message".equals(name) && value == JsonToken.VALUE_STRING) {
+                    fields.message = parser.getText();
+                } else if ("errors".equals(name) && value == JsonToken.START_ARRAY) {
+                    parseErrors(parser, fields);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (JsonProcessingException e) {
+            // Not the json we expected or cut off by the cap, the raw body is still there
+        }
+    }
+
+    private static void parseErrors(JsonParser parser, Fields fields) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("message".equals(name) && value == JsonToken.VALUE_STRING) {
+                    fields.errorMessage = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            token = parser.nextToken();
+        }
+
+        // Only the first error is kept
+        while (token != null && token != JsonToken.END_ARRAY) {
+            parser.skipChildren();
+            token = parser.nextToken();
+        }
+    }
+
+    private static final class Fields {
+        private String id;
+        private String message;
+        private String errorMessage;
+    }
+
+    /**
+     * Keeps the bytes that go through it and stops at the cap as if the body had ended there
+     */
+    private static final class CappedInputStream extends FilterInputStream {
+
+        private final ByteArrayOutputStream body;
+        private int remaining;
+
+        private CappedInputStream(InputStream in, int maxSize, int expectedSize) {
+            super(in);
+            this.body = new ByteArrayOutputStream(expectedSize);
+            this.remaining = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int b = super.read();
+            if (b >= 0) {
+                body.write(b);
+                remaining--;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = super.read(b, off, Math.min(len, remaining));
+            if (read > 0) {
+                body.write(b, off, read);
+                remaining -= read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes still belong to the body
+            byte[] buffer = new byte[(int) Math.min(n, 1024)];
+            int read = read(buffer, 0, buffer.length);
+
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Reads whatever the parser has left behind, up to the cap
+         */
+        private void drain() throws IOException {
+            byte[] buffer = new byte[1024];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                // Keep reading
+            }
+        }
+
+        private String getBody(Charset charset) {
+            return new String(body.toByteArray(), charset);
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.totoro.providers;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides, once per request, whether the request body goes to the provider or the email is hedged to the other provider. Whichever comes first wins so an email can
+ * never be sent to both providers - once the body is being written it's too late to hedge, and once it's hedged the body is never written.
+ * <p>
+ * An email that isn't hedged gets a guard without a timer, so the dispatcher still knows whether its body has left
+ */
+public class SendGuard {
+
+    private static final int PENDING = 0;
+    private static final int WRITING = 1;
+    private static final int HEDGED = 2;
+
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final long createdAt = System.nanoTime();
+    /**
+     * When the body started to be written, in nanos
+     */
+    private volatile long writingAt;
+    private volatile HttpUriRequest request;
+    private volatile Future<?> timer;
+
+    /**
+     * Called by the transport right before it writes the request body
+     *
+     * @return False if the email has been hedged and the body must not be written
+     */
+    public boolean startWriting() {
+        if (state.compareAndSet(PENDING, WRITING)) {
+            writingAt = System.nanoTime();
+            return true;
+        }
+
+        return state.get() == WRITING;
+    }
+
+    /**
+     * Hedges the email if the body hasn't been written yet and aborts the request so the sending thread doesn't wait for the connection any longer
+     *
+     * @return Whether the email has been hedged
+     */
+    public boolean hedge() {
+        if (!state.compareAndSet(PENDING, HEDGED)) {
+            return false;
+        }
+
+        HttpUriRequest current = request;
+        if (current != null) {
+            current.abort();
+        }
+
+        return true;
+    }
+
+    public boolean isHedged() {
+        return state.get() == HEDGED;
+    }
+
+    /**
+     * @return Whether the transport has started writing the body, from then on the provider may have the email even if we never get its response
+     */
+    public boolean hasStartedWriting() {
+        return state.get() == WRITING;
+    }
+
+    /**
+     * @return Milliseconds from the guard's creation until the body started to be written (pool lease and connect), or until now if it hasn't
+     */
+    public long getTimeToWrite() {
+        long end = hasStartedWriting() ? writingAt : System.nanoTime();
+        return TimeUnit.NANOSECONDS.toMillis(end - createdAt);
+    }
+
+    /**
+     * @param request Request to abort when the email gets hedged
+     */
+    void bind(HttpUriRequest request) {
+        this.request = request;
+        // hedge() may have run before the request existed
+        if (isHedged()) {
+            request.abort();
+        }
+    }
+
+    void setTimer(Future<?> timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Stops the hedge timer once the request is over
+     */
+    public void close() {
+        Future<?> current = timer;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.totoro.providers;
+
+/**
+ * What to do with an email when its provider is throttled
+ */
+public enum ThrottlePolicy {
+    /**
+     * Wait for the provider until the deadline, then put the email into the queue
+     */
+    WAIT,
+    /**
+     * Send it to the other provider straight away, put it into the queue when both are throttled
+     */
+    DIVERT,
+    /**
+     * Put it into the queue straight away
+     */
+    QUEUE
+}
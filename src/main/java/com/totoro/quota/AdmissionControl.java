@@ -0,0 +1,148 @@
+package com.totoro.quota;
+
+import com.totoro.dto.MailMessageDto;
+import com.totoro.exceptions.BadRequestException;
+import com.totoro.exceptions.TooManyRequestsException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Quotas on how many emails an API client and a sender ('from') can send in a sliding window (see 'email.quota.*' in application.properties) so that a single
+ * integration cannot use up the provider limits of everyone else. Everything is in memory, so each instance of the application enforces its own share.
+ */
+@Component
+public class AdmissionControl implements PublicMetrics {
+
+    private final SlidingWindowLimiter clients;
+    private final SlidingWindowLimiter senders;
+    private final long clientWindow;
+    private final long senderWindow;
+    private final AtomicLong rejected = new AtomicLong();
+
+    @Autowired
+    public AdmissionControl(@Value("${email.quota.client.limit}") int clientLimit, @Value("${email.quota.client.window}") long clientWindow,
+                            @Value("${email.quota.sender.limit}") int senderLimit, @Value("${email.quota.sender.window}") long senderWindow) {
+        this.clients = new SlidingWindowLimiter(clientLimit, clientWindow);
+        this.senders = new SlidingWindowLimiter(senderLimit, senderWindow);
+        this.clientWindow = clientWindow;
+        this.senderWindow = senderWindow;
+    }
+
+    /**
+     * @param client  API client
+     * @param message Email that the client wants to send
+     * @throws TooManyRequestsException If the client or the sender is over its quota
+     */
+    public void admit(String client, MailMessageDto message) {
+        admit(client, Collections.singletonList(message));
+    }
+
+    /**
+     * Counts the emails towards the quotas of the client and of every sender, either all of them are admitted or none
+     *
+     * @param client   API client
+     * @param messages Emails that the client wants to send
+     * @throws BadRequestException      If the batch is bigger than the quota of the client or of one of the senders, it would never be admitted
+     * @throws TooManyRequestsException If the client or one of the senders is over its quota
+     */
+    public void admit(String client, List<MailMessageDto> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+
+        if (!clients.canEverFit(messages.size())) {
+            throw new BadRequestException(String.format("A batch cannot have more than %d emails, that's your quota of emails per %d seconds",
+                    clients.getLimit(), TimeUnit.MILLISECONDS.toSeconds(clientWindow)));
+        }
+        Map<String, Integer> bySender = countBySender(messages);
+        for (Map.Entry<String, Integer> sender : bySender.entrySet()) {
+            if (!senders.canEverFit(sender.getValue())) {
+                throw new BadRequestException(String.format("A batch cannot have more than %d emails from %s, that's the quota of a sender per %d seconds",
+                        senders.getLimit(), sender.getKey(), TimeUnit.MILLISECONDS.toSeconds(senderWindow)));
+            }
+        }
+
+        long now = System.currentTimeMillis();
+
+        long wait = clients.tryAcquire(client, messages.size(), now);
+        if (wait > 0) {
+            throw reject("You have sent too many emails, please try again later", wait);
+        }
+
+        Map<String, Integer> admitted = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> sender : bySender.entrySet()) {
+            wait = senders.tryAcquire(sender.getKey(), sender.getValue(), now);
+            if (wait > 0) {
+                // Give back what has been counted so far, none of these emails are going to be sent
+                clients.release(client, messages.size(), now);
+                for (Map.Entry<String, Integer> entry : admitted.entrySet()) {
+                    senders.release(entry.getKey(), entry.getValue(), now);
+                }
+
+                throw reject(String.format("Too many emails have been sent from %s, please try again later", sender.getKey()), wait);
+            }
+            admitted.put(sender.getKey(), sender.getValue());
+        }
+    }
+
+    /**
+     * Forgets about the clients and senders that haven't sent anything for a while
+     */
+    @Scheduled(fixedDelayString = "${email.quota.cleanup-interval}")
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        clients.evictIdle(now);
+        senders.evictIdle(now);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("quota.rejected", rejected.get()));
+        metrics.add(new Metric<>("quota.clients", clients.size()));
+        metrics.add(new Metric<>("quota.senders", senders.size()));
+
+        return metrics;
+    }
+
+    private Map<String, Integer> countBySender(List<MailMessageDto> messages) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        if (!senders.isEnabled()) {
+            return counts;
+        }
+
+        for (MailMessageDto message : messages) {
+            // Emails without a sender are rejected by the validation anyway
+            if (message == null || message.getFrom() == null) {
+                continue;
+            }
+
+            String sender = message.getFrom().trim().toLowerCase(Locale.ROOT);
+            Integer count = counts.get(sender);
+            counts.put(sender, count == null ? 1 : count + 1);
+        }
+
+        return counts;
+    }
+
+    private TooManyRequestsException reject(String message, long wait) {
+        rejected.incrementAndGet();
+
+        return new TooManyRequestsException(message, Math.max(TimeUnit.MILLISECONDS.toSeconds(wait + 999), 1));
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.totoro.quota;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Counts the requests of every key (e.g. a client) in a sliding window and tells whether one more request fits into the limit.
+ * <p>
+ * The window is approximated with two fixed windows, the previous one counts in proportion to how much of it still overlaps with the sliding window. Each key has its
+ * own counter which is swapped with compare-and-set, so keys never contend with each other and the same key never blocks either. The map itself is a
+ * {@link ConcurrentHashMap} which is striped internally.
+ */
+public class SlidingWindowLimiter {
+
+    private final int limit;
+    private final long window;
+    private final ConcurrentMap<String, AtomicReference<Counter>> counters = new ConcurrentHashMap<>();
+
+    /**
+     * @param limit  Maximum number of requests in a window, 0 means no limit
+     * @param window Size of the window in milliseconds
+     */
+    public SlidingWindowLimiter(int limit, long window) {
+        this.limit = limit;
+        this.window = window;
+    }
+
+    public boolean isEnabled() {
+        return limit > 0;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param permits Number of requests
+     * @return False if that many requests would be over the limit even in an empty window, no amount of waiting lets them in
+     */
+    public boolean canEverFit(int permits) {
+        return !isEnabled() || permits <= limit;
+    }
+
+    /**
+     * Counts the requests if they fit into the limit. Requests that can never fit (see {@link #canEverFit}) should be turned down before getting here, the
+     * wait returned for them is meaningless
+     *
+     * @param key     Who makes the requests
+     * @param permits Number of requests
+     * @param now     Current time in milliseconds
+     * @return 0 if the requests have been counted, otherwise how many milliseconds until they would fit
+     */
+    public long tryAcquire(String key, int permits, long now) {
+        if (!isEnabled()) {
+            return 0;
+        }
+
+        AtomicReference<Counter> reference = counterOf(key);
+        long index = now / window;
+        double elapsed = (double) (now % window) / window;
+        while (true) {
+            Counter stored = reference.get();
+            Counter current = stored.roll(index);
+            double estimate = current.previous * (1 - elapsed) + current.count;
+            if (estimate + permits > limit) {
+                return retryAfter(current, permits, now);
+            }
+            if (reference.compareAndSet(stored, new Counter(index, current.count + permits, current.previous))) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Gives back requests that have been counted but haven't been made after all, e.g. when another quota has rejected them
+     *
+     * @param key     Who makes the requests
+     * @param permits Number of requests
+     * @param now     Current time in milliseconds
+     */
+    public void release(String key, int permits, long now) {
+        AtomicReference<Counter> reference = counters.get(key);
+        if (reference == null) {
+            return;
+        }
+
+        long index = now / window;
+        while (true) {
+            Counter current = reference.get();
+            // Only the current window can be corrected, the older ones only fade away
+            if (current.index != index) {
+                return;
+            }
+            if (reference.compareAndSet(current, new Counter(index, Math.max(current.count - permits, 0), current.previous))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the counters that no longer count towards anything
+     *
+     * @param now Current time in milliseconds
+     */
+    public void evictIdle(long now) {
+        long index = now / window;
+        for (Iterator<Map.Entry<String, AtomicReference<Counter>>> it = counters.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue().get().index < index - 1) {
+                it.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return counters.size();
+    }
+
+    private AtomicReference<Counter> counterOf(String key) {
+        AtomicReference<Counter> reference = counters.get(key);
+        if (reference == null) {
+            AtomicReference<Counter> created = new AtomicReference<>(new Counter(0, 0, 0));
+            reference = counters.putIfAbsent(key, created);
+            if (reference == null) {
+                reference = created;
+            }
+        }
+
+        return reference;
+    }
+
+    /**
+     * @return How many milliseconds until the previous window has faded enough for the requests to fit in
+     */
+    private long retryAfter(Counter current, int permits, long now) {
+        double room = limit - current.count - permits;
+        double fade;
+        long from;
+        if (room >= 0) {
+            // The current window has room, the previous one is in the way
+            fade = 1 - room / current.previous;
+            from = current.index * window;
+        } else {
+            // Once this window is over it becomes the previous one
+            fade = current.count > 0 ? 1 - (double) (limit - permits) / current.count : 1;
+            from = (current.index + 1) * window;
+        }
+
+        return Math.max(from + (long) Math.ceil(Math.min(Math.max(fade, 0), 1) * window) - now, 1);
+    }
+
+    /**
+     * Immutable state of a key, a new instance replaces the old one on every change
+     */
+    private static final class Counter {
+        private final long index;
+        private final int count;
+        private final int previous;
+
+        private Counter(long index, int count, int previous) {
+            this.index = index;
+            this.count = count;
+            this.previous = previous;
+        }
+
+        /**
+         * @param now Index of the current window
+         * @return The counter as seen from the current window
+         */
+        private Counter roll(long now) {
+            if (now == index) {
+                return this;
+            }
+
+            return new Counter(now, 0, now == index + 1 ? count : 0);
+        }
+    }
+
+}
@@ -1,9 +1,25 @@
 package com.totoro.repository;
 
 import com.totoro.domain.EmailHistory;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+
 @Repository
-public interface EmailHistoryRepository extends JpaRepository<EmailHistory, Long> {
+public interface EmailHistoryRepository extends JpaRepository<EmailHistory, Long>, EmailHistoryRepositoryCustom {
+
+    /**
+     * Goes through the recipient index, not through the recipients of every row
+     *
+     * @param address  Canonical address of the recipient (its domain in lower case), see {@link com.totoro.domain.EmailRecipient}
+     * @param pageable How many emails to return
+     * @return Emails that have been sent to the address in to, cc or bcc, newest first
+     */
+    @Query("select h from EmailHistory h where h.id in (select r.historyId from EmailRecipient r where r.address = :address) order by h.id desc")
+    List<EmailHistory> findByRecipient(@Param("address") String address, Pageable pageable);
+
 }
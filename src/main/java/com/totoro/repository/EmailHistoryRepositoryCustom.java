@@ -0,0 +1,22 @@
+package com.totoro.repository;
+
+import com.totoro.dto.EmailHistoryDto;
+import com.totoro.dto.HistoryQueryDto;
+
+import java.util.List;
+
+/**
+ * Queries of the history table that are built from the filters at runtime
+ */
+public interface EmailHistoryRepositoryCustom {
+
+    /**
+     * Seeks to the cursor of the query through the (createdAt, id) order instead of skipping rows, so the 1000th page costs as much as the first one
+     *
+     * @param query Filters and cursor, the recipient has to be canonical
+     * @param limit How many emails to return
+     * @return Emails newest first
+     */
+    List<EmailHistoryDto> search(HistoryQueryDto query, int limit);
+
+}
@@ -0,0 +1,72 @@
+package com.totoro.repository;
+
+import com.totoro.dto.EmailHistoryDto;
+import com.totoro.dto.HistoryQueryDto;
+import org.joda.time.LocalDateTime;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Only the filters that have been given end up in the query so the database can use the index that fits them (see the indexes of
+ * {@link com.totoro.domain.EmailHistory}), a '(:x is null or ...)' condition would keep it from doing so
+ */
+class EmailHistoryRepositoryImpl implements EmailHistoryRepositoryCustom {
+
+    private static final String SELECT = "select new com.totoro.dto.EmailHistoryDto(h.id, h.createdAt, h.sender, h.replyTo, h.toRecipients, h.ccRecipients, " +
+            "h.bccRecipients, h.subject, h.type, h.provider, h.responseId, h.responseMessage, h.trackingId) from EmailHistory h";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<EmailHistoryDto> search(HistoryQueryDto query, int limit) {
+        StringBuilder jpql = new StringBuilder(SELECT);
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        if (query.getProvider() != null) {
+            where(jpql, parameters, "h.provider = :provider", "provider", query.getProvider());
+        }
+        if (query.getSender() != null) {
+            where(jpql, parameters, "h.sender = :sender", "sender", query.getSender());
+        }
+        if (query.getResponseId() != null) {
+            where(jpql, parameters, "h.responseId = :responseId", "responseId", query.getResponseId());
+        }
+        if (query.getRecipient() != null) {
+            where(jpql, parameters, "h.id in (select r.historyId from EmailRecipient r where r.address = :recipient)", "recipient", query.getRecipient());
+        }
+        if (query.getSince() != null) {
+            where(jpql, parameters, "h.createdAt >= :since", "since", new LocalDateTime(query.getSince()));
+        }
+        if (query.getUntil() != null) {
+            where(jpql, parameters, "h.createdAt < :until", "until", new LocalDateTime(query.getUntil()));
+        }
+        if (query.getBefore() != null) {
+            LocalDateTime before = new LocalDateTime(query.getBefore());
+            if (query.getBeforeId() != null) {
+                where(jpql, parameters, "(h.createdAt < :before or (h.createdAt = :before and h.id < :beforeId))", "before", before);
+                parameters.put("beforeId", query.getBeforeId());
+            } else {
+                where(jpql, parameters, "h.createdAt < :before", "before", before);
+            }
+        }
+        jpql.append(" order by h.createdAt desc, h.id desc");
+
+        TypedQuery<EmailHistoryDto> typedQuery = entityManager.createQuery(jpql.toString(), EmailHistoryDto.class);
+        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+            typedQuery.setParameter(parameter.getKey(), parameter.getValue());
+        }
+
+        return typedQuery.setMaxResults(limit).getResultList();
+    }
+
+    private void where(StringBuilder jpql, Map<String, Object> parameters, String condition, String name, Object value) {
+        jpql.append(parameters.isEmpty() ? " where " : " and ").append(condition);
+        parameters.put(name, value);
+    }
+
+}
@@ -1,9 +1,105 @@
 package com.totoro.repository;
 
 import com.totoro.domain.EmailQueue;
+import com.totoro.domain.QueueStatus;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Besides the usual CRUD operations this repository lets an instance lease rows of the queue. Every lease operation is a single conditional update so two instances
+ * can never hold the same row at the same time
+ */
 @Repository
 public interface EmailQueueRepository extends JpaRepository<EmailQueue, Long> {
+
+    /**
+     * @param now      Current time in epoch millis
+     * @param pageable How many ids to return
+     * @return Ids of the pending rows that nobody holds a lease on and that are due to be re-attempted, oldest first
+     */
+    @Query("select q.id from EmailQueue q where q.status = com.totoro.domain.QueueStatus.PENDING and (q.leaseUntil is null or q.leaseUntil < :now) " +
+            "order by q.id")
+    List<Long> findClaimableIds(@Param("now") long now, Pageable pageable);
+
+    /**
+     * Takes a lease on the given rows. Rows that have been claimed by another instance in the meantime are skipped
+     *
+     * @param ids        Candidate ids
+     * @param owner      The instance taking the lease
+     * @param leaseUntil Epoch millis until which the lease is valid
+     * @param now        Current time in epoch millis
+     * @return Number of rows that have been claimed
+     */
+    @Modifying
+    @Transactional
+    @Query("update EmailQueue q set q.claimedBy = :owner, q.leaseUntil = :leaseUntil " +
+            "where q.id in (:ids) and q.status = com.totoro.domain.QueueStatus.PENDING and (q.leaseUntil is null or q.leaseUntil < :now)")
+    int claim(@Param("ids") Collection<Long> ids, @Param("owner") String owner, @Param("leaseUntil") long leaseUntil, @Param("now") long now);
+
+    List<EmailQueue> findByClaimedByAndLeaseUntil(String claimedBy, Long leaseUntil);
+
+    /**
+     * Extends the lease on a row
+     *
+     * @param id         Row id
+     * @param owner      The instance holding the lease
+     * @param leaseUntil New expiry in epoch millis
+     * @param now        Current time in epoch millis
+     * @return 1 if the instance still holds the lease or 0 if it has expired
+     */
+    @Modifying
+    @Transactional
+    @Query("update EmailQueue q set q.leaseUntil = :leaseUntil where q.id = :id and q.claimedBy = :owner and q.leaseUntil >= :now")
+    int extendLease(@Param("id") long id, @Param("owner") String owner, @Param("leaseUntil") long leaseUntil, @Param("now") long now);
+
+    /**
+     * Gives up the lease on a row that couldn't be sent
+     *
+     * @param id      Row id
+     * @param owner   The instance holding the lease
+     * @param retryAt Epoch millis from which the row can be re-attempted
+     * @param reason  Why it couldn't be sent this time
+     * @return 1 if the lease has been released
+     */
+    @Modifying
+    @Transactional
+    @Query("update EmailQueue q set q.claimedBy = null, q.leaseUntil = :retryAt, q.attempts = q.attempts + 1, q.reason = :reason " +
+            "where q.id = :id and q.claimedBy = :owner")
+    int release(@Param("id") long id, @Param("owner") String owner, @Param("retryAt") long retryAt, @Param("reason") String reason);
+
+    /**
+     * Puts aside a row that may have been delivered or that has failed for good, it's not re-attempted anymore
+     *
+     * @param id     Row id
+     * @param owner  The instance holding the lease
+     * @param status Uncertain or failed
+     * @param reason Why it has been put aside
+     * @return 1 if the row has been put aside
+     */
+    @Modifying
+    @Transactional
+    @Query("update EmailQueue q set q.claimedBy = null, q.leaseUntil = null, q.attempts = q.attempts + 1, q.reason = :reason, q.status = :status " +
+            "where q.id = :id and q.claimedBy = :owner")
+    int putAside(@Param("id") long id, @Param("owner") String owner, @Param("status") QueueStatus status, @Param("reason") String reason);
+
+    /**
+     * Removes a row that has been sent
+     *
+     * @param id    Row id
+     * @param owner The instance holding the lease
+     * @return 1 if the row has been removed
+     */
+    @Modifying
+    @Transactional
+    @Query("delete from EmailQueue q where q.id = :id and q.claimedBy = :owner")
+    int deleteClaimed(@Param("id") long id, @Param("owner") String owner);
+
 }
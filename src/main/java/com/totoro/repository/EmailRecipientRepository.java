@@ -0,0 +1,14 @@
+package com.totoro.repository;
+
+import com.totoro.domain.EmailRecipient;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface EmailRecipientRepository extends JpaRepository<EmailRecipient, Long> {
+
+    List<EmailRecipient> findByHistoryId(long historyId);
+
+}
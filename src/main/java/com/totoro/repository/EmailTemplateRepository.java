@@ -0,0 +1,9 @@
+package com.totoro.repository;
+
+import com.totoro.domain.EmailTemplate;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface EmailTemplateRepository extends JpaRepository<EmailTemplate, Long> {
+}
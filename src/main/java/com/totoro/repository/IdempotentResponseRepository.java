@@ -0,0 +1,26 @@
+package com.totoro.repository;
+
+import com.totoro.domain.IdempotentResponse;
+import org.joda.time.LocalDateTime;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface IdempotentResponseRepository extends JpaRepository<IdempotentResponse, Long> {
+
+    IdempotentResponse findByClientIdAndIdempotencyKey(String clientId, String idempotencyKey);
+
+    /**
+     * @param before Responses stored before this are removed
+     * @return Number of responses that have been removed
+     */
+    @Modifying
+    @Transactional
+    @Query("delete from IdempotentResponse r where r.createdAt < :before")
+    int deleteCreatedBefore(@Param("before") LocalDateTime before);
+
+}
@@ -2,8 +2,8 @@ package com.totoro.services;
 
 import com.totoro.domain.EmailHistory;
 import com.totoro.domain.EmailQueue;
+import com.totoro.domain.QueueStatus;
 import com.totoro.dto.MailMessageDto;
-import com.totoro.repository.EmailHistoryRepository;
 import com.totoro.repository.EmailQueueRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Async;
@@ -21,26 +21,27 @@ import java.util.concurrent.Future;
 @Service
 public class AsyncEmailService {
 
-    private final EmailHistoryRepository emailRepository;
+    private final EmailHistoryWriter emailHistoryWriter;
     private final EmailQueueRepository emailQueueRepository;
 
     @Autowired
-    public AsyncEmailService(EmailHistoryRepository emailRepository, EmailQueueRepository emailQueueRepository) {
-        this.emailRepository = emailRepository;
+    public AsyncEmailService(EmailHistoryWriter emailHistoryWriter, EmailQueueRepository emailQueueRepository) {
+        this.emailHistoryWriter = emailHistoryWriter;
         this.emailQueueRepository = emailQueueRepository;
     }
 
     /**
-     * This is an asynchronous method to save the sent email to the history table
+     * This is an asynchronous method to save the sent email to the history table. The email is handed over to the write-behind buffer so it ends up in the table
+     * with the next batch insert
      *
      * @param dto             Email message
+     * @param trackingId      Tracking id of a spooled email, null otherwise
      * @param responseId      Response id from the email provider
      * @param responseMessage Response message from the email provider
      * @param provider        Provider name. e.g SendGrid or MailGun
-     * @return
      */
-    @Async
-    public Future<Long> saveToEmailHistory(MailMessageDto dto, String responseId, String responseMessage, String provider) {
+    @Async("historyExecutor")
+    public void saveToEmailHistory(MailMessageDto dto, String trackingId, String responseId, String responseMessage, String provider) {
         EmailHistory history = new EmailHistory(
                 dto.getFrom(),
                 dto.getReplyTo(),
@@ -55,9 +56,8 @@ public class AsyncEmailService {
                 responseMessage
         );
 
-        history = emailRepository.save(history);
-
-        return new AsyncResult<>(history.getId());
+        history.setTrackingId(trackingId);
+        emailHistoryWriter.write(history);
     }
 
     /**
@@ -66,10 +66,11 @@ public class AsyncEmailService {
      *
      * @param dto    Email message
      * @param reason Reason why we have it in the queue
+     * @param status Pending unless the email may have been delivered already
      * @return
      */
-    @Async
-    public Future<Long> saveToEmailQueue(MailMessageDto dto, String reason) {
+    @Async("queueExecutor")
+    public Future<Long> saveToEmailQueue(MailMessageDto dto, String reason, QueueStatus status) {
         EmailQueue queue = new EmailQueue(
                 dto.getFrom(),
                 dto.getReplyTo(),
@@ -81,6 +82,9 @@ public class AsyncEmailService {
                 dto.getType(),
                 reason
         );
+        queue.setVariables(dto.getVariables());
+        queue.setTemplateId(dto.getTemplateId());
+        queue.setStatus(status);
 
         queue = emailQueueRepository.save(queue);
 
@@ -0,0 +1,98 @@
+package com.totoro.services;
+
+/**
+ * The outcome of handing an email over to one of the providers
+ */
+public class DispatchResult {
+
+    private final boolean sent;
+    private final String provider;
+    private final String responseId;
+    private final String responseMessage;
+    /**
+     * Why the email couldn't be sent
+     */
+    private final String reason;
+    /**
+     * The provider has had the whole request but we don't know whether it has accepted the email
+     */
+    private final boolean uncertain;
+    /**
+     * The email itself is the problem, re-attempting it won't help
+     */
+    private final boolean rejected;
+
+    private DispatchResult(boolean sent, String provider, String responseId, String responseMessage, String reason, boolean uncertain, boolean rejected) {
+        this.sent = sent;
+        this.provider = provider;
+        this.responseId = responseId;
+        this.responseMessage = responseMessage;
+        this.reason = reason;
+        this.uncertain = uncertain;
+        this.rejected = rejected;
+    }
+
+    /**
+     * @param provider        Provider name. e.g SendGrid or MailGun
+     * @param responseId      Response id from the email provider
+     * @param responseMessage Response message from the email provider
+     * @return The result of an email that the provider has accepted
+     */
+    public static DispatchResult sent(String provider, String responseId, String responseMessage) {
+        return new DispatchResult(true, provider, responseId, responseMessage, null, false, false);
+    }
+
+    /**
+     * @param reason Why the email couldn't be sent
+     * @return The result of an email that needs to be re-attempted
+     */
+    public static DispatchResult failed(String reason) {
+        return new DispatchResult(false, null, null, null, reason, false, false);
+    }
+
+    /**
+     * @param reason Why we don't know whether the email has been sent
+     * @return The result of an email whose request has reached a provider that hasn't answered or has answered with an error, it mustn't be sent to another
+     * provider straight away
+     */
+    public static DispatchResult uncertain(String reason) {
+        return new DispatchResult(false, null, null, null, reason, true, false);
+    }
+
+    /**
+     * @param reason Why the email cannot be sent
+     * @return The result of an email that the provider has refused or whose template is gone, it won't ever be sent
+     */
+    public static DispatchResult rejected(String reason) {
+        return new DispatchResult(false, null, null, null, reason, false, true);
+    }
+
+    public boolean isSent() {
+        return sent;
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public String getResponseId() {
+        return responseId;
+    }
+
+    public String getResponseMessage() {
+        return responseMessage;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public boolean isUncertain() {
+        return uncertain;
+    }
+
+    public boolean isRejected() {
+        return rejected;
+    }
+
+}
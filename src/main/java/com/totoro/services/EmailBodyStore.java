@@ -0,0 +1,176 @@
+package com.totoro.services;
+
+import com.totoro.converters.CompressedTextConverter;
+import com.totoro.domain.EmailBody;
+import com.totoro.repository.EmailBodyRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure that the body of a history row is in the body table before the row is inserted. The texts are stored the same way as the JPA does it, see
+ * {@link CompressedTextConverter}.
+ * <p>
+ * The hashes of the most recently seen bodies are kept in memory, a body that is known to be in the table costs nothing. A hash is only remembered once the
+ * transaction that has inserted (or found) its body has committed, otherwise a rolled back insert would leave the history rows pointing at a body that isn't there.
+ */
+@Component
+public class EmailBodyStore implements PublicMetrics {
+
+    private static final String INSERT_SQL = "insert into email_body (hash, text) values (?, ?)";
+
+    private final EmailBodyRepository emailBodyRepository;
+    private final Map<String, Boolean> known;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong inserted = new AtomicLong();
+
+    /**
+     * @param emailBodyRepository Body table
+     * @param cacheSize           How many hashes are kept in memory
+     */
+    @Autowired
+    public EmailBodyStore(EmailBodyRepository emailBodyRepository, @Value("${email.history.body-cache-size}") final int cacheSize) {
+        this.emailBodyRepository = emailBodyRepository;
+        this.known = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Inserts the bodies that aren't in the table yet on the given connection. The unknown hashes are looked up with a single query and the missing bodies
+     * are inserted with a single JDBC batch
+     *
+     * @param connection Connection of the history batch
+     * @param bodies     Bodies of the history rows, null when a row has no text
+     * @throws SQLException If the bodies cannot be inserted
+     */
+    void insertMissing(Connection connection, Collection<EmailBody> bodies) throws SQLException {
+        Map<String, EmailBody> unknown = new LinkedHashMap<>();
+        for (EmailBody body : bodies) {
+            if (body == null || unknown.containsKey(body.getHash())) {
+                continue;
+            }
+            if (isKnown(body.getHash())) {
+                hits.incrementAndGet();
+            } else {
+                unknown.put(body.getHash(), body);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return;
+        }
+
+        lookups.incrementAndGet();
+        Collection<String> hashes = new ArrayList<>(unknown.keySet());
+        StringBuilder sql = new StringBuilder("select hash from email_body where hash in (");
+        for (int i = 0; i < hashes.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        Map<String, EmailBody> missing = new LinkedHashMap<>(unknown);
+        try (PreparedStatement statement = connection.prepareStatement(sql.append(')').toString())) {
+            int i = 1;
+            for (String hash : hashes) {
+                statement.setString(i++, hash);
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    missing.remove(resultSet.getString(1));
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+                for (EmailBody body : missing.values()) {
+                    statement.setString(1, body.getHash());
+                    statement.setString(2, CompressedTextConverter.compress(body.getText()));
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            inserted.addAndGet(missing.size());
+        }
+
+        rememberAfterCommit(hashes);
+    }
+
+    /**
+     * Saves a body through the repository unless it's already in the table
+     *
+     * @param body Body of a history row, null when the row has no text
+     */
+    void save(EmailBody body) {
+        if (body == null) {
+            return;
+        }
+        if (isKnown(body.getHash())) {
+            hits.incrementAndGet();
+            return;
+        }
+
+        lookups.incrementAndGet();
+        if (!emailBodyRepository.exists(body.getHash())) {
+            emailBodyRepository.save(body);
+            inserted.incrementAndGet();
+        }
+        rememberAfterCommit(Collections.singletonList(body.getHash()));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("history.body.cache.hits", hits.get()));
+        metrics.add(new Metric<>("history.body.lookups", lookups.get()));
+        metrics.add(new Metric<>("history.body.inserted", inserted.get()));
+
+        return metrics;
+    }
+
+    private boolean isKnown(String hash) {
+        synchronized (known) {
+            return known.get(hash) != null;
+        }
+    }
+
+    private void rememberAfterCommit(final Collection<String> hashes) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            remember(hashes);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                remember(hashes);
+            }
+        });
+    }
+
+    private void remember(Collection<String> hashes) {
+        synchronized (known) {
+            for (String hash : hashes) {
+                known.put(hash, Boolean.TRUE);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,320 @@
+package com.totoro.services;
+
+import com.totoro.converters.LocalDateTimeConverter;
+import com.totoro.domain.EmailBody;
+import com.totoro.domain.EmailHistory;
+import com.totoro.domain.EmailRecipient;
+import com.totoro.domain.RecipientRole;
+import com.totoro.repository.EmailHistoryRepository;
+import com.totoro.repository.EmailRecipientRepository;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind buffer for the history table. Sent emails are collected in a bounded buffer and inserted with a single JDBC batch (and a single commit) once the batch is
+ * full or the first email in it has waited long enough, whichever comes first.
+ * <p>
+ * When the buffer is full the caller waits for some room, and if there is still none it inserts its email itself. What's left in the buffer is flushed on shutdown.
+ * <p>
+ * The texts go into the body table once per distinct text (see {@link EmailBodyStore}) and the recipients into the recipient index, in the same transaction as
+ * the rows themselves.
+ */
+@Component
+public class EmailHistoryWriter implements PublicMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailHistoryWriter.class);
+    private static final String INSERT_SQL = "insert into email_history (created_at, updated_at, sender, reply_to, to_recipients, cc_recipients, bcc_recipients, " +
+            "subject, body_hash, type, provider, response_id, response_message, tracking_id) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_RECIPIENT_SQL = "insert into email_recipient (history_id, role, address) values (?, ?, ?)";
+    private static final char DELIMITER = ';';
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final EmailHistoryRepository emailHistoryRepository;
+    private final EmailBodyStore emailBodyStore;
+    private final EmailRecipientRepository emailRecipientRepository;
+    private final LocalDateTimeConverter dateTimeConverter = new LocalDateTimeConverter();
+    private final BlockingQueue<EmailHistory> buffer;
+    private final int batchSize;
+    private final long flushInterval;
+    private final long offerTimeout;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    private volatile boolean running;
+    private Thread flusher;
+
+    @Autowired
+    public EmailHistoryWriter(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, EmailHistoryRepository emailHistoryRepository,
+                              EmailBodyStore emailBodyStore, EmailRecipientRepository emailRecipientRepository,
+                              @Value("${email.history.write-behind.buffer-capacity}") int bufferCapacity,
+                              @Value("${email.history.write-behind.batch-size}") int batchSize,
+                              @Value("${email.history.write-behind.flush-interval}") long flushInterval,
+                              @Value("${email.history.write-behind.offer-timeout}") long offerTimeout) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.emailHistoryRepository = emailHistoryRepository;
+        this.emailBodyStore = emailBodyStore;
+        this.emailRecipientRepository = emailRecipientRepository;
+        this.buffer = new ArrayBlockingQueue<>(bufferCapacity);
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.offerTimeout = offerTimeout;
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushUntilStopped();
+            }
+        }, "history-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Stops the flusher and writes what's left in the buffer
+     *
+     * @throws InterruptedException If we get interrupted while waiting for the flusher
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        flusher.join(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    /**
+     * Adds an email to the buffer, it will be inserted with the next batch
+     *
+     * @param history Sent email
+     */
+    public void write(EmailHistory history) {
+        try {
+            if (running && buffer.offer(history, offerTimeout, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // The buffer is full (or we are shutting down), don't lose the email and insert it straight away
+        overflows.incrementAndGet();
+        List<EmailHistory> batch = new ArrayList<>(1);
+        batch.add(history);
+        insert(batch);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("history.writer.buffered", buffer.size()));
+        metrics.add(new Metric<>("history.writer.written", written.get()));
+        metrics.add(new Metric<>("history.writer.batches", batches.get()));
+        metrics.add(new Metric<>("history.writer.overflows", overflows.get()));
+
+        return metrics;
+    }
+
+    private void flushUntilStopped() {
+        List<EmailHistory> batch = new ArrayList<>(batchSize);
+        while (running || !buffer.isEmpty()) {
+            try {
+                EmailHistory first = buffer.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Keep collecting until the batch is full or the first email has waited long enough
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                while (batch.size() < batchSize) {
+                    if (buffer.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+
+                    long remaining = deadline - System.nanoTime();
+                    EmailHistory next = remaining > 0 ? buffer.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                insert(batch);
+            } catch (InterruptedException e) {
+                // Only stop() can end the loop, whatever is in the buffer still needs to be written
+                logger.warn("History writer has been interrupted");
+            } catch (RuntimeException e) {
+                logger.error("Could not write the email history", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Inserts the emails straight away in a single JDBC batch, it joins the caller's transaction if there is one
+     *
+     * @param batch Emails to be inserted
+     */
+    public void writeNow(final List<EmailHistory> batch) {
+        transactionTemplate.execute(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(TransactionStatus status) {
+                jdbcTemplate.execute(new ConnectionCallback<Void>() {
+                    @Override
+                    public Void doInConnection(Connection connection) throws SQLException {
+                        insertBatch(connection, batch);
+                        return null;
+                    }
+                });
+                return null;
+            }
+        });
+        written.addAndGet(batch.size());
+        batches.incrementAndGet();
+    }
+
+    /**
+     * Inserts the emails in a single JDBC batch and transaction. If the batch fails the emails are inserted one by one so a bad row doesn't take the others with it
+     *
+     * @param batch Emails to be inserted
+     */
+    void insert(List<EmailHistory> batch) {
+        try {
+            writeNow(batch);
+        } catch (RuntimeException e) {
+            logger.error("Could not insert a batch of " + batch.size() + " emails into the history table, inserting them one by one", e);
+            for (final EmailHistory history : batch) {
+                // The batch may have got its ids before it was rolled back, they don't belong to the emails anymore
+                history.setId(0);
+                try {
+                    transactionTemplate.execute(new TransactionCallback<Void>() {
+                        @Override
+                        public Void doInTransaction(TransactionStatus status) {
+                            emailBodyStore.save(history.getBody());
+                            EmailHistory saved = emailHistoryRepository.save(history);
+                            emailRecipientRepository.save(recipientsOf(saved));
+                            return null;
+                        }
+                    });
+                    written.incrementAndGet();
+                } catch (RuntimeException ex) {
+                    logger.error("Could not insert the email history of " + history.getResponseId(), ex);
+                }
+            }
+        }
+    }
+
+    private void insertBatch(Connection connection, List<EmailHistory> batch) throws SQLException {
+        List<EmailBody> bodies = new ArrayList<>(batch.size());
+        for (EmailHistory history : batch) {
+            bodies.add(history.getBody());
+        }
+        emailBodyStore.insertMissing(connection, bodies);
+
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL, PreparedStatement.RETURN_GENERATED_KEYS)) {
+            for (EmailHistory history : batch) {
+                if (history.getCreatedAt() == null) {
+                    history.prePersist();
+                }
+                LocalDateTime createdAt = history.getCreatedAt();
+
+                statement.setTimestamp(1, dateTimeConverter.convertToDatabaseColumn(createdAt));
+                statement.setTimestamp(2, dateTimeConverter.convertToDatabaseColumn(history.getUpdatedAt()));
+                statement.setString(3, history.getSender());
+                statement.setString(4, history.getReplyTo());
+                statement.setString(5, StringUtils.join(history.getToRecipients(), DELIMITER));
+                statement.setString(6, StringUtils.join(history.getCcRecipients(), DELIMITER));
+                statement.setString(7, StringUtils.join(history.getBccRecipients(), DELIMITER));
+                statement.setString(8, history.getSubject());
+                statement.setString(9, history.getBody() != null ? history.getBody().getHash() : null);
+                statement.setString(10, history.getType());
+                statement.setString(11, history.getProvider());
+                statement.setString(12, history.getResponseId());
+                statement.setString(13, history.getResponseMessage());
+                statement.setString(14, history.getTrackingId());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+
+            // The recipient rows need the ids, a driver that doesn't return the keys of a batch gets the emails inserted one by one instead
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (!keys.next()) {
+                        throw new SQLException("The driver hasn't returned the ids of the batch");
+                    }
+                    batch.get(i).setId(keys.getLong(1));
+                }
+            }
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_RECIPIENT_SQL)) {
+            for (EmailHistory history : batch) {
+                for (EmailRecipient recipient : recipientsOf(history)) {
+                    statement.setLong(1, recipient.getHistoryId());
+                    statement.setString(2, recipient.getRole().name());
+                    statement.setString(3, recipient.getAddress());
+                    statement.addBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * @param history Email that has been inserted
+     * @return One row per recipient for the recipient index
+     */
+    private List<EmailRecipient> recipientsOf(EmailHistory history) {
+        List<EmailRecipient> recipients = new ArrayList<>();
+        addRecipients(recipients, history, RecipientRole.TO, history.getToRecipients());
+        addRecipients(recipients, history, RecipientRole.CC, history.getCcRecipients());
+        addRecipients(recipients, history, RecipientRole.BCC, history.getBccRecipients());
+
+        return recipients;
+    }
+
+    private void addRecipients(List<EmailRecipient> recipients, EmailHistory history, RecipientRole role, String[] addresses) {
+        if (addresses == null) {
+            return;
+        }
+
+        for (String address : addresses) {
+            recipients.add(new EmailRecipient(history.getId(), role, RecipientValidator.canonicalize(address)));
+        }
+    }
+
+}
@@ -0,0 +1,234 @@
+package com.totoro.services;
+
+import com.totoro.domain.EmailQueue;
+import com.totoro.domain.QueueStatus;
+import com.totoro.dto.MailMessageDto;
+import com.totoro.repository.EmailQueueRepository;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Goes through the queue table on a schedule and re-attempts the emails in it.
+ * <p>
+ * Each run leases a batch of rows (see {@link EmailQueueRepository#claim}) and sends them in parallel. A sent email is moved to the history table, otherwise the lease
+ * is released with a back-off so the row is re-attempted later. An email that may have been delivered is put aside rather than re-attempted, and so is an email
+ * that the provider has rejected or that has run out of attempts. Several instances can drain the same queue at the same time since a row can only be leased by
+ * one of them.
+ */
+@Component
+public class EmailQueueDrainer {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailQueueDrainer.class);
+    /**
+     * The back-off stops growing after this many attempts
+     */
+    private static final int MAX_BACK_OFF_ATTEMPTS = 6;
+    private static final int MAX_REASON_LENGTH = 255;
+
+    private final EmailQueueRepository emailQueueRepository;
+    private final MailDispatcher mailDispatcher;
+    private final AsyncEmailService emailAsyncService;
+    private final AsyncTaskExecutor dispatchExecutor;
+    private final int batchSize;
+    private final long leaseTime;
+    private final long retryDelay;
+    private final int maxAttempts;
+    /**
+     * Identifies this instance in the claimedBy column
+     */
+    private final String owner;
+
+    @Autowired
+    public EmailQueueDrainer(EmailQueueRepository emailQueueRepository, MailDispatcher mailDispatcher, AsyncEmailService emailAsyncService,
+                             @Qualifier("mailDispatchExecutor") AsyncTaskExecutor dispatchExecutor,
+                             @Value("${email.queue.drain.batch-size}") int batchSize,
+                             @Value("${email.queue.drain.lease-time}") long leaseTime,
+                             @Value("${email.queue.drain.retry-delay}") long retryDelay,
+                             @Value("${email.queue.drain.max-attempts}") int maxAttempts) {
+        this.emailQueueRepository = emailQueueRepository;
+        this.mailDispatcher = mailDispatcher;
+        this.emailAsyncService = emailAsyncService;
+        this.dispatchExecutor = dispatchExecutor;
+        this.batchSize = batchSize;
+        this.leaseTime = leaseTime;
+        this.retryDelay = retryDelay;
+        this.maxAttempts = maxAttempts;
+        // e.g. 1234@hostname-5f1d2c3a
+        this.owner = StringUtils.abbreviate(ManagementFactory.getRuntimeMXBean().getName(), 40) + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * Leases a batch of rows and re-attempts them in parallel
+     */
+    @Scheduled(fixedDelayString = "${email.queue.drain.interval}", initialDelayString = "${email.queue.drain.interval}")
+    public void drain() {
+        List<EmailQueue> emails = claim();
+        if (emails.isEmpty()) {
+            return;
+        }
+
+        logger.info("Re-attempting {} emails from the queue", emails.size());
+        List<MailMessageDto> messages = new ArrayList<>(emails.size());
+        for (EmailQueue email : emails) {
+            messages.add(toMailMessage(email));
+        }
+
+        // Emails with the same content go to the provider together
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (List<Integer> group : mailDispatcher.coalesce(messages)) {
+            final List<EmailQueue> groupEmails = new ArrayList<>(group.size());
+            for (Integer index : group) {
+                groupEmails.add(emails.get(index));
+            }
+            FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return resend(groupEmails);
+                }
+            });
+            try {
+                dispatchExecutor.execute(task);
+            } catch (TaskRejectedException e) {
+                // The requests are keeping every dispatch thread busy, the scheduler thread sends the emails itself
+                task.run();
+            }
+            futures.add(task);
+        }
+
+        int sent = 0;
+        for (Future<Integer> future : futures) {
+            try {
+                sent += future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.error("Could not re-attempt an email from the queue", e.getCause());
+            }
+        }
+        logger.info("{} of {} emails from the queue have been sent", sent, emails.size());
+    }
+
+    /**
+     * Takes a lease on the oldest rows that are due to be re-attempted
+     *
+     * @return The rows that this instance now holds a lease on
+     */
+    List<EmailQueue> claim() {
+        long now = System.currentTimeMillis();
+        List<Long> ids = emailQueueRepository.findClaimableIds(now, new PageRequest(0, batchSize));
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // Another instance may have claimed some of these rows in the meantime, the update skips them
+        long leaseUntil = now + leaseTime;
+        if (emailQueueRepository.claim(ids, owner, leaseUntil, now) == 0) {
+            return Collections.emptyList();
+        }
+
+        return emailQueueRepository.findByClaimedByAndLeaseUntil(owner, leaseUntil);
+    }
+
+    /**
+     * Sends leased rows with the same content and then either removes each of them from the queue or releases its lease
+     *
+     * @param emails Leased rows
+     * @return How many of the emails have been sent
+     */
+    int resend(List<EmailQueue> emails) {
+        // Make sure that we still hold the leases and that they cover the time it takes to send the emails, otherwise another instance may send them as well
+        List<EmailQueue> leased = new ArrayList<>(emails.size());
+        List<MailMessageDto> messages = new ArrayList<>(emails.size());
+        for (EmailQueue email : emails) {
+            long now = System.currentTimeMillis();
+            if (emailQueueRepository.extendLease(email.getId(), owner, now + leaseTime, now) == 0) {
+                logger.warn("The lease on email {} has expired, skipping it", email.getId());
+                continue;
+            }
+            leased.add(email);
+            messages.add(toMailMessage(email));
+        }
+        if (leased.isEmpty()) {
+            return 0;
+        }
+
+        List<DispatchResult> results;
+        try {
+            results = mailDispatcher.dispatchAll(messages);
+        } catch (Exception e) {
+            logger.error("Could not re-attempt " + leased.size() + " emails from the queue", e);
+            results = Collections.nCopies(leased.size(), DispatchResult.failed("Could not send the email - " + e.getMessage()));
+        }
+
+        int sent = 0;
+        for (int i = 0; i < leased.size(); i++) {
+            EmailQueue email = leased.get(i);
+            DispatchResult result = results.get(i);
+            if (result.isSent()) {
+                emailAsyncService.saveToEmailHistory(messages.get(i), email.getTrackingId(), result.getResponseId(), result.getResponseMessage(), result.getProvider());
+                emailQueueRepository.deleteClaimed(email.getId(), owner);
+                sent++;
+            } else if (result.isUncertain()) {
+                logger.warn("Email {} may have been sent, it won't be re-attempted - {}", email.getId(), result.getReason());
+                emailQueueRepository.putAside(email.getId(), owner, QueueStatus.UNCERTAIN, StringUtils.abbreviate(result.getReason(), MAX_REASON_LENGTH));
+            } else if (result.isRejected() || email.getAttempts() + 1 >= maxAttempts) {
+                logger.error("Email {} has failed for good after {} attempts - {}", email.getId(), email.getAttempts() + 1, result.getReason());
+                emailQueueRepository.putAside(email.getId(), owner, QueueStatus.FAILED, StringUtils.abbreviate(result.getReason(), MAX_REASON_LENGTH));
+            } else {
+                emailQueueRepository.release(email.getId(), owner, System.currentTimeMillis() + backOff(email.getAttempts()),
+                        StringUtils.abbreviate(result.getReason(), MAX_REASON_LENGTH));
+            }
+        }
+
+        return sent;
+    }
+
+    /**
+     * @param attempts Number of failed attempts so far
+     * @return How long to wait before the next attempt, it doubles with every attempt
+     */
+    long backOff(int attempts) {
+        return retryDelay << Math.min(attempts, MAX_BACK_OFF_ATTEMPTS);
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    private MailMessageDto toMailMessage(EmailQueue email) {
+        MailMessageDto dto = new MailMessageDto();
+        dto.setFrom(email.getSender());
+        dto.setReplyTo(email.getReplyTo());
+        dto.setTo(email.getToRecipients());
+        dto.setCc(email.getCcRecipients());
+        dto.setBcc(email.getBccRecipients());
+        dto.setSubject(email.getSubject());
+        dto.setText(email.getText());
+        dto.setType(email.getType());
+        dto.setVariables(email.getVariables());
+        dto.setTemplateId(email.getTemplateId());
+
+        return dto;
+    }
+
+}
@@ -1,17 +1,47 @@
 package com.totoro.services;
 
+import com.totoro.dto.BatchItemResponseDto;
 import com.totoro.dto.EmailResponseDto;
 import com.totoro.dto.MailMessageDto;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.util.List;
 
 public interface EmailService {
 
     /**
-     * Sends an email to a list of recipients
+     * Validates an email straight away and sends it on one of the dispatch threads, so the caller's thread doesn't wait for the provider
      *
      * @param message Message to be sent to the email recipients
-     * @return Response to be sent back to the caller
+     * @return Future that completes with the response to be sent back to the caller
+     * @throws Exception When the email is invalid, or a {@link org.springframework.core.task.TaskRejectedException} when every dispatch thread is busy
+     */
+    ListenableFuture<EmailResponseDto> sendEmailAsync(MailMessageDto message) throws Exception;
+
+    /**
+     * Validates an email and writes it into the spool, it's sent in the background later on
+     *
+     * @param message Message to be sent to the email recipients
+     * @return Response with the tracking id of the email
+     * @throws Exception When the email is invalid or cannot be written into the spool
+     */
+    EmailResponseDto acceptEmail(MailMessageDto message) throws Exception;
+
+    /**
+     * Checks that a batch has at least one email and no more than 'email.batch.max-size', so a batch that is going to be rejected doesn't use up any quota
+     *
+     * @param messages Messages to be sent
+     * @throws com.totoro.exceptions.BadRequestException When the batch is empty or too big
+     */
+    void checkBatchSize(List<MailMessageDto> messages);
+
+    /**
+     * Sends a batch of emails. All of them are validated first, the invalid ones are rejected and the rest are sent concurrently
+     *
+     * @param messages Messages to be sent
+     * @return One result per message in the same order as the messages
      * @throws Exception When exception occurs
      */
-    EmailResponseDto sendEmail(MailMessageDto message) throws Exception;
+    List<BatchItemResponseDto> sendEmails(List<MailMessageDto> messages) throws Exception;
 
 }
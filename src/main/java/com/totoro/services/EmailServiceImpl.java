@@ -1,245 +1,212 @@
 package com.totoro.services;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.totoro.config.MailGunHttpConfiguration;
-import com.totoro.config.SendGridHttpConfiguration;
+import com.totoro.domain.QueueStatus;
+import com.totoro.dto.BatchItemResponseDto;
 import com.totoro.dto.EmailResponseDto;
+import com.totoro.dto.EmailStatus;
 import com.totoro.dto.MailMessageDto;
 import com.totoro.exceptions.BadRequestException;
-import com.totoro.mails.MailGunRequest;
-import com.totoro.mails.MailGunResponse;
-import com.totoro.mails.MailRequest;
-import com.totoro.mails.SendGridErrorResponse;
-import com.totoro.mails.SendGridRequest;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.validator.routines.EmailValidator;
+import com.totoro.spool.EmailSpool;
+import com.totoro.spool.SpoolRecord;
+import com.totoro.templates.CompiledTemplate;
+import com.totoro.templates.TemplateCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncListenableTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.Authenticator;
-import java.net.HttpURLConnection;
-import java.net.PasswordAuthentication;
-import java.net.URL;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 @Service
 public class EmailServiceImpl implements EmailService {
 
     private static final Logger logger = LoggerFactory.getLogger(EmailServiceImpl.class);
-    private static final int CONNECT_TIMEOUT = 3000;
-    private final SendGridHttpConfiguration sendGridHttpConfig;
-    private final MailGunHttpConfiguration mailGunHttpConfig;
+    private static final Pattern VARIABLE_NAME = Pattern.compile("[A-Za-z0-9_-]+");
     private final AsyncEmailService emailAsyncService;
-    /**
-     * This will be set to 'true' when the first email fails
-     */
-    private boolean useSecondMail = false;
+    private final MailDispatcher mailDispatcher;
+    private final EmailSpool emailSpool;
+    private final AsyncListenableTaskExecutor dispatchExecutor;
+    private final Validator validator;
+    private final RecipientValidator recipientValidator;
+    private final TemplateCache templateCache;
+    private final int maxBatchSize;
 
     @Autowired
-    public EmailServiceImpl(SendGridHttpConfiguration sendGridHttpConfig, MailGunHttpConfiguration mailGunHttpConfig,
-                            AsyncEmailService emailAsyncService) {
-        this.sendGridHttpConfig = sendGridHttpConfig;
-        this.mailGunHttpConfig = mailGunHttpConfig;
+    public EmailServiceImpl(AsyncEmailService emailAsyncService, MailDispatcher mailDispatcher, EmailSpool emailSpool,
+                            @Qualifier("mailDispatchExecutor") AsyncListenableTaskExecutor dispatchExecutor,
+                            Validator validator, RecipientValidator recipientValidator, TemplateCache templateCache,
+                            @Value("${email.batch.max-size}") int maxBatchSize) {
         this.emailAsyncService = emailAsyncService;
+        this.mailDispatcher = mailDispatcher;
+        this.emailSpool = emailSpool;
+        this.dispatchExecutor = dispatchExecutor;
+        this.validator = validator;
+        this.recipientValidator = recipientValidator;
+        this.templateCache = templateCache;
+        this.maxBatchSize = maxBatchSize;
     }
 
     @Override
-    public EmailResponseDto sendEmail(MailMessageDto dto) throws Exception {
-        // TODO throttle the request
-        // Validate the mail message
+    public ListenableFuture<EmailResponseDto> sendEmailAsync(final MailMessageDto dto) throws Exception {
+        // Validate on the caller's thread so a bad email is rejected without going through the dispatch pool
         List<String> errors = validate(dto);
-        // If we found at least an error just cancel the request straight away
         if (errors.size() > 0) {
             throw new BadRequestException(errors);
         }
 
-        // Health check
-        if (healthCheck(sendGridHttpConfig.getUrl())) {
-            useSecondMail = false;
-        } else if (healthCheck(mailGunHttpConfig.getUrl())) {
-            useSecondMail = true;
-        } else {
-            String reason = "Both providers couldn't be reached!!!";
-            logger.warn(reason);
-
-            // Save it into the queue table so we can go back to it and re-attempt
-            emailAsyncService.saveToEmailQueue(dto, reason);
+        return dispatchExecutor.submitListenable(new Callable<EmailResponseDto>() {
+            @Override
+            public EmailResponseDto call() throws Exception {
+                return dispatch(dto);
+            }
+        });
+    }
 
-            // TODO notify the person responsible
-            // Tell the user that their email has been put into the queue
-            return new EmailResponseDto("Your email has been added into the queue", new Date().getTime());
+    @Override
+    public EmailResponseDto acceptEmail(MailMessageDto dto) throws Exception {
+        List<String> errors = validate(dto);
+        if (errors.size() > 0) {
+            throw new BadRequestException(errors);
         }
 
-        HttpURLConnection conn = connectAndSendData(dto);
-
-        int responseCode = conn.getResponseCode();
-        // The following redirect handling is very simple - I don't expect it to happen because normally redirect happens from http to https and also I don't expect the provider to change the url endpoint
-        // Handle 301 or 302 - If the url has been marked as 301 or 302 then let the persona responsible know
-        if (responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP) {
-            // TODO: Send a notification to the person responsible
-            String message = "The request gets redirected, this is not supported yet so please check and update the url accordingly in the config - redirected url: " + conn.getHeaderField("Location");
-            logger.warn(message);
+        // Once it's in the spool it's ours, SpoolDrainer takes it from here
+        SpoolRecord record = emailSpool.append(dto);
 
-            // Let's do it again with the new url
-            String redirectUrl = conn.getHeaderField("Location");
-            if (!useSecondMail) {
-                sendGridHttpConfig.setRedirectUrl(redirectUrl);
-            } else {
-                mailGunHttpConfig.setRedirectUrl(redirectUrl);
-            }
-            conn = connectAndSendData(dto);
-
-            responseCode = conn.getResponseCode();
-        }
+        return new EmailResponseDto("Your email has been accepted", new Date().getTime(), EmailStatus.ACCEPTED, record.getTrackingId());
+    }
 
-        // Handle normal and error stream
-        boolean errorStream = false;
-        String responseMsg = "Your email has been sent";
-        InputStream is;
-        if (responseCode < HttpURLConnection.HTTP_BAD_REQUEST) {
-            is = conn.getInputStream();
-        } else {
-            errorStream = true;
-            is = conn.getErrorStream();
+    @Override
+    public void checkBatchSize(List<MailMessageDto> messages) {
+        if (messages == null || messages.isEmpty()) {
+            throw new BadRequestException("No no, cannot send a batch without any emails");
+        } else if (messages.size() > maxBatchSize) {
+            throw new BadRequestException(String.format("A batch cannot have more than %d emails", maxBatchSize));
         }
+    }
 
-        // Parse the input stream
-        StringBuilder response = new StringBuilder();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            response.append(line);
+    @Override
+    public List<BatchItemResponseDto> sendEmails(List<MailMessageDto> messages) throws Exception {
+        checkBatchSize(messages);
+
+        // Validate everything first and only then hand the valid emails over to the dispatch threads
+        BatchItemResponseDto[] results = new BatchItemResponseDto[messages.size()];
+        List<Integer> valid = new ArrayList<>(messages.size());
+        List<MailMessageDto> validMessages = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            MailMessageDto dto = messages.get(i);
+
+            List<String> errors = validateBatchItem(dto);
+            if (errors.size() > 0) {
+                results[i] = new BatchItemResponseDto(i, errors, new Date().getTime());
+            } else {
+                valid.add(i);
+                validMessages.add(dto);
+            }
         }
-        reader.close();
 
-        if (errorStream) {
-            // Save it into the queue table so we can go back to it and re-attempt
-            emailAsyncService.saveToEmailQueue(dto, response.toString());
-
-            // TODO notify the person responsible
-            // Tell the user that their email has been put into the queue
-            return new EmailResponseDto("Your email has been added into the queue", new Date().getTime());
+        // Emails with the same content go to the provider together
+        List<List<Integer>> groups = mailDispatcher.coalesce(validMessages);
+        List<Future<List<DispatchResult>>> futures = new ArrayList<>(groups.size());
+        for (List<Integer> group : groups) {
+            final List<MailMessageDto> groupMessages = new ArrayList<>(group.size());
+            for (Integer index : group) {
+                groupMessages.add(validMessages.get(index));
+            }
+            try {
+                futures.add(dispatchExecutor.submit(new Callable<List<DispatchResult>>() {
+                    @Override
+                    public List<DispatchResult> call() throws Exception {
+                        return mailDispatcher.dispatchAll(groupMessages);
+                    }
+                }));
+            } catch (TaskRejectedException e) {
+                // Every dispatch thread is busy, the emails go to the queue table instead of being sent on the request thread
+                futures.add(new AsyncResult<>(Collections.nCopies(group.size(), DispatchResult.failed("We were too busy to send the email"))));
+            }
         }
 
-        // Use future to do this as we don't want the user to wait for this process to finish
-        prepareAndSaveToEmailHistory(dto, response, conn, useSecondMail);
-
-        return new EmailResponseDto(responseMsg, new Date().getTime());
-    }
+        for (int g = 0; g < groups.size(); g++) {
+            List<Integer> group = groups.get(g);
+            List<DispatchResult> groupResults;
+            try {
+                groupResults = futures.get(g).get();
+            } catch (ExecutionException e) {
+                // One bad email shouldn't fail the whole batch, put it into the queue so it can be re-attempted
+                String reason = "Could not send the email - " + e.getCause().getMessage();
+                logger.error(reason, e.getCause());
+                groupResults = Collections.nCopies(group.size(), DispatchResult.failed(reason));
+            }
 
-    /**
-     * Prepares the data to be saved to the email history table
-     *
-     * @param dto           Mail message from the client
-     * @param response      Response from the mail provider
-     * @param conn          Http connection
-     * @param useSecondMail True if we are using the main provider
-     * @throws IOException If an exception occurs
-     */
-    private void prepareAndSaveToEmailHistory(MailMessageDto dto, StringBuilder response, HttpURLConnection conn, boolean useSecondMail) throws Exception {
-        String provider;
-        String responseId;
-        String responseMessage;
-        ObjectMapper objectMapper = new ObjectMapper();
-
-        if (!useSecondMail) {
-            provider = sendGridHttpConfig.getProvider();
-            responseId = conn.getHeaderField("X-Message-ID");
-            responseMessage = response.toString();
-            if (conn.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
-                SendGridErrorResponse errorResponse = objectMapper.readValue(response.toString(), SendGridErrorResponse.class);
-                if (errorResponse.getErrors() != null && errorResponse.getErrors().length > 0) {
-                    responseMessage = errorResponse.getErrors()[0].getMessage();
-                }
-                logger.error(objectMapper.writeValueAsString(errorResponse));
+            for (int k = 0; k < group.size(); k++) {
+                int i = valid.get(group.get(k));
+                results[i] = new BatchItemResponseDto(i, record(messages.get(i), groupResults.get(k)));
             }
-        } else {
-            MailGunResponse mailGunResponse = objectMapper.readValue(response.toString(), MailGunResponse.class);
-            provider = mailGunHttpConfig.getProvider();
-            responseId = mailGunResponse.getId();
-            responseMessage = mailGunResponse.getMessage();
         }
 
-        emailAsyncService.saveToEmailHistory(dto, responseId, responseMessage, provider);
+        return Arrays.asList(results);
     }
 
     /**
-     * Establishes a http connection and then send the data
+     * Sends an email that has already been validated to one of the providers. The email goes to the history table when the provider accepts it, otherwise
+     * it goes to the queue table so it can be re-attempted
      *
      * @param dto Mail message from the client
-     * @return Http connection
+     * @return Response to be sent back to the caller
      * @throws Exception If an exception occurs
      */
-    private HttpURLConnection connectAndSendData(MailMessageDto dto) throws Exception {
-        // Construct the data
-        byte[] data = buildMailData(dto);
-        // Build the connection
-        HttpURLConnection conn = buildConn(String.valueOf(data.length));
-        // Let's write the request data
-        writeToOutputStream(conn, data);
-
-        return conn;
+    private EmailResponseDto dispatch(MailMessageDto dto) throws Exception {
+        return record(dto, mailDispatcher.dispatch(dto));
     }
 
     /**
-     * A helper method to write the data to the output stream
+     * Saves a dispatched email into the history table, or into the queue table when it hasn't been sent
      *
-     * @param conn Http connection
-     * @param data Data
-     * @throws IOException If an exception occurs
-     */
-    private void writeToOutputStream(HttpURLConnection conn, byte[] data) throws IOException {
-        OutputStream os = conn.getOutputStream();
-        os.write(data);
-        os.close();
-    }
-
-    /**
-     * This method goes through 'to', 'cc' and 'bcc' arrays and make sure there are no duplicates in the list
-     *
-     * @param errors List of errors
      * @param dto    Mail message from the client
+     * @param result Result of the dispatch
+     * @return Response to be sent back to the caller
      */
-    private void checkDuplicateRecipients(List<String> errors, MailMessageDto dto) {
-        Set<String> toSet = new HashSet<>();
-        Set<String> ccSet = new HashSet<>();
-        Set<String> bccSet = new HashSet<>();
-
-        Set<String> duplicates = new HashSet<>();
-        for (String to : dto.getTo()) {
-            if (toSet.contains(to)) {
-                duplicates.add(to);
-            }
-            toSet.add(to);
-        }
+    private EmailResponseDto record(MailMessageDto dto, DispatchResult result) {
+        if (result.isUncertain()) {
+            // Sending it again could deliver it twice, it's kept in the queue table without being re-attempted
+            emailAsyncService.saveToEmailQueue(dto, result.getReason(), QueueStatus.UNCERTAIN);
+
+            return new EmailResponseDto("Your email may have been sent, the provider hasn't confirmed it so it won't be sent again", new Date().getTime(),
+                    EmailStatus.UNCERTAIN);
+        } else if (result.isRejected()) {
+            // Sending it again would fail the same way, it's kept in the queue table for somebody to look at
+            emailAsyncService.saveToEmailQueue(dto, result.getReason(), QueueStatus.FAILED);
+
+            return new EmailResponseDto("Your email cannot be sent - " + result.getReason(), new Date().getTime(), EmailStatus.REJECTED);
+        } else if (!result.isSent()) {
+            // Save it into the queue table so we can go back to it and re-attempt
+            emailAsyncService.saveToEmailQueue(dto, result.getReason(), QueueStatus.PENDING);
 
-        for (String cc : dto.getCc()) {
-            if (toSet.contains(cc) || ccSet.contains(cc)) {
-                duplicates.add(cc);
-            }
-            ccSet.add(cc);
+            // TODO notify the person responsible
+            // Tell the user that their email has been put into the queue
+            return new EmailResponseDto("Your email has been added into the queue", new Date().getTime(), EmailStatus.QUEUED);
         }
 
-        for (String bcc : dto.getBcc()) {
-            if (toSet.contains(bcc) || ccSet.contains(bcc) || bccSet.contains(bcc)) {
-                duplicates.add(bcc);
-            }
-            bccSet.add(bcc);
-        }
-        if (duplicates.size() > 0) {
-            errors.add(String.format("Email address in to, cc and bcc should be unique - %s", StringUtils.join(duplicates, ",")));
-        }
+        // Use future to do this as we don't want the user to wait for this process to finish
+        emailAsyncService.saveToEmailHistory(dto, null, result.getResponseId(), result.getResponseMessage(), result.getProvider());
+
+        return new EmailResponseDto("Your email has been sent", new Date().getTime(), EmailStatus.SENT);
     }
 
     /**
@@ -252,6 +219,18 @@ public class EmailServiceImpl implements EmailService {
     private List<String> validate(MailMessageDto dto) {
         List<String> errors = new ArrayList<>();
 
+        // The subject and the text come either from the email or from its template
+        if (dto.getTemplateId() == null) {
+            if (dto.getSubject() == null) {
+                errors.add("'subject' may not be null");
+            }
+            if (dto.getText() == null) {
+                errors.add("'text' may not be null");
+            }
+        } else if (dto.getSubject() != null || dto.getText() != null) {
+            errors.add("An email with a template cannot have its own subject or text");
+        }
+
         // Mandatory check - the from and to email need to exist
         if (dto.getFrom() == null || "".equals(dto.getFrom())) {
             errors.add("From email is missing");
@@ -263,182 +242,55 @@ public class EmailServiceImpl implements EmailService {
             return errors;
         }
 
-        // Email address format check
-        EmailValidator emailValidator = EmailValidator.getInstance();
-        checkEmailFormat(errors, emailValidator, new String[]{
-                dto.getFrom()
-        }, "from");
-
-        checkEmailFormat(errors, emailValidator, dto.getTo(), "to");
-        checkEmailFormat(errors, emailValidator, dto.getCc(), "cc");
-        checkEmailFormat(errors, emailValidator, dto.getBcc(), "bcc");
+        // Email address format and duplicate recipients check
+        recipientValidator.validate(dto, errors);
 
-        // Check duplicate recipients because some providers will reject duplicates
-        checkDuplicateRecipients(errors, dto);
-
-        return errors;
-    }
-
-    /**
-     * A helper method to validate if the email address is in a good format
-     *
-     * @param errors    List of errors
-     * @param validator Email validator
-     * @param emails    An array of emails
-     * @param type      To | Cc | Bcc
-     */
-    private void checkEmailFormat(List<String> errors, EmailValidator validator, String[] emails, String type) {
-        for (String email : emails) {
-            if (!validator.isValid(email)) {
-                errors.add(String.format("'%s' email is invalid - %s", type, email));
+        // A variable name ends up in a '%recipient.name%' placeholder
+        for (Map.Entry<String, String> variable : dto.getVariables().entrySet()) {
+            if (variable.getKey() == null || !VARIABLE_NAME.matcher(variable.getKey()).matches()) {
+                errors.add(String.format("Variable names can only have letters, digits, '_' and '-' - %s", variable.getKey()));
+            } else if (variable.getValue() == null) {
+                errors.add(String.format("Variable %s has no value", variable.getKey()));
             }
         }
-    }
-
-    /**
-     * Constructs the request body based on the 'useSecondMail' flag
-     *
-     * @param dto Mail message from the client
-     * @return Data in byte array
-     * @throws Exception If an exception occurs
-     */
-    private byte[] buildMailData(MailMessageDto dto) throws Exception {
-        byte[] data;
-
-        MailRequest request;
-        if (!useSecondMail) {
-            request = new SendGridRequest.Builder(dto.getFrom(), dto.getTo(), dto.getSubject(), dto.getText())
-                    .cc(dto.getCc())
-                    .bcc(dto.getBcc())
-                    .type(dto.getType())
-                    .build();
-        } else {
-            request = new MailGunRequest.Builder(dto.getFrom(), dto.getTo(), dto.getSubject(), dto.getText())
-                    .cc(dto.getCc())
-                    .bcc(dto.getBcc())
-                    .type(dto.getType())
-                    .build();
-        }
-        data = request.getData().getBytes();
 
-        return data;
-    }
-
-    /**
-     * Builds a Http connection by using SendGrid when 'useSecondMail' is false and using MailGun when 'useSecondMail' is true
-     *
-     * @param dataLength Length of the content
-     * @return Http connection for SendGrid or MailGun
-     * @throws Exception When a connection to the server cannot be established
-     */
-    private HttpURLConnection buildConn(String dataLength) throws IOException {
-        HttpURLConnection conn;
-        try {
-            if (!useSecondMail) {
-                conn = buildSendGridConn(dataLength);
+        if (dto.getTemplateId() != null) {
+            // This also puts the template into the cache before the email gets to the dispatch threads
+            CompiledTemplate template = templateCache.get(dto.getTemplateId());
+            if (template == null) {
+                errors.add(String.format("Template %d doesn't exist", dto.getTemplateId()));
             } else {
-                conn = buildMailGunConn(dataLength);
+                for (String name : template.getVariables()) {
+                    if (!dto.getVariables().containsKey(name)) {
+                        errors.add(String.format("Template %d needs variable %s", dto.getTemplateId(), name));
+                    }
+                }
             }
-        } catch (IOException e) {
-            logger.error("Could not connect to the mail provider");
-            throw new IOException("Could not connect to the mail provider");
         }
 
-        return conn;
-    }
-
-    /**
-     * This method creates a Http connection for SendGrid
-     *
-     * @param dataLength Length of the content
-     * @return Http connection for SendGrid
-     * @throws IOException When a connection to the server cannot be established
-     */
-    private HttpURLConnection buildSendGridConn(String dataLength) throws IOException {
-        HttpURLConnection conn = null;
-
-        try {
-            String urlStr = sendGridHttpConfig.getRedirectUrl() == null ? sendGridHttpConfig.getUrl() : sendGridHttpConfig.getRedirectUrl();
-            URL url = new URL(urlStr);
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setConnectTimeout(CONNECT_TIMEOUT);
-            conn.setInstanceFollowRedirects(false);
-            conn.setRequestMethod(sendGridHttpConfig.getRequestMethod());
-
-            conn.setRequestProperty("Content-Type", sendGridHttpConfig.getContentType());
-            conn.setRequestProperty("Content-Length", dataLength);
-            conn.setRequestProperty("Accept", sendGridHttpConfig.getAcceptType());
-            conn.setRequestProperty("Authorization", "Bearer " + sendGridHttpConfig.getKey());
-
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
-        } catch (IOException e) {
-            logger.error("Could not connect to the first mail provider");
-        }
-
-        return conn;
+        return errors;
     }
 
     /**
-     * This method creates a Http connection for MailGun
+     * Validates an email from a batch request. Unlike the single email request the bean constraints on the dto haven't been checked by the resource so we check them here
      *
-     * @param dataLength Length of the content
-     * @return Http connection for MailGun
-     * @throws IOException When a connection to the server cannot be established
+     * @param dto Mail message from the client
+     * @return List of errors
      */
-    private HttpURLConnection buildMailGunConn(String dataLength) throws IOException {
-        HttpURLConnection conn = null;
-
-        try {
-            String urlStr = mailGunHttpConfig.getRedirectUrl() == null ? mailGunHttpConfig.getUrl() : mailGunHttpConfig.getRedirectUrl();
-            URL url = new URL(urlStr);
-            conn = (HttpURLConnection) url.openConnection();
-
-            // Set the user and password
-            Authenticator.setDefault(new Authenticator() {
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication("api", mailGunHttpConfig.getKey().toCharArray());
-                }
-            });
-
-            conn.setConnectTimeout(CONNECT_TIMEOUT);
-            conn.setInstanceFollowRedirects(false);
-
-            conn.setRequestMethod(mailGunHttpConfig.getRequestMethod());
-            conn.setRequestProperty("Content-Type", mailGunHttpConfig.getContentType());
-            conn.setRequestProperty("Content-Length", dataLength);
+    private List<String> validateBatchItem(MailMessageDto dto) {
+        List<String> errors = new ArrayList<>();
+        if (dto == null) {
+            errors.add("Email is missing");
 
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
-        } catch (IOException e) {
-            logger.error("Could not connect to the second mail provider");
+            return errors;
         }
 
-        return conn;
-    }
-
-    /**
-     * A simple way of checking if the server is responding
-     *
-     * @param targetUrl The server url
-     * @return True if the server returns HTTP_OK or False if the server cannot be reached
-     * @throws Exception When the server cannot be reached
-     */
-    private boolean healthCheck(String targetUrl) throws Exception {
-        try {
-            URL url = new URL(targetUrl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setConnectTimeout(3000);
-            conn.setReadTimeout(3000);
-            conn.setInstanceFollowRedirects(false);
-            conn.setRequestMethod("OPTIONS");
-
-            return conn.getResponseCode() == HttpURLConnection.HTTP_OK;
-        } catch (IOException e) {
-            // TODO: Send a notification to the person responsible
-            logger.error("Ummm, it looks like I couldn't establish a connection to " + e.getMessage());
-            return false;
+        for (ConstraintViolation<MailMessageDto> violation : validator.validate(dto)) {
+            errors.add("'" + violation.getPropertyPath() + "' " + violation.getMessage());
         }
+        errors.addAll(validate(dto));
+
+        return errors;
     }
 
 }
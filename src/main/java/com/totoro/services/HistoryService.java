@@ -0,0 +1,19 @@
+package com.totoro.services;
+
+import com.totoro.dto.EmailHistoryDto;
+import com.totoro.dto.HistoryQueryDto;
+
+import java.util.List;
+
+public interface HistoryService {
+
+    /**
+     * Finds the sent emails that match the filters, a page at a time
+     *
+     * @param query Filters and the cursor of the page
+     * @return Emails newest first
+     * @throws com.totoro.exceptions.BadRequestException When the filters don't make sense
+     */
+    List<EmailHistoryDto> getHistory(HistoryQueryDto query);
+
+}
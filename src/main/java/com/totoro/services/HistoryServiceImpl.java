@@ -0,0 +1,65 @@
+package com.totoro.services;
+
+import com.totoro.archive.HistoryArchive;
+import com.totoro.dto.EmailHistoryDto;
+import com.totoro.dto.HistoryQueryDto;
+import com.totoro.exceptions.BadRequestException;
+import com.totoro.repository.EmailHistoryRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@Service
+public class HistoryServiceImpl implements HistoryService {
+
+    private final EmailHistoryRepository emailHistoryRepository;
+    private final HistoryArchive historyArchive;
+    private final int defaultLimit;
+    private final int maxLimit;
+
+    @Autowired
+    public HistoryServiceImpl(EmailHistoryRepository emailHistoryRepository, HistoryArchive historyArchive, @Value("${email.history.query.default-limit}") int defaultLimit,
+                              @Value("${email.history.query.max-limit}") int maxLimit) {
+        this.emailHistoryRepository = emailHistoryRepository;
+        this.historyArchive = historyArchive;
+        this.defaultLimit = defaultLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<EmailHistoryDto> getHistory(HistoryQueryDto query) {
+        Integer limit = query.getLimit();
+        if (limit != null && (limit < 1 || limit > maxLimit)) {
+            throw new BadRequestException(String.format("The limit has to be between 1 and %d", maxLimit));
+        } else if (query.getBeforeId() != null && query.getBefore() == null) {
+            throw new BadRequestException("'beforeId' only goes together with 'before'");
+        }
+
+        // The recipient index has the canonical addresses
+        query.setRecipient(RecipientValidator.canonicalize(query.getRecipient()));
+
+        int size = limit != null ? limit : defaultLimit;
+        List<EmailHistoryDto> emails = emailHistoryRepository.search(query, size);
+        if (emails.size() == size || !historyArchive.reaches(query)) {
+            return emails;
+        }
+
+        // The table has run out of emails, the older ones may have been archived
+        Set<Long> ids = new HashSet<>();
+        for (EmailHistoryDto email : emails) {
+            ids.add(email.getId());
+        }
+        List<EmailHistoryDto> page = new ArrayList<>(emails);
+        page.addAll(historyArchive.search(query, size - emails.size(), ids));
+
+        return page;
+    }
+
+}
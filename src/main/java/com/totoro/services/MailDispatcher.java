@@ -0,0 +1,470 @@
+package com.totoro.services;
+
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import com.totoro.dto.MailMessageDto;
+import com.totoro.mails.MailGunRequest;
+import com.totoro.mails.MailRequest;
+import com.totoro.mails.RecipientVariables;
+import com.totoro.mails.SendGridRequest;
+import com.totoro.providers.CircuitBreaker;
+import com.totoro.providers.CircuitBreakers;
+import com.totoro.providers.ProviderHealthMonitor;
+import com.totoro.providers.ProviderHedging;
+import com.totoro.providers.ProviderResponse;
+import com.totoro.providers.ProviderRouter;
+import com.totoro.providers.ProviderThrottle;
+import com.totoro.providers.ProviderThrottles;
+import com.totoro.providers.ProviderTransports;
+import com.totoro.providers.SendGuard;
+import com.totoro.providers.ThrottlePolicy;
+import com.totoro.templates.CompiledTemplate;
+import com.totoro.templates.TemplateCache;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class hands an email over to one of the providers. It doesn't know anything about the history or queue tables so it can be used by the request path as well as
+ * by the background jobs that re-attempt emails
+ */
+@Service
+public class MailDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(MailDispatcher.class);
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_UNPROCESSABLE = 422;
+    /**
+     * How long to pause a provider that has sent a 429 without a Retry-After
+     */
+    private static final long DEFAULT_RETRY_AFTER = 1000;
+    private final SendGridHttpConfiguration sendGridHttpConfig;
+    private final MailGunHttpConfiguration mailGunHttpConfig;
+    private final ProviderHealthMonitor healthMonitor;
+    private final ProviderTransports transports;
+    private final ProviderThrottles throttles;
+    private final CircuitBreakers circuitBreakers;
+    private final ProviderRouter router;
+    private final ProviderHedging hedging;
+    private final TemplateCache templateCache;
+    private final ThrottlePolicy throttlePolicy;
+    /**
+     * How long (in nanos) to wait for a throttled provider with the WAIT policy
+     */
+    private final long throttleMaxWait;
+    /**
+     * How many recipients a group of emails sent in a single request can have, 0 turns grouping off
+     */
+    private final int coalesceMaxRecipients;
+
+    @Autowired
+    public MailDispatcher(SendGridHttpConfiguration sendGridHttpConfig, MailGunHttpConfiguration mailGunHttpConfig,
+                          ProviderHealthMonitor healthMonitor, ProviderTransports transports, ProviderThrottles throttles, CircuitBreakers circuitBreakers,
+                          ProviderRouter router, ProviderHedging hedging, TemplateCache templateCache,
+                          @Value("${email.throttle.policy}") ThrottlePolicy throttlePolicy,
+                          @Value("${email.throttle.max-wait}") long throttleMaxWait,
+                          @Value("${email.coalesce.max-recipients}") int coalesceMaxRecipients) {
+        this.sendGridHttpConfig = sendGridHttpConfig;
+        this.mailGunHttpConfig = mailGunHttpConfig;
+        this.healthMonitor = healthMonitor;
+        this.transports = transports;
+        this.throttles = throttles;
+        this.circuitBreakers = circuitBreakers;
+        this.router = router;
+        this.hedging = hedging;
+        this.templateCache = templateCache;
+        this.throttlePolicy = throttlePolicy;
+        this.throttleMaxWait = TimeUnit.MILLISECONDS.toNanos(throttleMaxWait);
+        this.coalesceMaxRecipients = Math.min(coalesceMaxRecipients, SendGridRequest.MAX_PERSONALIZATIONS);
+    }
+
+    /**
+     * Sends an email that has already been validated to one of the providers
+     *
+     * @param dto Mail message
+     * @return Whether the provider has accepted the email
+     * @throws Exception If an exception occurs
+     */
+    public DispatchResult dispatch(MailMessageDto dto) throws Exception {
+        List<MailMessageDto> messages = Collections.singletonList(dto);
+        String reason = render(messages);
+        if (reason != null) {
+            return DispatchResult.rejected(reason);
+        }
+
+        return send(messages);
+    }
+
+    /**
+     * Groups the emails that can go to the provider in a single request, see {@link #dispatchAll(List)}
+     *
+     * @param messages Mail messages
+     * @return Indexes of the emails in every group
+     */
+    public List<List<Integer>> coalesce(List<MailMessageDto> messages) {
+        return MessageGroups.group(messages, coalesceMaxRecipients);
+    }
+
+    /**
+     * Sends emails that only differ by their recipients (and their variables) in a single request, so a fan-out of the same notification takes one call instead
+     * of one per email. SendGrid gets one personalization per email, MailGun a batch request with recipient-variables when every email has a single recipient.
+     * Every email gets the same response id. When the request fails before it has reached a provider the emails are sent one by one instead so a bad email
+     * doesn't take the others down with it
+     *
+     * @param messages A group of mail messages from {@link #coalesce(List)}
+     * @return One result per email in the same order
+     * @throws Exception If an exception occurs
+     */
+    public List<DispatchResult> dispatchAll(List<MailMessageDto> messages) throws Exception {
+        if (messages.size() > 1) {
+            String reason = render(messages);
+            if (reason != null) {
+                return Collections.nCopies(messages.size(), DispatchResult.rejected(reason));
+            }
+
+            DispatchResult result = send(messages);
+            if (result.isSent() || result.isUncertain()) {
+                // The provider may have delivered the group already, it's recorded as it is rather than sent one by one
+                return Collections.nCopies(messages.size(), result);
+            }
+            logger.warn("Could not send {} emails in one request, sending them one by one - {}", messages.size(), result.getReason());
+        }
+
+        List<DispatchResult> results = new ArrayList<>(messages.size());
+        for (MailMessageDto dto : messages) {
+            results.add(dispatch(dto));
+        }
+
+        return results;
+    }
+
+    /**
+     * Fills in the subject, the text and the type of the emails that are sent with a template, on the dispatch thread rather than on the caller's. An email
+     * that is sent on its own gets its variables rendered in, a group keeps the placeholders so the provider substitutes them for every recipient. An email
+     * that already has its text (one that has been re-attempted or that has been in a group) is left as it is
+     *
+     * @param messages One email or a group of emails with the same template
+     * @return Null or why the emails cannot be sent
+     */
+    private String render(List<MailMessageDto> messages) {
+        CompiledTemplate template = null;
+        for (MailMessageDto dto : messages) {
+            if (dto.getTemplateId() == null || dto.getText() != null) {
+                continue;
+            }
+
+            if (template == null || template.getId() != dto.getTemplateId()) {
+                template = templateCache.get(dto.getTemplateId());
+                if (template == null) {
+                    return String.format("Template %d doesn't exist", dto.getTemplateId());
+                }
+            }
+            if (messages.size() == 1) {
+                dto.setSubject(template.renderSubject(dto.getVariables()));
+                dto.setText(template.renderText(dto.getVariables()));
+            } else {
+                dto.setSubject(template.getSubject());
+                dto.setText(template.getText());
+            }
+            dto.setType(template.getType());
+        }
+
+        return null;
+    }
+
+    /**
+     * @param messages One email or a group of emails with the same content
+     * @return Whether the provider has accepted the emails
+     * @throws Exception If an exception occurs
+     */
+    private DispatchResult send(List<MailMessageDto> messages) throws Exception {
+        // Health check - this only reads the latest snapshot from the health monitor, the probing itself happens in the background
+        List<MailHttpConfiguration> providers = new ArrayList<>(2);
+        if (healthMonitor.isAvailable(sendGridHttpConfig)) {
+            providers.add(sendGridHttpConfig);
+        }
+        if (healthMonitor.isAvailable(mailGunHttpConfig)) {
+            providers.add(mailGunHttpConfig);
+        }
+        if (providers.isEmpty()) {
+            String reason = "Both providers couldn't be reached!!!";
+            logger.warn(reason);
+
+            return DispatchResult.failed(reason);
+        }
+
+        // The router decides which provider goes first by the weights and how the providers have been doing lately
+        providers = router.route(providers);
+
+        // A provider whose circuit is open or that cannot be reached is skipped straight away, a throttled one only with the DIVERT policy. Once a provider has had
+        // the whole request the email never goes to the other one, whatever the outcome, otherwise it could be delivered twice
+        String reason = null;
+        for (int i = 0; i < providers.size(); i++) {
+            MailHttpConfiguration config = providers.get(i);
+            MailRequest request = buildMailRequest(config, messages);
+            if (request == null) {
+                reason = config.getProvider() + " cannot send these emails in one request";
+                continue;
+            }
+
+            CircuitBreaker breaker = circuitBreakers.get(config);
+            if (!breaker.tryAcquire()) {
+                reason = config.getProvider() + " keeps failing, its circuit is open";
+                continue;
+            }
+
+            // Every way out of the call has to give the permit back, a half open circuit only has a few of them
+            boolean settled = false;
+            try {
+                ProviderThrottle throttle = throttles.get(config);
+                if (!throttle.acquire(throttlePolicy == ThrottlePolicy.WAIT ? throttleMaxWait : 0)) {
+                    reason = config.getProvider() + " is throttled";
+                    if (throttlePolicy == ThrottlePolicy.DIVERT) {
+                        continue;
+                    }
+                    break;
+                }
+
+                // A slow provider is only hedged when there's another one to take the email, the others get a guard without a timer
+                SendGuard guard = i < providers.size() - 1 ? hedging.guard(config) : null;
+                if (guard == null) {
+                    guard = new SendGuard();
+                }
+                ProviderResponse response;
+                long start = System.nanoTime();
+                try {
+                    response = sendData(config, request, guard);
+                } catch (IOException e) {
+                    if (guard.isHedged()) {
+                        // Nothing has been sent, the provider was just slow to take the email
+                        reason = config.getProvider() + " was too slow to take the email";
+                        logger.warn("{} hasn't taken the email within {}ms, hedging it to the next provider", config.getProvider(), elapsedSince(start));
+                        continue;
+                    }
+                    long elapsed = elapsedSince(start);
+                    breaker.onFailure(elapsed);
+                    settled = true;
+                    router.onFailure(config, elapsed);
+                    if (neverLeft(e, guard)) {
+                        reason = "Could not connect to the mail provider " + config.getProvider();
+                        continue;
+                    }
+                    // The provider may have the email already, sending it to the other one could deliver it twice
+                    reason = "Lost the connection to the mail provider " + config.getProvider() + " after sending the email";
+                    logger.warn(reason);
+                    return DispatchResult.uncertain(reason);
+                } finally {
+                    throttle.release();
+                    guard.close();
+                    if (!guard.isHedged()) {
+                        // Hedging can only happen before the body is written so that's the part of the call it's timed on
+                        hedging.record(config, guard.getTimeToWrite());
+                    }
+                }
+
+                if (response.getStatusCode() == HTTP_TOO_MANY_REQUESTS) {
+                    // The provider wants us to slow down, it's not an error with the email nor with the provider and it hasn't taken the email
+                    long retryAfter = getRetryAfter(response);
+                    logger.warn("{} has throttled us, pausing it for {}ms", config.getProvider(), retryAfter);
+                    throttle.pause(retryAfter);
+                    reason = config.getProvider() + " has throttled the request";
+                    if (throttlePolicy == ThrottlePolicy.DIVERT) {
+                        continue;
+                    }
+                    break;
+                }
+                if (response.getStatusCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    long elapsed = elapsedSince(start);
+                    breaker.onFailure(elapsed);
+                    settled = true;
+                    router.onFailure(config, elapsed);
+                    logger.warn("{} has failed with {} - {}", config.getProvider(), response.getStatusCode(), response.getBody());
+                    // A 503 says that the email hasn't been handled so it can be re-attempted later. With any other error the provider has had the whole
+                    // email and we can't tell whether it's going to deliver it
+                    if (response.getStatusCode() == HttpURLConnection.HTTP_UNAVAILABLE) {
+                        return DispatchResult.failed(response.getBody());
+                    }
+                    return DispatchResult.uncertain(response.getBody());
+                }
+
+                // A 4xx is a problem with the email, not with the provider
+                long elapsed = elapsedSince(start);
+                breaker.onSuccess(elapsed);
+                settled = true;
+                router.onSuccess(config, elapsed);
+                return handleResponse(config, request, response);
+            } finally {
+                if (!settled) {
+                    breaker.release();
+                }
+            }
+        }
+
+        logger.warn(reason);
+        return DispatchResult.failed(reason);
+    }
+
+    /**
+     * @param config   Provider config
+     * @param request  Request body that has been sent
+     * @param response Response from the provider
+     * @return Whether the provider has accepted the email
+     * @throws Exception If an exception occurs
+     */
+    private DispatchResult handleResponse(MailHttpConfiguration config, MailRequest request, ProviderResponse response) throws Exception {
+        int responseCode = response.getStatusCode();
+        // The following redirect handling is very simple - I don't expect it to happen because normally redirect happens from http to https and also I don't expect the provider to change the url endpoint
+        // Handle 301 or 302 - If the url has been marked as 301 or 302 then let the persona responsible know
+        if (responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP) {
+            // TODO: Send a notification to the person responsible
+            String message = "The request gets redirected, this is not supported yet so please check and update the url accordingly in the config - redirected url: " + response.getHeader("Location");
+            logger.warn(message);
+
+            // Let's do it again with the new url
+            config.setRedirectUrl(response.getHeader("Location"));
+            response = sendData(config, request, null);
+
+            responseCode = response.getStatusCode();
+        }
+
+        // Handle normal and error response
+        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            // SendGrid explains what's wrong with the email in 'errors', MailGun in 'message'
+            String reason = response.getErrorMessage() != null ? response.getErrorMessage() : response.getMessage();
+            reason = reason != null ? reason : response.getBody();
+            // The provider has found something wrong with the email itself, any other 4xx (e.g. a bad key) can be fixed on our side
+            if (responseCode == HttpURLConnection.HTTP_BAD_REQUEST || responseCode == HttpURLConnection.HTTP_ENTITY_TOO_LARGE || responseCode == HTTP_UNPROCESSABLE) {
+                return DispatchResult.rejected(reason);
+            }
+            return DispatchResult.failed(reason);
+        }
+
+        return toDispatchResult(config, response);
+    }
+
+    /**
+     * @param e     Why the call has failed
+     * @param guard Guard of the call
+     * @return Whether the request provably hasn't reached the provider, only then can the email go to the other provider
+     */
+    private boolean neverLeft(IOException e, SendGuard guard) {
+        return e instanceof ConnectionPoolTimeoutException || e instanceof ConnectException || !guard.hasStartedWriting();
+    }
+
+    private long elapsedSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * @param response 429 response
+     * @return How long the provider wants us to wait in milliseconds, the header can also be a date but none of our providers send one
+     */
+    private long getRetryAfter(ProviderResponse response) {
+        String retryAfter = response.getHeader("Retry-After");
+        if (retryAfter != null && retryAfter.trim().matches("\\d+")) {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        }
+
+        return DEFAULT_RETRY_AFTER;
+    }
+
+    /**
+     * Picks the values that we keep in the email history table out of the provider's response
+     *
+     * @param config   Provider config
+     * @param response Response from the mail provider
+     * @return The result of the sent email
+     */
+    private DispatchResult toDispatchResult(MailHttpConfiguration config, ProviderResponse response) {
+        if (config == sendGridHttpConfig) {
+            return DispatchResult.sent(sendGridHttpConfig.getProvider(), response.getHeader("X-Message-ID"), response.getBody());
+        }
+
+        return DispatchResult.sent(mailGunHttpConfig.getProvider(), response.getId(), response.getMessage());
+    }
+
+    /**
+     * Sends the data to the selected provider over one of its pooled connections
+     *
+     * @param config  Provider config
+     * @param request Request body, it's written straight to the connection
+     * @param guard   Hedge guard of the email, null when it can't be hedged
+     * @return Response from the provider
+     * @throws Exception If an exception occurs
+     */
+    private ProviderResponse sendData(MailHttpConfiguration config, MailRequest request, SendGuard guard) throws Exception {
+        try {
+            return transports.get(config).send(request, guard);
+        } catch (IOException e) {
+            if (guard == null || !guard.isHedged()) {
+                logger.error("Could not send the email to the mail provider " + config.getProvider(), e);
+            }
+            // The caller needs the original exception to tell whether the request has left
+            throw e;
+        }
+    }
+
+    /**
+     * Constructs the request body for the selected provider
+     *
+     * @param config   Provider config
+     * @param messages One email or a group of emails with the same content
+     * @return Request body or null when the provider cannot send the group in one request
+     * @throws IOException If the request body cannot be constructed
+     */
+    private MailRequest buildMailRequest(MailHttpConfiguration config, List<MailMessageDto> messages) throws IOException {
+        MailMessageDto dto = messages.get(0);
+        if (config == sendGridHttpConfig) {
+            SendGridRequest.Builder builder = new SendGridRequest.Builder(dto.getFrom(), dto.getTo(), dto.getSubject(), dto.getText())
+                    .cc(dto.getCc())
+                    .bcc(dto.getBcc())
+                    .type(dto.getType())
+                    .variables(dto.getVariables());
+            for (int i = 1; i < messages.size(); i++) {
+                MailMessageDto other = messages.get(i);
+                builder.personalization(other.getTo(), other.getCc(), other.getBcc(), other.getVariables());
+            }
+
+            return builder.build();
+        }
+
+        if (messages.size() == 1) {
+            // The variables of a single email go to all of its recipients, batch mode would send each of them a separate email
+            return new MailGunRequest.Builder(dto.getFrom(), dto.getTo(), RecipientVariables.substitute(dto.getSubject(), dto.getVariables()),
+                    RecipientVariables.substitute(dto.getText(), dto.getVariables()))
+                    .cc(dto.getCc())
+                    .bcc(dto.getBcc())
+                    .type(dto.getType())
+                    .build();
+        }
+
+        // Batch mode sends a separate email to every 'to' recipient, so it only fits emails that have a single recipient each
+        Map<String, Map<String, String>> recipients = new LinkedHashMap<>();
+        for (MailMessageDto message : messages) {
+            if (message.getTo().length != 1 || message.getCc().length > 0 || message.getBcc().length > 0
+                    || recipients.put(message.getTo()[0], message.getVariables()) != null || recipients.size() > MailGunRequest.MAX_BATCH_RECIPIENTS) {
+                return null;
+            }
+        }
+
+        return new MailGunRequest.Builder(dto.getFrom(), recipients.keySet().toArray(new String[recipients.size()]), dto.getSubject(), dto.getText())
+                .type(dto.getType())
+                .recipientVariables(recipients)
+                .build();
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.totoro.services;
+
+import com.totoro.dto.MailMessageDto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups emails that only differ by their recipients (same sender, reply-to, subject, text, type and template) so that they can be sent to the provider in a
+ * single request
+ */
+final class MessageGroups {
+
+    private MessageGroups() {
+    }
+
+    /**
+     * @param messages      Emails to group
+     * @param maxRecipients How many recipients a group can have in total, a bigger group is split. 0 doesn't group at all
+     * @return Indexes of the emails in every group, the groups and the emails in them keep the order of the emails
+     */
+    static List<List<Integer>> group(List<MailMessageDto> messages, int maxRecipients) {
+        Map<Content, List<List<Integer>>> groups = new LinkedHashMap<>();
+        Map<Content, Integer> recipients = new LinkedHashMap<>();
+        List<List<Integer>> result = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            MailMessageDto dto = messages.get(i);
+            int count = dto.getTo().length + dto.getCc().length + dto.getBcc().length;
+            if (maxRecipients <= 0) {
+                result.add(Arrays.asList(i));
+                continue;
+            }
+
+            Content content = new Content(dto);
+            List<List<Integer>> chunks = groups.get(content);
+            if (chunks == null) {
+                chunks = new ArrayList<>();
+                groups.put(content, chunks);
+            }
+            Integer inLastChunk = recipients.get(content);
+            if (chunks.isEmpty() || inLastChunk + count > maxRecipients) {
+                chunks.add(new ArrayList<Integer>());
+                inLastChunk = 0;
+            }
+            chunks.get(chunks.size() - 1).add(i);
+            recipients.put(content, inLastChunk + count);
+        }
+
+        for (List<List<Integer>> chunks : groups.values()) {
+            result.addAll(chunks);
+        }
+
+        return result;
+    }
+
+    /**
+     * The part of an email that has to be the same for it to be grouped, the strings are compared as they are without copying them
+     */
+    private static final class Content {
+        private final String[] fields;
+        private final int hash;
+
+        private Content(MailMessageDto dto) {
+            this.fields = new String[]{dto.getFrom(), dto.getReplyTo(), dto.getSubject(), dto.getText(), dto.getType(),
+                    dto.getTemplateId() != null ? dto.getTemplateId().toString() : null};
+            this.hash = Arrays.hashCode(fields);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Content && hash == ((Content) o).hash && Arrays.equals(fields, ((Content) o).fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
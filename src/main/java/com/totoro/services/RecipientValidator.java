@@ -0,0 +1,159 @@
+package com.totoro.services;
+
+import com.totoro.dto.MailMessageDto;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.validator.routines.EmailValidator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the addresses of an email. We send to the same addresses over and over so the verdict of every address is cached, EmailValidator is quite expensive with
+ * its regular expressions and domain checks.
+ * <p>
+ * The cache keeps two generations of verdicts. When the current one is full it becomes the old one and the previous old one is dropped, a verdict that is found
+ * in the old generation is moved back into the current one. That keeps the cache bounded (at most twice the cache size) and only takes a lock when a generation is full.
+ */
+@Component
+public class RecipientValidator implements PublicMetrics {
+
+    private final EmailValidator emailValidator = EmailValidator.getInstance();
+    private final int generationSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile ConcurrentMap<String, Boolean> current = new ConcurrentHashMap<>();
+    private volatile ConcurrentMap<String, Boolean> old = new ConcurrentHashMap<>();
+
+    /**
+     * @param cacheSize How many verdicts a generation of the cache holds
+     */
+    @Autowired
+    public RecipientValidator(@Value("${email.validation.cache-size}") int cacheSize) {
+        this.generationSize = cacheSize;
+    }
+
+    /**
+     * Checks the format of the sender and of every recipient and that no recipient is there twice in to, cc and bcc, in a single pass over the addresses
+     *
+     * @param dto    Mail message from the client
+     * @param errors Where the errors are added to
+     */
+    public void validate(MailMessageDto dto, List<String> errors) {
+        checkFormat(errors, dto.getFrom(), "from");
+
+        // Some providers reject duplicates, and they compare the domain without its case
+        Set<String> recipients = new HashSet<>();
+        Set<String> duplicates = null;
+        String[][] lists = {dto.getTo(), dto.getCc(), dto.getBcc()};
+        String[] types = {"to", "cc", "bcc"};
+        for (int i = 0; i < lists.length; i++) {
+            for (String recipient : lists[i]) {
+                checkFormat(errors, recipient, types[i]);
+                if (!recipients.add(canonicalize(recipient))) {
+                    if (duplicates == null) {
+                        duplicates = new LinkedHashSet<>();
+                    }
+                    duplicates.add(recipient);
+                }
+            }
+        }
+
+        if (duplicates != null) {
+            errors.add(String.format("Email address in to, cc and bcc should be unique - %s", StringUtils.join(duplicates, ",")));
+        }
+    }
+
+    /**
+     * @param email Email address
+     * @return Whether the address is in a good format
+     */
+    public boolean isValid(String email) {
+        if (email == null) {
+            return false;
+        }
+
+        String key = canonicalize(email);
+        Boolean verdict = current.get(key);
+        if (verdict == null) {
+            verdict = old.get(key);
+            if (verdict == null) {
+                misses.incrementAndGet();
+                verdict = emailValidator.isValid(email);
+            } else {
+                hits.incrementAndGet();
+            }
+            remember(key, verdict);
+        } else {
+            hits.incrementAndGet();
+        }
+
+        return verdict;
+    }
+
+    /**
+     * The local part of an address may be case sensitive but the domain never is
+     *
+     * @param email Email address
+     * @return The address with its domain in lower case
+     */
+    public static String canonicalize(String email) {
+        if (email == null) {
+            return null;
+        }
+
+        int at = email.lastIndexOf('@');
+        if (at < 0) {
+            return email;
+        }
+
+        String domain = email.substring(at + 1);
+        String lowerCase = domain.toLowerCase(Locale.ROOT);
+
+        return lowerCase.equals(domain) ? email : email.substring(0, at + 1) + lowerCase;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("validation.cache.hits", hits.get()));
+        metrics.add(new Metric<>("validation.cache.misses", misses.get()));
+        metrics.add(new Metric<>("validation.cache.size", current.size() + old.size()));
+
+        return metrics;
+    }
+
+    private void remember(String key, Boolean verdict) {
+        ConcurrentMap<String, Boolean> generation = current;
+        generation.put(key, verdict);
+        if (generation.size() >= generationSize) {
+            synchronized (this) {
+                // Another thread may have rolled it already
+                if (current == generation) {
+                    old = generation;
+                    current = new ConcurrentHashMap<>();
+                }
+            }
+        }
+    }
+
+    private void checkFormat(List<String> errors, String email, String type) {
+        if (!isValid(email)) {
+            errors.add(String.format("'%s' email is invalid - %s", type, email));
+        }
+    }
+
+}
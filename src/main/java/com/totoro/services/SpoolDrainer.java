@@ -0,0 +1,256 @@
+package com.totoro.services;
+
+import com.totoro.domain.EmailHistory;
+import com.totoro.domain.EmailQueue;
+import com.totoro.domain.QueueStatus;
+import com.totoro.dto.MailMessageDto;
+import com.totoro.repository.EmailQueueRepository;
+import com.totoro.spool.EmailSpool;
+import com.totoro.spool.SpoolPosition;
+import com.totoro.spool.SpoolRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the emails that have been accepted into the {@link EmailSpool}.
+ * <p>
+ * It reads a batch of records, sends them in parallel and saves the outcome of every email (history or queue table) in a single transaction before it moves the
+ * checkpoint past them. When the database is down the outcome is retried until it has been saved, so the spool keeps every email until the database is back.
+ * An email can be sent twice if the application goes down between sending it and moving the checkpoint.
+ */
+@Component
+public class SpoolDrainer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpoolDrainer.class);
+
+    private final EmailSpool emailSpool;
+    private final MailDispatcher mailDispatcher;
+    private final EmailHistoryWriter emailHistoryWriter;
+    private final EmailQueueRepository emailQueueRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final AsyncTaskExecutor dispatchExecutor;
+    private final int batchSize;
+    private final long retryDelay;
+
+    private volatile boolean running;
+    private Thread drainer;
+
+    @Autowired
+    public SpoolDrainer(EmailSpool emailSpool, MailDispatcher mailDispatcher, EmailHistoryWriter emailHistoryWriter, EmailQueueRepository emailQueueRepository,
+                        PlatformTransactionManager transactionManager, @Qualifier("mailDispatchExecutor") AsyncTaskExecutor dispatchExecutor,
+                        @Value("${email.spool.drain.batch-size}") int batchSize,
+                        @Value("${email.spool.drain.retry-delay}") long retryDelay) {
+        this.emailSpool = emailSpool;
+        this.mailDispatcher = mailDispatcher;
+        this.emailHistoryWriter = emailHistoryWriter;
+        this.emailQueueRepository = emailQueueRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.dispatchExecutor = dispatchExecutor;
+        this.batchSize = batchSize;
+        this.retryDelay = retryDelay;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!emailSpool.isEnabled()) {
+            return;
+        }
+
+        running = true;
+        drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainUntilStopped();
+            }
+        }, "spool-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Stops the drainer, a batch that is being delivered is delivered again after the restart
+     *
+     * @throws InterruptedException If we get interrupted while waiting for the drainer
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        drainer.interrupt();
+        drainer.join(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    private void drainUntilStopped() {
+        while (running) {
+            try {
+                List<SpoolRecord> records = emailSpool.read(batchSize);
+                if (records.isEmpty()) {
+                    emailSpool.awaitRecords(retryDelay);
+                    continue;
+                }
+
+                SpoolPosition position = emailSpool.getReadPosition();
+                save(records, deliver(records));
+                emailSpool.checkpoint(position);
+            } catch (InterruptedException e) {
+                // stop() interrupts us
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                logger.error("Could not read the email spool", e);
+                sleep();
+            }
+        }
+    }
+
+    /**
+     * Sends the spooled emails in parallel, emails with the same content go to the provider together
+     *
+     * @param records Spooled emails
+     * @return One result per email in the same order
+     * @throws InterruptedException If we get interrupted while waiting for the emails to be sent
+     */
+    private List<DispatchResult> deliver(List<SpoolRecord> records) throws InterruptedException {
+        List<MailMessageDto> messages = new ArrayList<>(records.size());
+        for (SpoolRecord record : records) {
+            messages.add(record.getMessage());
+        }
+
+        List<List<Integer>> groups = mailDispatcher.coalesce(messages);
+        List<Future<List<DispatchResult>>> futures = new ArrayList<>(groups.size());
+        for (List<Integer> group : groups) {
+            final List<MailMessageDto> groupMessages = new ArrayList<>(group.size());
+            for (Integer index : group) {
+                groupMessages.add(messages.get(index));
+            }
+            FutureTask<List<DispatchResult>> task = new FutureTask<>(new Callable<List<DispatchResult>>() {
+                @Override
+                public List<DispatchResult> call() throws Exception {
+                    return mailDispatcher.dispatchAll(groupMessages);
+                }
+            });
+            try {
+                dispatchExecutor.execute(task);
+            } catch (TaskRejectedException e) {
+                // The requests are keeping every dispatch thread busy, this thread sends the emails itself
+                task.run();
+            }
+            futures.add(task);
+        }
+
+        DispatchResult[] results = new DispatchResult[records.size()];
+        for (int g = 0; g < groups.size(); g++) {
+            List<Integer> group = groups.get(g);
+            List<DispatchResult> groupResults;
+            try {
+                groupResults = futures.get(g).get();
+            } catch (ExecutionException e) {
+                logger.error("Could not send " + group.size() + " spooled emails", e.getCause());
+                groupResults = Collections.nCopies(group.size(), DispatchResult.failed("Could not send the email - " + e.getCause().getMessage()));
+            }
+
+            for (int k = 0; k < group.size(); k++) {
+                results[group.get(k)] = groupResults.get(k);
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Saves the sent emails into the history table and the rest into the queue table, it keeps trying until it succeeds
+     *
+     * @param records Spooled emails
+     * @param results Their results
+     * @throws InterruptedException If we get interrupted while waiting for the next attempt
+     */
+    private void save(final List<SpoolRecord> records, final List<DispatchResult> results) throws InterruptedException {
+        while (true) {
+            try {
+                transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        saveInTransaction(records, results);
+                    }
+                });
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Could not save " + records.size() + " spooled emails, trying again in " + retryDelay + "ms", e);
+                Thread.sleep(retryDelay);
+            }
+        }
+    }
+
+    private void saveInTransaction(List<SpoolRecord> records, List<DispatchResult> results) {
+        // The entities are created on every attempt, a rolled back attempt may have left ids behind
+        List<EmailHistory> histories = new ArrayList<>();
+        List<EmailQueue> queue = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            MailMessageDto dto = records.get(i).getMessage();
+            DispatchResult result = results.get(i);
+            if (result.isSent()) {
+                EmailHistory history = new EmailHistory(dto.getFrom(), dto.getReplyTo(), dto.getTo(), dto.getCc(), dto.getBcc(), dto.getSubject(), dto.getText(),
+                        dto.getType(), result.getProvider(), result.getResponseId(), result.getResponseMessage());
+                history.setTrackingId(records.get(i).getTrackingId());
+                histories.add(history);
+            } else {
+                EmailQueue email = new EmailQueue(dto.getFrom(), dto.getReplyTo(), dto.getTo(), dto.getCc(), dto.getBcc(), dto.getSubject(), dto.getText(),
+                        dto.getType(), result.getReason());
+                email.setTrackingId(records.get(i).getTrackingId());
+                email.setVariables(dto.getVariables());
+                email.setTemplateId(dto.getTemplateId());
+                if (result.isUncertain()) {
+                    // It may have been delivered, it isn't re-attempted
+                    email.setStatus(QueueStatus.UNCERTAIN);
+                } else if (result.isRejected()) {
+                    // It would fail the same way, it isn't re-attempted either
+                    email.setStatus(QueueStatus.FAILED);
+                }
+                queue.add(email);
+            }
+        }
+
+        if (!histories.isEmpty()) {
+            emailHistoryWriter.writeNow(histories);
+        }
+        if (!queue.isEmpty()) {
+            emailQueueRepository.save(queue);
+        }
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(retryDelay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+}
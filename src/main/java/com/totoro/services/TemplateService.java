@@ -0,0 +1,46 @@
+package com.totoro.services;
+
+import com.totoro.domain.EmailTemplate;
+import com.totoro.dto.TemplateDto;
+
+import java.util.List;
+
+public interface TemplateService {
+
+    /**
+     * @return All the templates
+     */
+    List<EmailTemplate> getTemplates();
+
+    /**
+     * @param id Template id
+     * @return The template
+     * @throws com.totoro.exceptions.ResourceNotFoundException When the template doesn't exist
+     */
+    EmailTemplate getTemplate(long id);
+
+    /**
+     * @param template Template from the client
+     * @return The saved template
+     */
+    EmailTemplate createTemplate(TemplateDto template);
+
+    /**
+     * Updates a template, the emails that are sent from now on get the new version
+     *
+     * @param id       Template id
+     * @param template Template from the client
+     * @return The saved template
+     * @throws com.totoro.exceptions.ResourceNotFoundException When the template doesn't exist
+     */
+    EmailTemplate updateTemplate(long id, TemplateDto template);
+
+    /**
+     * Deletes a template, the emails that use it and haven't been sent yet go into the queue table
+     *
+     * @param id Template id
+     * @throws com.totoro.exceptions.ResourceNotFoundException When the template doesn't exist
+     */
+    void deleteTemplate(long id);
+
+}
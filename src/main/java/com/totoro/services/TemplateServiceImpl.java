@@ -0,0 +1,66 @@
+package com.totoro.services;
+
+import com.totoro.domain.EmailTemplate;
+import com.totoro.dto.TemplateDto;
+import com.totoro.exceptions.ResourceNotFoundException;
+import com.totoro.repository.EmailTemplateRepository;
+import com.totoro.templates.TemplateCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+@Service
+public class TemplateServiceImpl implements TemplateService {
+
+    private final EmailTemplateRepository emailTemplateRepository;
+    private final TemplateCache templateCache;
+
+    @Autowired
+    public TemplateServiceImpl(EmailTemplateRepository emailTemplateRepository, TemplateCache templateCache) {
+        this.emailTemplateRepository = emailTemplateRepository;
+        this.templateCache = templateCache;
+    }
+
+    @Override
+    public List<EmailTemplate> getTemplates() {
+        return emailTemplateRepository.findAll();
+    }
+
+    @Override
+    public EmailTemplate getTemplate(long id) {
+        EmailTemplate template = emailTemplateRepository.findOne(id);
+        if (template == null) {
+            throw new ResourceNotFoundException(String.format("Template %d doesn't exist", id));
+        }
+
+        return template;
+    }
+
+    @Override
+    public EmailTemplate createTemplate(TemplateDto dto) {
+        return emailTemplateRepository.save(new EmailTemplate(dto.getName(), dto.getSubject(), dto.getText(), dto.getType()));
+    }
+
+    @Override
+    public EmailTemplate updateTemplate(long id, TemplateDto dto) {
+        EmailTemplate template = getTemplate(id);
+        template.setName(dto.getName());
+        template.setSubject(dto.getSubject());
+        template.setText(dto.getText());
+        template.setType(dto.getType());
+        template = emailTemplateRepository.save(template);
+
+        // Only once the new version has been committed, a cache miss in between would read the old one again
+        templateCache.invalidate(id);
+
+        return template;
+    }
+
+    @Override
+    public void deleteTemplate(long id) {
+        emailTemplateRepository.delete(getTemplate(id));
+        templateCache.invalidate(id);
+    }
+
+}
@@ -0,0 +1,555 @@
+package com.totoro.spool;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.totoro.dto.MailMessageDto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A durable append-only spool of emails that have been accepted but not sent yet.
+ * <p>
+ * The spool is a directory of segment files (spool-0000000000000000.log, ...). Every record is the length and CRC32 of its payload followed by the payload, which is the
+ * email as json. An append returns once the record is on disk. The fsync runs on a separate thread and each fsync covers every record that has been written while the
+ * previous one was running (group commit), so many concurrent appends share a single fsync.
+ * <p>
+ * There is a single reader which follows the spool from the checkpoint, the position up to which every email has been delivered. Segments before the checkpoint are deleted.
+ * A record the reader cannot decode, and the rest of a segment after a corrupt record, are copied into the quarantine directory first so they can be looked at.
+ */
+@Component
+public class EmailSpool implements PublicMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailSpool.class);
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String QUARANTINE = "quarantine";
+    /**
+     * Length and CRC32 of the payload
+     */
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final File directory;
+    private final long segmentSize;
+
+    /**
+     * Guards the segment that is being written to
+     */
+    private final Object writeLock = new Object();
+    private FileChannel channel;
+    private long segment;
+
+    /**
+     * Guards the written and synced positions
+     */
+    private final Object syncLock = new Object();
+    private SpoolPosition written;
+    private SpoolPosition synced;
+    private IOException syncFailure;
+
+    /**
+     * Only used by the reader
+     */
+    private FileChannel readChannel;
+    private long readSegment = -1;
+    private SpoolPosition readPosition;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong skippedRecords = new AtomicLong();
+    private final AtomicLong skippedSegments = new AtomicLong();
+
+    private volatile boolean running;
+    private Thread syncer;
+
+    @Autowired
+    public EmailSpool(ObjectMapper objectMapper, @Value("${email.spool.enabled}") boolean enabled, @Value("${email.spool.directory}") String directory,
+                      @Value("${email.spool.segment-size}") long segmentSize) {
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.directory = new File(directory);
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the last segment for writing. A record that was only partially written when the application went down has never been acknowledged, so it's truncated
+     *
+     * @throws IOException If the spool cannot be opened
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the spool directory " + directory);
+        }
+
+        List<Long> segments = segments();
+        segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        channel = openSegment(segment, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long end = 0;
+        byte[] payload;
+        while ((payload = readPayload(channel, end)) != null) {
+            end += HEADER_SIZE + payload.length;
+        }
+        if (end < channel.size()) {
+            logger.warn("Truncating an incomplete record at {} of spool segment {}", end, segment);
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+        written = synced = new SpoolPosition(segment, end);
+        readPosition = readCheckpoint();
+
+        running = true;
+        syncer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncUntilClosed();
+            }
+        }, "spool-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        logger.info("Opened the email spool in {}, reading from {}", directory.getAbsolutePath(), readPosition);
+    }
+
+    /**
+     * Syncs whatever is left and closes the spool
+     *
+     * @throws IOException          If the segment cannot be synced
+     * @throws InterruptedException If we get interrupted while waiting for the last sync
+     */
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        if (!running) {
+            return;
+        }
+
+        synchronized (syncLock) {
+            running = false;
+            syncLock.notifyAll();
+        }
+        syncer.join(TimeUnit.SECONDS.toMillis(30));
+
+        synchronized (writeLock) {
+            channel.force(false);
+            channel.close();
+        }
+        synchronized (this) {
+            if (readChannel != null) {
+                readChannel.close();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Writes an email into the spool and waits until it is on disk
+     *
+     * @param message Email to be sent
+     * @return The record, its tracking id identifies the email from now on
+     * @throws IOException If the email couldn't be written or synced
+     */
+    public SpoolRecord append(MailMessageDto message) throws IOException {
+        if (!running) {
+            throw new IllegalStateException("The email spool is not open");
+        }
+
+        SpoolRecord record = new SpoolRecord(UUID.randomUUID().toString(), message);
+        byte[] payload = objectMapper.writeValueAsBytes(record);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        buffer.flip();
+
+        SpoolPosition end;
+        synchronized (writeLock) {
+            long start = channel.position();
+            if (start > 0 && start + buffer.remaining() > segmentSize) {
+                roll();
+                start = 0;
+            }
+
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                // Don't leave half a record behind, the records after it couldn't be read
+                channel.truncate(start);
+                channel.position(start);
+                throw e;
+            }
+            end = new SpoolPosition(segment, channel.position());
+        }
+        appended.incrementAndGet();
+
+        synchronized (syncLock) {
+            if (end.isAfter(written)) {
+                written = end;
+                syncLock.notifyAll();
+            }
+            while (end.isAfter(synced)) {
+                if (syncFailure != null) {
+                    throw new IOException("Could not sync the email spool", syncFailure);
+                }
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the email spool to be synced");
+                }
+            }
+        }
+
+        record.setEnd(end);
+        return record;
+    }
+
+    /**
+     * Reads the next records that are on disk and moves the read position past them. The read position never goes past a record that isn't returned, unless
+     * the record has been quarantined
+     *
+     * @param max Maximum number of records
+     * @return Records, empty if there's nothing new
+     * @throws IOException If the spool cannot be read and no record has been read yet
+     */
+    public synchronized List<SpoolRecord> read(int max) throws IOException {
+        List<SpoolRecord> records = new ArrayList<>();
+        SpoolPosition limit = getSynced();
+        try {
+            while (records.size() < max && limit.isAfter(readPosition)) {
+                FileChannel reader = readChannel(readPosition.getSegment());
+                long end = readPosition.getSegment() == limit.getSegment() ? limit.getOffset() : reader.size();
+                if (readPosition.getOffset() >= end) {
+                    readPosition = new SpoolPosition(readPosition.getSegment() + 1, 0);
+                    continue;
+                }
+
+                byte[] payload = readPayload(reader, readPosition.getOffset());
+                if (payload == null) {
+                    // Only the tail of the last segment can be incomplete and it's truncated when the spool is opened, so the disk must be damaged
+                    File copy = quarantine(segmentFile(readPosition.getSegment()));
+                    logger.error("Corrupt record at {} of the email spool, skipping the rest of the segment, it has been copied to {}", readPosition, copy);
+                    skippedSegments.incrementAndGet();
+                    readPosition = new SpoolPosition(readPosition.getSegment() + 1, 0);
+                    continue;
+                }
+
+                SpoolPosition next = new SpoolPosition(readPosition.getSegment(), readPosition.getOffset() + HEADER_SIZE + payload.length);
+                SpoolRecord record;
+                try {
+                    record = objectMapper.readValue(payload, SpoolRecord.class);
+                } catch (JsonProcessingException e) {
+                    File copy = quarantine(readPosition, payload);
+                    logger.error("Record at " + readPosition + " of the email spool cannot be decoded, skipping it, it has been copied to " + copy, e);
+                    skippedRecords.incrementAndGet();
+                    readPosition = next;
+                    continue;
+                }
+
+                record.setEnd(next);
+                records.add(record);
+                readPosition = next;
+            }
+        } catch (IOException e) {
+            if (records.isEmpty()) {
+                throw e;
+            }
+            // The records read so far are handed over, the next read runs into the same problem
+            logger.error("Could not read the email spool at " + readPosition, e);
+        }
+
+        return records;
+    }
+
+    /**
+     * Waits until there's something new to read
+     *
+     * @param timeout Maximum time to wait in milliseconds
+     * @throws InterruptedException If we get interrupted while waiting
+     */
+    public void awaitRecords(long timeout) throws InterruptedException {
+        SpoolPosition position;
+        synchronized (this) {
+            position = readPosition;
+        }
+        synchronized (syncLock) {
+            if (running && !synced.isAfter(position)) {
+                syncLock.wait(timeout);
+            }
+        }
+    }
+
+    /**
+     * Remembers that every email before the position has been delivered and deletes the segments that are no longer needed
+     *
+     * @param position Position after the last delivered record
+     * @throws IOException If the checkpoint cannot be written
+     */
+    public void checkpoint(SpoolPosition position) throws IOException {
+        File tmp = new File(directory, CHECKPOINT + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write((position.getSegment() + " " + position.getOffset()).getBytes(StandardCharsets.US_ASCII));
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(directory, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (Long old : segments()) {
+            if (old < position.getSegment() && !segmentFile(old).delete()) {
+                logger.warn("Could not delete spool segment {}", old);
+            }
+        }
+    }
+
+    public synchronized SpoolPosition getReadPosition() {
+        return readPosition;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        if (!enabled) {
+            return Collections.emptyList();
+        }
+
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("spool.appended", appended.get()));
+        metrics.add(new Metric<>("spool.syncs", syncs.get()));
+        metrics.add(new Metric<>("spool.skipped.records", skippedRecords.get()));
+        metrics.add(new Metric<>("spool.skipped.segments", skippedSegments.get()));
+
+        return metrics;
+    }
+
+    private void syncUntilClosed() {
+        try {
+            while (true) {
+                synchronized (syncLock) {
+                    while (running && !written.isAfter(synced)) {
+                        syncLock.wait();
+                    }
+                    if (!running && !written.isAfter(synced)) {
+                        return;
+                    }
+                }
+
+                // Everything that has been written so far is covered by this fsync, not only the records that woke us up
+                FileChannel target;
+                SpoolPosition position;
+                synchronized (writeLock) {
+                    target = channel;
+                    position = new SpoolPosition(segment, channel.position());
+                }
+                try {
+                    target.force(false);
+                    syncs.incrementAndGet();
+                } catch (ClosedChannelException e) {
+                    // The segment has been rolled over (or the spool closed) in the meantime, both sync the segment before closing it
+                }
+                markSynced(position);
+            }
+        } catch (IOException e) {
+            logger.error("Could not sync the email spool, no more emails can be accepted", e);
+            synchronized (syncLock) {
+                syncFailure = e;
+                syncLock.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Email spool sync has been interrupted");
+        }
+    }
+
+    /**
+     * Must be called while holding the write lock
+     */
+    private void roll() throws IOException {
+        channel.force(false);
+        SpoolPosition end = new SpoolPosition(segment, channel.position());
+        channel.close();
+
+        segment++;
+        channel = openSegment(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        syncDirectory();
+        markSynced(end);
+    }
+
+    private void markSynced(SpoolPosition position) {
+        synchronized (syncLock) {
+            if (position.isAfter(synced)) {
+                synced = position;
+            }
+            syncLock.notifyAll();
+        }
+    }
+
+    private SpoolPosition getSynced() {
+        synchronized (syncLock) {
+            return synced;
+        }
+    }
+
+    private SpoolPosition readCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT);
+        if (!file.exists()) {
+            List<Long> segments = segments();
+            return new SpoolPosition(segments.isEmpty() ? 0 : segments.get(0), 0);
+        }
+
+        String[] checkpoint = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim().split(" ");
+        return new SpoolPosition(Long.parseLong(checkpoint[0]), Long.parseLong(checkpoint[1]));
+    }
+
+    /**
+     * Copies a segment into the quarantine directory before the checkpoint deletes it
+     *
+     * @return The copy
+     */
+    private File quarantine(File segment) throws IOException {
+        File copy = new File(quarantineDirectory(), segment.getName());
+        Files.copy(segment.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        return copy;
+    }
+
+    /**
+     * Writes the payload of a record into the quarantine directory
+     *
+     * @return The file, e.g. spool-0000000000000003-0000000000001024.json
+     */
+    private File quarantine(SpoolPosition position, byte[] payload) throws IOException {
+        File copy = new File(quarantineDirectory(), String.format("%s%016d-%016d.json", SEGMENT_PREFIX, position.getSegment(), position.getOffset()));
+        Files.write(copy.toPath(), payload);
+
+        return copy;
+    }
+
+    private File quarantineDirectory() throws IOException {
+        File quarantine = new File(directory, QUARANTINE);
+        if (!quarantine.isDirectory() && !quarantine.mkdirs()) {
+            throw new IOException("Could not create the spool quarantine directory " + quarantine);
+        }
+
+        return quarantine;
+    }
+
+    private FileChannel readChannel(long segment) throws IOException {
+        if (readSegment != segment) {
+            if (readChannel != null) {
+                readChannel.close();
+            }
+            readChannel = openSegment(segment, StandardOpenOption.READ);
+            readSegment = segment;
+        }
+
+        return readChannel;
+    }
+
+    /**
+     * @return The payload of the record at the position or null if the record is incomplete or corrupt
+     */
+    private byte[] readPayload(FileChannel reader, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(reader, header, position)) {
+            return null;
+        }
+
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+            return null;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        if (!readFully(reader, payload, position + HEADER_SIZE)) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, length);
+        return (int) crc.getValue() == checksum ? payload.array() : null;
+    }
+
+    private boolean readFully(FileChannel reader, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (reader.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private FileChannel openSegment(long segment, StandardOpenOption... options) throws IOException {
+        return FileChannel.open(segmentFile(segment).toPath(), options);
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> segments() {
+        List<Long> segments = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(segments);
+
+        return segments;
+    }
+
+    /**
+     * Makes sure that a new segment file survives a crash. Not every platform can sync a directory, in that case we rely on the file system
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            logger.debug("Could not sync the spool directory", e);
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.totoro.spool;
+
+/**
+ * A position in the spool, the segment file and the offset within it
+ */
+public class SpoolPosition implements Comparable<SpoolPosition> {
+
+    private final long segment;
+    private final long offset;
+
+    public SpoolPosition(long segment, long offset) {
+        this.segment = segment;
+        this.offset = offset;
+    }
+
+    public long getSegment() {
+        return segment;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @param other Another position
+     * @return True if this position is further into the spool than the other one
+     */
+    public boolean isAfter(SpoolPosition other) {
+        return compareTo(other) > 0;
+    }
+
+    @Override
+    public int compareTo(SpoolPosition o) {
+        if (segment != o.segment) {
+            return segment < o.segment ? -1 : 1;
+        }
+
+        return offset < o.offset ? -1 : (offset == o.offset ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SpoolPosition)) {
+            return false;
+        }
+
+        SpoolPosition that = (SpoolPosition) o;
+        return segment == that.segment && offset == that.offset;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (segment ^ (segment >>> 32)) + (int) (offset ^ (offset >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return segment + ":" + offset;
+    }
+
+}
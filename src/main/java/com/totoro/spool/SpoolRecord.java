@@ -0,0 +1,51 @@
+package com.totoro.spool;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.totoro.dto.MailMessageDto;
+
+/**
+ * An email that has been written into the spool
+ */
+public class SpoolRecord {
+
+    private String trackingId;
+    private MailMessageDto message;
+    /**
+     * Where the next record starts, it is only known when the record has been read back from the spool
+     */
+    @JsonIgnore
+    private SpoolPosition end;
+
+    public SpoolRecord() {
+    }
+
+    public SpoolRecord(String trackingId, MailMessageDto message) {
+        this.trackingId = trackingId;
+        this.message = message;
+    }
+
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+    public void setTrackingId(String trackingId) {
+        this.trackingId = trackingId;
+    }
+
+    public MailMessageDto getMessage() {
+        return message;
+    }
+
+    public void setMessage(MailMessageDto message) {
+        this.message = message;
+    }
+
+    public SpoolPosition getEnd() {
+        return end;
+    }
+
+    public void setEnd(SpoolPosition end) {
+        this.end = end;
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.totoro.templates;
+
+import com.totoro.mails.RecipientVariables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A template that has been parsed once into its literal parts and its placeholders, so rendering it is just a matter of appending the parts and the values.
+ * <p>
+ * A template has the same '%recipient.name%' placeholders as the emails themselves (see {@link RecipientVariables}). That way a group of emails that use the same
+ * template can still go to the provider in a single request with the placeholders in it, only an email sent on its own is rendered here.
+ */
+public final class CompiledTemplate {
+
+    /**
+     * Same as the variable names that we accept on an email
+     */
+    private static final Pattern VARIABLE_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+    private final long id;
+    private final Part subject;
+    private final Part text;
+    private final String type;
+    private final Set<String> variables;
+
+    private CompiledTemplate(long id, Part subject, Part text, String type) {
+        this.id = id;
+        this.subject = subject;
+        this.text = text;
+        this.type = type;
+
+        Set<String> variables = new LinkedHashSet<>();
+        Collections.addAll(variables, subject.names);
+        Collections.addAll(variables, text.names);
+        this.variables = Collections.unmodifiableSet(variables);
+    }
+
+    /**
+     * @param id      Template id
+     * @param subject Subject of the template
+     * @param text    Text of the template
+     * @param type    Content type of the template
+     * @return Compiled template
+     */
+    public static CompiledTemplate compile(long id, String subject, String text, String type) {
+        return new CompiledTemplate(id, Part.parse(subject), Part.parse(text), type);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return The subject with its placeholders
+     */
+    public String getSubject() {
+        return subject.source;
+    }
+
+    /**
+     * @return The text with its placeholders
+     */
+    public String getText() {
+        return text.source;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return Names of all the variables that the template has placeholders for
+     */
+    public Set<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * @param variables Variables of the recipient
+     * @return The subject with the variables in it, a placeholder without a variable is left as it is
+     */
+    public String renderSubject(Map<String, String> variables) {
+        return subject.render(variables);
+    }
+
+    /**
+     * @param variables Variables of the recipient
+     * @return The text with the variables in it, a placeholder without a variable is left as it is
+     */
+    public String renderText(Map<String, String> variables) {
+        return text.render(variables);
+    }
+
+    /**
+     * The subject or the text of a template, literals[i] comes before names[i] and the last literal after the last placeholder
+     */
+    private static final class Part {
+
+        private static final String PREFIX = "%recipient.";
+
+        private final String source;
+        private final String[] literals;
+        private final String[] names;
+
+        private Part(String source, String[] literals, String[] names) {
+            this.source = source;
+            this.literals = literals;
+            this.names = names;
+        }
+
+        private static Part parse(String source) {
+            if (source == null) {
+                return new Part(null, new String[]{null}, new String[0]);
+            }
+
+            List<String> literals = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            int copied = 0;
+            int start = source.indexOf(PREFIX);
+            while (start >= 0) {
+                int end = source.indexOf('%', start + PREFIX.length());
+                if (end < 0) {
+                    break;
+                }
+
+                String name = source.substring(start + PREFIX.length(), end);
+                if (!VARIABLE_NAME.matcher(name).matches()) {
+                    // Just a '%' in the text, the closing '%' may open the next placeholder
+                    start = source.indexOf(PREFIX, start + 1);
+                    continue;
+                }
+                literals.add(source.substring(copied, start));
+                names.add(name);
+                copied = end + 1;
+                start = source.indexOf(PREFIX, copied);
+            }
+            literals.add(source.substring(copied));
+
+            return new Part(source, literals.toArray(new String[literals.size()]), names.toArray(new String[names.size()]));
+        }
+
+        private String render(Map<String, String> variables) {
+            if (names.length == 0 || variables == null || variables.isEmpty()) {
+                return source;
+            }
+
+            StringBuilder sb = new StringBuilder(source.length() + 16 * names.length);
+            for (int i = 0; i < names.length; i++) {
+                String value = variables.get(names[i]);
+                sb.append(literals[i]).append(value != null ? value : RecipientVariables.placeholder(names[i]));
+            }
+
+            return sb.append(literals[names.length]).toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.totoro.templates;
+
+import com.totoro.domain.EmailTemplate;
+import com.totoro.repository.EmailTemplateRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recently used templates in their compiled form so an email with a template costs neither a database read nor a parse.
+ * <p>
+ * The least recently used template is evicted once the cache is full. A template that gets updated or deleted is invalidated, and a template that has been
+ * read from the database while it was being invalidated isn't cached, otherwise the old version could stay in the cache until it gets evicted.
+ * <p>
+ * Only the instance that has updated or deleted a template invalidates it, so every template is also read again once it has been cached for longer than the
+ * time to live. That's how long the other instances can go on sending the old version.
+ */
+@Component
+public class TemplateCache implements PublicMetrics {
+
+    private final EmailTemplateRepository emailTemplateRepository;
+    private final Map<Long, Entry> templates;
+    private final long timeToLive;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    /**
+     * Goes up with every invalidation, guarded by the cache's lock
+     */
+    private long invalidations;
+
+    /**
+     * @param emailTemplateRepository Where the templates are read from
+     * @param cacheSize               How many compiled templates the cache holds
+     * @param timeToLive              How long a template is cached for in milliseconds
+     */
+    @Autowired
+    public TemplateCache(EmailTemplateRepository emailTemplateRepository, @Value("${email.template.cache-size}") final int cacheSize,
+                         @Value("${email.template.cache-ttl}") long timeToLive) {
+        this.emailTemplateRepository = emailTemplateRepository;
+        this.timeToLive = timeToLive;
+        this.templates = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() > cacheSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param id Template id
+     * @return The compiled template or null when it doesn't exist
+     */
+    public CompiledTemplate get(long id) {
+        return get(id, System.currentTimeMillis());
+    }
+
+    /**
+     * @param id  Template id
+     * @param now Current time in milliseconds
+     * @return The compiled template or null when it doesn't exist
+     */
+    CompiledTemplate get(long id, long now) {
+        long generation;
+        synchronized (templates) {
+            Entry entry = templates.get(id);
+            if (entry != null && now < entry.expiresAt) {
+                hits.incrementAndGet();
+                return entry.template;
+            }
+            if (entry != null) {
+                expirations.incrementAndGet();
+                templates.remove(id);
+            }
+            generation = invalidations;
+        }
+
+        // The database read and the parse happen outside of the lock, two threads may both compile the same template but that's harmless
+        misses.incrementAndGet();
+        EmailTemplate entity = emailTemplateRepository.findOne(id);
+        if (entity == null) {
+            return null;
+        }
+
+        CompiledTemplate template = CompiledTemplate.compile(entity.getId(), entity.getSubject(), entity.getText(), entity.getType());
+        synchronized (templates) {
+            if (generation == invalidations) {
+                templates.put(id, new Entry(template, now + timeToLive));
+            }
+        }
+
+        return template;
+    }
+
+    /**
+     * Drops a template that has been updated or deleted
+     *
+     * @param id Template id
+     */
+    public void invalidate(long id) {
+        synchronized (templates) {
+            invalidations++;
+            templates.remove(id);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        int size;
+        synchronized (templates) {
+            size = templates.size();
+        }
+
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("template.cache.hits", hits.get()));
+        metrics.add(new Metric<>("template.cache.misses", misses.get()));
+        metrics.add(new Metric<>("template.cache.evictions", evictions.get()));
+        metrics.add(new Metric<>("template.cache.expirations", expirations.get()));
+        metrics.add(new Metric<>("template.cache.size", size));
+
+        return metrics;
+    }
+
+    private static final class Entry {
+        private final CompiledTemplate template;
+        private final long expiresAt;
+
+        private Entry(CompiledTemplate template, long expiresAt) {
+            this.template = template;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
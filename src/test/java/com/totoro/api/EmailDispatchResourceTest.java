@@ -0,0 +1,127 @@
+package com.totoro.api;
+
+import com.totoro.config.InstrumentedTaskExecutor;
+import com.totoro.domain.EmailQueue;
+import com.totoro.domain.QueueStatus;
+import com.totoro.repository.EmailQueueRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@TestPropertySource(properties = {"email.dispatch.pool-size=1", "email.dispatch.queue-capacity=1", "email.dispatch.retry-after=7"})
+public class EmailDispatchResourceTest extends BaseResourceTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Autowired
+    private InstrumentedTaskExecutor mailDispatchExecutor;
+    @Autowired
+    private EmailQueueRepository emailQueueRepository;
+
+    @Before
+    public void setup() throws Exception {
+        this.emailQueueRepository.deleteAllInBatch();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    /**
+     * Test that an email is refused with 503 and a Retry-After when every dispatch thread is busy, rather than sent on the request thread
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void sendEmailWhileDispatchPoolIsFull_ServiceUnavailable() throws Exception {
+        saturate();
+
+        RequestBuilder req = post("/api/emails")
+                .contentType(APPLICATION_JSON_UTF8)
+                .content(super.objectMapper.writeValueAsString(email()));
+
+        super.mockMvc.perform(req)
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string("Retry-After", "7"))
+                .andExpect(
+                        jsonPath("$.error_messages[0]").value("We are too busy to send your email right now, please try again later"));
+        assertEquals(1, mailDispatchExecutor.getRejectedCount());
+    }
+
+    /**
+     * Test that the emails of a batch are put into the queue table when every dispatch thread is busy, rather than sent on the request thread
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void sendEmailBatchWhileDispatchPoolIsFull_Queued() throws Exception {
+        saturate();
+
+        RequestBuilder req = post("/api/emails/batch")
+                .contentType(APPLICATION_JSON_UTF8)
+                .content(super.objectMapper.writeValueAsString(new Object[]{email()}));
+
+        super.mockMvc.perform(req)
+                .andExpect(status().isOk())
+                .andExpect(
+                        jsonPath("$.data[0].status").value("QUEUED"));
+
+        List<EmailQueue> emails = emailQueueRepository.findAll();
+        for (int i = 0; i < 100 && emails.isEmpty(); i++) {
+            Thread.sleep(100);
+            emails = emailQueueRepository.findAll();
+        }
+        assertEquals(1, emails.size());
+        assertEquals(QueueStatus.PENDING, emails.get(0).getStatus());
+        assertEquals("We were too busy to send the email", emails.get(0).getReason());
+    }
+
+    /**
+     * Keeps the only dispatch thread busy and fills its queue until the test is done
+     */
+    private void saturate() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            mailDispatchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private Map<String, Object> email() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("from", "noreply@example.org");
+        data.put("to", new String[]{"john@example.org"});
+        data.put("subject", "This is a test subject");
+        data.put("text", "This is a test body");
+
+        return data;
+    }
+
+}
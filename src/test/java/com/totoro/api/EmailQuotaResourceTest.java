@@ -0,0 +1,112 @@
+package com.totoro.api;
+
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.notNullValue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@TestPropertySource(properties = {"email.quota.sender.limit=2", "email.batch.max-size=2"})
+public class EmailQuotaResourceTest extends BaseResourceTest {
+
+    /**
+     * Test that once a sender has used up its quota the next batch is rejected with 429 and a Retry-After
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void sendEmailBatchOverSenderQuota_TooManyRequests() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("from", "noreply@example.org");
+        data.put("to", new String[]{"john@example.org"});
+        data.put("subject", "This is a test subject");
+        data.put("text", "This is a test body");
+
+        RequestBuilder req = post("/api/emails/batch")
+                .contentType(APPLICATION_JSON_UTF8)
+                .header("X-Client-Id", "test-client")
+                .content(super.objectMapper.writeValueAsString(new Object[]{data, data}));
+
+        super.mockMvc.perform(req)
+                .andExpect(status().isOk());
+
+        req = post("/api/emails/batch")
+                .contentType(APPLICATION_JSON_UTF8)
+                .header("X-Client-Id", "test-client")
+                .content(super.objectMapper.writeValueAsString(new Object[]{data}));
+
+        super.mockMvc.perform(req)
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", notNullValue()))
+                .andExpect(
+                        jsonPath("$.error_messages[0]").value("Too many emails have been sent from noreply@example.org, please try again later"));
+    }
+
+    /**
+     * Test that a batch that is too big is rejected before it's counted towards the quotas, the sender can still send as many emails afterwards
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void sendOversizedEmailBatch_NoQuotaUsed() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("from", "noreply@example.org");
+        data.put("to", new String[]{"john@example.org"});
+        data.put("subject", "This is a test subject");
+        data.put("text", "This is a test body");
+        Map<String, Object> other = new HashMap<>(data);
+        other.put("from", "other@example.org");
+
+        RequestBuilder req = post("/api/emails/batch")
+                .contentType(APPLICATION_JSON_UTF8)
+                .header("X-Client-Id", "test-client")
+                .content(super.objectMapper.writeValueAsString(new Object[]{data, data, other}));
+
+        super.mockMvc.perform(req)
+                .andExpect(status().isBadRequest())
+                .andExpect(
+                        jsonPath("$.error_messages[0]").value("A batch cannot have more than 2 emails"));
+
+        req = post("/api/emails/batch")
+                .contentType(APPLICATION_JSON_UTF8)
+                .header("X-Client-Id", "test-client")
+                .content(super.objectMapper.writeValueAsString(new Object[]{data, data}));
+
+        super.mockMvc.perform(req)
+                .andExpect(status().isOk());
+    }
+
+    /**
+     * Test that an oversized NDJSON batch is rejected as soon as it has one email too many, the lines after that aren't read at all
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void sendOversizedEmailBatchAsNdjson_StopsReading() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("from", "noreply@example.org");
+        data.put("to", new String[]{"john@example.org"});
+        data.put("subject", "This is a test subject");
+        data.put("text", "This is a test body");
+
+        String line = super.objectMapper.writeValueAsString(data) + "\n";
+        RequestBuilder req = post("/api/emails/batch")
+                .contentType(MediaType.parseMediaType(EmailResource.APPLICATION_NDJSON_VALUE))
+                .header("X-Client-Id", "test-client")
+                .content(line + line + line + "this is not json\n");
+
+        super.mockMvc.perform(req)
+                .andExpect(status().isBadRequest())
+                .andExpect(
+                        jsonPath("$.error_messages[0]").value("A batch cannot have more than 2 emails"));
+    }
+
+}
@@ -7,6 +7,8 @@ import org.joda.time.LocalDateTime;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.RequestBuilder;
 
 import java.util.HashMap;
@@ -15,9 +17,11 @@ import java.util.Map;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SuppressWarnings("Duplicates")
@@ -55,7 +59,12 @@ public class EmailResourceTest extends BaseResourceTest {
                 .contentType(APPLICATION_JSON_UTF8)
                 .content(super.objectMapper.writeValueAsString(data));
 
-        super.mockMvc.perform(req)
+        // The email is sent on a dispatch thread, the response comes back with the async dispatch
+        MvcResult result = super.mockMvc.perform(req)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        super.mockMvc.perform(asyncDispatch(result))
                 .andExpect(status().isCreated())
                 .andExpect(content().contentType(super.APPLICATION_JSON_UTF8))
                 .andExpect(
@@ -85,7 +94,11 @@ public class EmailResourceTest extends BaseResourceTest {
                 .contentType(APPLICATION_JSON_UTF8)
                 .content(super.objectMapper.writeValueAsString(data));
 
-        super.mockMvc.perform(req)
+        MvcResult result = super.mockMvc.perform(req)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        super.mockMvc.perform(asyncDispatch(result))
                 .andExpect(status().isCreated());
 
         Thread.sleep(100); // We need this because saving email into a table is on an @Async method
@@ -126,4 +139,68 @@ public class EmailResourceTest extends BaseResourceTest {
                         jsonPath("$.error_messages[0]").value("'to' email is invalid - john@example"));
     }
 
+    /**
+     * Test sending a batch where one of the emails has a bad email address, the server should reject that email only and return a result for every email
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void sendEmailBatchWithBadEmail_Rejected() throws Exception {
+        Map<String, Object> good = new HashMap<>();
+        good.put("from", "noreply@example.org");
+        good.put("to", new String[]{"john@example.org"});
+        good.put("subject", "This is a test subject");
+        good.put("text", "This is a test body");
+
+        Map<String, Object> bad = new HashMap<>();
+        bad.put("from", "noreply@example.org");
+        bad.put("to", new String[]{"john@example", "tom@example.org"});
+        bad.put("subject", "This is a test subject");
+
+        RequestBuilder req = post("/api/emails/batch")
+                .contentType(APPLICATION_JSON_UTF8)
+                .content(super.objectMapper.writeValueAsString(new Object[]{good, bad}));
+
+        super.mockMvc.perform(req)
+                .andExpect(status().isOk())
+                .andExpect(
+                        jsonPath("$.total").value(2))
+                .andExpect(
+                        jsonPath("$.data[1].index").value(1))
+                .andExpect(
+                        jsonPath("$.data[1].status").value("REJECTED"))
+                .andExpect(
+                        jsonPath("$.data[1].errors[0]").value("'text' may not be null"))
+                .andExpect(
+                        jsonPath("$.data[1].errors[1]").value("'to' email is invalid - john@example"));
+    }
+
+    /**
+     * Test sending a batch as newline delimited json
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void sendEmailBatchAsNdjson_Rejected() throws Exception {
+        Map<String, Object> bad = new HashMap<>();
+        bad.put("from", "noreply@example.org");
+        bad.put("to", new String[]{"john@example.org", "john@example.org"});
+        bad.put("subject", "This is a test subject");
+        bad.put("text", "This is a test body");
+
+        String body = super.objectMapper.writeValueAsString(bad) + "\n" + super.objectMapper.writeValueAsString(bad) + "\n";
+        RequestBuilder req = post("/api/emails/batch")
+                .contentType(MediaType.parseMediaType(EmailResource.APPLICATION_NDJSON_VALUE))
+                .content(body);
+
+        super.mockMvc.perform(req)
+                .andExpect(status().isOk())
+                .andExpect(
+                        jsonPath("$.total").value(2))
+                .andExpect(
+                        jsonPath("$.data[0].status").value("REJECTED"))
+                .andExpect(
+                        jsonPath("$.data[0].errors[0]").value("Email address in to, cc and bcc should be unique - john@example.org"));
+    }
+
 }
@@ -0,0 +1,122 @@
+package com.totoro.api;
+
+import com.totoro.domain.EmailQueue;
+import com.totoro.repository.EmailHistoryRepository;
+import com.totoro.repository.EmailQueueRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@TestPropertySource(properties = {"email.spool.enabled=true"})
+public class EmailSpoolResourceTest extends BaseResourceTest {
+
+    @Autowired
+    private EmailHistoryRepository emailHistoryRepository;
+    @Autowired
+    private EmailQueueRepository emailQueueRepository;
+
+    @Before
+    public void setup() throws Exception {
+        this.emailHistoryRepository.deleteAllInBatch();
+        this.emailQueueRepository.deleteAllInBatch();
+    }
+
+    /**
+     * Test that an email sent with 'Prefer: respond-async' is accepted with a tracking id and then delivered in the background, the test providers aren't
+     * reachable so it ends up in the queue table
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void sendEmailRespondAsync_Accepted() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("from", "noreply@example.org");
+        data.put("to", new String[]{"john@example.org"});
+        data.put("subject", "This is a test subject");
+        data.put("text", "This is a test body");
+
+        RequestBuilder req = post("/api/emails")
+                .contentType(APPLICATION_JSON_UTF8)
+                .header("Prefer", "respond-async")
+                .content(super.objectMapper.writeValueAsString(data));
+
+        MvcResult result = super.mockMvc.perform(req).andReturn();
+        result = super.mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string("Preference-Applied", "respond-async"))
+                .andExpect(
+                        jsonPath("$.status").value("ACCEPTED"))
+                .andReturn();
+
+        String trackingId = super.objectMapper.readTree(result.getResponse().getContentAsString()).get("trackingId").asText();
+        assertNotNull(trackingId);
+
+        EmailQueue queued = null;
+        for (int i = 0; i < 100 && queued == null; i++) {
+            Thread.sleep(100);
+            List<EmailQueue> emails = emailQueueRepository.findAll();
+            for (EmailQueue email : emails) {
+                if (trackingId.equals(email.getTrackingId())) {
+                    queued = email;
+                }
+            }
+        }
+        assertNotNull(queued);
+        assertEquals("This is a test subject", queued.getSubject());
+    }
+
+    /**
+     * Test that an email sent again with the same 'Idempotency-Key' gets the response of the first one and isn't accepted a second time, and that the key
+     * cannot be used for another email
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void sendEmailWithIdempotencyKey_Replayed() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("from", "noreply@example.org");
+        data.put("to", new String[]{"john@example.org"});
+        data.put("subject", "This is a test subject");
+        data.put("text", "This is a test body");
+
+        String first = send(data, "order-42").andExpect(status().isAccepted()).andReturn().getResponse().getContentAsString();
+        String second = send(data, "order-42")
+                .andExpect(status().isAccepted())
+                .andExpect(header().string("Idempotent-Replayed", "true"))
+                .andReturn().getResponse().getContentAsString();
+        assertEquals(super.objectMapper.readTree(first).get("trackingId"), super.objectMapper.readTree(second).get("trackingId"));
+
+        data.put("subject", "Another subject");
+        super.mockMvc.perform(request(data, "order-42")).andExpect(status().isBadRequest());
+    }
+
+    private ResultActions send(Map<String, Object> data, String idempotencyKey) throws Exception {
+        MvcResult result = super.mockMvc.perform(request(data, idempotencyKey)).andReturn();
+        return super.mockMvc.perform(asyncDispatch(result));
+    }
+
+    private RequestBuilder request(Map<String, Object> data, String idempotencyKey) throws Exception {
+        return post("/api/emails")
+                .contentType(APPLICATION_JSON_UTF8)
+                .header("Prefer", "respond-async")
+                .header("Idempotency-Key", idempotencyKey)
+                .content(super.objectMapper.writeValueAsString(data));
+    }
+
+}
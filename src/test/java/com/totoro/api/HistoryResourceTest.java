@@ -0,0 +1,94 @@
+package com.totoro.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.totoro.domain.EmailHistory;
+import com.totoro.repository.EmailHistoryRepository;
+import com.totoro.services.EmailHistoryWriter;
+import org.joda.time.LocalDateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SuppressWarnings("Duplicates")
+public class HistoryResourceTest extends BaseResourceTest {
+
+    @Autowired
+    private EmailHistoryRepository emailHistoryRepository;
+    @Autowired
+    private EmailHistoryWriter emailHistoryWriter;
+
+    @Before
+    public void setup() throws Exception {
+        this.emailHistoryRepository.deleteAllInBatch();
+    }
+
+    /**
+     * Test that the filtered history comes newest first and that the next page starts right after the last email of the previous one, even when emails have
+     * been sent at the same time
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void getHistory_PagesThroughFilteredEmails() throws Exception {
+        LocalDateTime now = new LocalDateTime().withMillisOfSecond(0);
+        List<EmailHistory> batch = new ArrayList<>();
+        batch.add(newEmail("sg-1", "SendGrid", "john@example.org", now.minusMinutes(3)));
+        batch.add(newEmail("mg-1", "MailGun", "john@example.org", now.minusMinutes(2)));
+        batch.add(newEmail("sg-2", "SendGrid", "tom@example.org", now.minusMinutes(1)));
+        batch.add(newEmail("sg-3", "SendGrid", "john@example.org", now.minusMinutes(1)));
+        emailHistoryWriter.writeNow(batch);
+
+        MvcResult result = super.mockMvc.perform(get("/api/emails/history").param("provider", "SendGrid").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.total").value(2))
+                .andExpect(jsonPath("$.data[0].responseId").value("sg-3"))
+                .andExpect(jsonPath("$.data[1].responseId").value("sg-2"))
+                .andReturn();
+
+        JsonNode last = super.objectMapper.readTree(result.getResponse().getContentAsString()).get("data").get(1);
+        super.mockMvc.perform(get("/api/emails/history").param("provider", "SendGrid").param("limit", "2")
+                .param("before", last.get("createdAt").asText()).param("beforeId", last.get("id").asText()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.total").value(1))
+                .andExpect(jsonPath("$.data[0].responseId").value("sg-1"));
+
+        result = super.mockMvc.perform(get("/api/emails/history").param("recipient", "john@EXAMPLE.org")
+                .param("since", String.valueOf(now.minusMinutes(2).toDate().getTime())))
+                .andExpect(status().isOk())
+                .andReturn();
+        JsonNode data = super.objectMapper.readTree(result.getResponse().getContentAsString()).get("data");
+        assertEquals(2, data.size());
+        assertEquals("sg-3", data.get(0).get("responseId").asText());
+        assertEquals("mg-1", data.get(1).get("responseId").asText());
+    }
+
+    /**
+     * Test that a page bigger than the maximum is rejected
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void getHistory_LimitTooBig_Rejected() throws Exception {
+        super.mockMvc.perform(get("/api/emails/history").param("limit", "100000"))
+                .andExpect(status().isBadRequest());
+    }
+
+    private EmailHistory newEmail(String responseId, String provider, String to, LocalDateTime createdAt) {
+        EmailHistory history = new EmailHistory("noreply@example.org", null, new String[]{to}, null, null,
+                "Hello", "This is a test body", "text/plain", provider, responseId, "Queued");
+        history.setCreatedAt(createdAt);
+        history.setUpdatedAt(createdAt);
+
+        return history;
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.totoro.api;
+
+import com.totoro.repository.EmailTemplateRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SuppressWarnings("Duplicates")
+public class TemplateResourceTest extends BaseResourceTest {
+
+    @Autowired
+    private EmailTemplateRepository emailTemplateRepository;
+
+    @Before
+    public void setup() throws Exception {
+        this.emailTemplateRepository.deleteAllInBatch();
+    }
+
+    /**
+     * Test that a template can be created, updated and deleted
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void createUpdateAndDeleteTemplate_Success() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", "welcome");
+        data.put("subject", "Welcome %recipient.name%");
+        data.put("text", "Hi %recipient.name%, welcome aboard");
+
+        MvcResult result = super.mockMvc.perform(post("/api/templates")
+                .contentType(APPLICATION_JSON_UTF8)
+                .content(super.objectMapper.writeValueAsString(data)))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.name").value("welcome"))
+                .andReturn();
+        long id = super.objectMapper.readTree(result.getResponse().getContentAsString()).get("id").asLong();
+
+        data.put("subject", "Welcome back %recipient.name%");
+        super.mockMvc.perform(put("/api/templates/" + id)
+                .contentType(APPLICATION_JSON_UTF8)
+                .content(super.objectMapper.writeValueAsString(data)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.subject").value("Welcome back %recipient.name%"));
+
+        super.mockMvc.perform(get("/api/templates"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.total").value(1));
+
+        super.mockMvc.perform(delete("/api/templates/" + id))
+                .andExpect(status().isNoContent());
+        super.mockMvc.perform(get("/api/templates/" + id))
+                .andExpect(status().isNotFound());
+    }
+
+    /**
+     * Test that an email is rejected when its template doesn't exist or when it doesn't have all the variables of its template
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void sendEmailWithTemplate_Rejected() throws Exception {
+        Map<String, Object> template = new HashMap<>();
+        template.put("name", "welcome");
+        template.put("subject", "Welcome %recipient.name%");
+        template.put("text", "Your code is %recipient.code%");
+
+        MvcResult result = super.mockMvc.perform(post("/api/templates")
+                .contentType(APPLICATION_JSON_UTF8)
+                .content(super.objectMapper.writeValueAsString(template)))
+                .andExpect(status().isCreated())
+                .andReturn();
+        long id = super.objectMapper.readTree(result.getResponse().getContentAsString()).get("id").asLong();
+
+        Map<String, String> variables = new HashMap<>();
+        variables.put("name", "John");
+        Map<String, Object> missingVariable = new HashMap<>();
+        missingVariable.put("from", "noreply@example.org");
+        missingVariable.put("to", new String[]{"john@example.org"});
+        missingVariable.put("templateId", id);
+        missingVariable.put("variables", variables);
+
+        Map<String, Object> missingTemplate = new HashMap<>(missingVariable);
+        missingTemplate.put("templateId", id + 1);
+
+        RequestBuilder req = post("/api/emails/batch")
+                .contentType(APPLICATION_JSON_UTF8)
+                .content(super.objectMapper.writeValueAsString(new Object[]{missingVariable, missingTemplate}));
+
+        super.mockMvc.perform(req)
+                .andExpect(status().isOk())
+                .andExpect(
+                        jsonPath("$.data[0].status").value("REJECTED"))
+                .andExpect(
+                        jsonPath("$.data[0].errors[0]").value("Template " + id + " needs variable code"))
+                .andExpect(
+                        jsonPath("$.data[1].status").value("REJECTED"))
+                .andExpect(
+                        jsonPath("$.data[1].errors[0]").value("Template " + (id + 1) + " doesn't exist"));
+    }
+
+}
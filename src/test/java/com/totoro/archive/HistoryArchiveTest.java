@@ -0,0 +1,233 @@
+package com.totoro.archive;
+
+import com.totoro.EmailApplication;
+import com.totoro.domain.EmailHistory;
+import com.totoro.dto.EmailHistoryDto;
+import com.totoro.dto.HistoryQueryDto;
+import com.totoro.repository.EmailHistoryRepository;
+import com.totoro.repository.EmailRecipientRepository;
+import com.totoro.services.EmailHistoryWriter;
+import com.totoro.services.HistoryService;
+import org.joda.time.LocalDateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@ActiveProfiles("test")
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {EmailApplication.class})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+@TestPropertySource(properties = {"email.history.archive.enabled=true", "email.history.archive.directory=target/archive-test",
+        "email.history.archive.segment-rows=2"})
+public class HistoryArchiveTest {
+
+    private static final File DIRECTORY = new File("target/archive-test");
+
+    @Autowired
+    private HistoryArchive historyArchive;
+    @Autowired
+    private HistoryService historyService;
+    @Autowired
+    private EmailHistoryWriter emailHistoryWriter;
+    @Autowired
+    private EmailHistoryRepository emailHistoryRepository;
+    @Autowired
+    private EmailRecipientRepository emailRecipientRepository;
+
+    private LocalDateTime thisMonth;
+
+    @Before
+    public void setup() throws Exception {
+        deleteSegments();
+        this.emailHistoryRepository.deleteAllInBatch();
+
+        thisMonth = new LocalDateTime().withDayOfMonth(1).withMillisOfDay(0);
+        List<EmailHistory> batch = new ArrayList<>();
+        batch.add(newEmail("old-1", thisMonth.minusMonths(2).plusDays(1)));
+        batch.add(newEmail("old-2", thisMonth.minusMonths(2).plusDays(2)));
+        batch.add(newEmail("old-3", thisMonth.minusMonths(2).plusDays(3)));
+        batch.add(newEmail("last-month", thisMonth.minusMonths(1).plusDays(1)));
+        batch.add(newEmail("this-month", thisMonth.plusMinutes(1)));
+        emailHistoryWriter.writeNow(batch);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteSegments();
+    }
+
+    /**
+     * Test that the closed months are moved out of the history and recipient tables into a segment per chunk
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void archiveBefore_MovesClosedMonths() throws Exception {
+        assertEquals(4, historyArchive.archiveBefore(thisMonth));
+
+        assertEquals(1, emailHistoryRepository.count());
+        assertEquals(1, emailRecipientRepository.count());
+        // 2 chunks for the oldest month and 1 for the last one, each with its summary
+        String[] segments = DIRECTORY.list();
+        assertEquals(6, segments.length);
+
+        // Nothing is left to archive
+        assertEquals(0, historyArchive.archiveBefore(thisMonth));
+    }
+
+    /**
+     * Test that the history api goes on into the archive once the table has run out of emails, with the filters and the cursor still applied
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void getHistory_SearchesTheArchive() throws Exception {
+        historyArchive.archiveBefore(thisMonth);
+
+        HistoryQueryDto query = new HistoryQueryDto();
+        query.setRecipient("john@EXAMPLE.org");
+        query.setLimit(3);
+        List<EmailHistoryDto> page = historyService.getHistory(query);
+        assertArrayEquals(new String[]{"this-month", "last-month", "old-3"}, responseIds(page));
+        assertArrayEquals(new String[]{"john@example.org"}, page.get(2).getTo());
+
+        EmailHistoryDto last = page.get(2);
+        query.setBefore(last.getCreatedAt());
+        query.setBeforeId(last.getId());
+        assertArrayEquals(new String[]{"old-2", "old-1"}, responseIds(historyService.getHistory(query)));
+    }
+
+    /**
+     * Test that a lookup by response id only reads the segment whose summary has the id, the other segments are skipped
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void getHistory_SkipsSegmentsByTheirSummary() throws Exception {
+        historyArchive.archiveBefore(thisMonth);
+
+        HistoryQueryDto query = new HistoryQueryDto();
+        query.setResponseId("old-2");
+        List<EmailHistoryDto> page = historyService.getHistory(query);
+        assertArrayEquals(new String[]{"old-2"}, responseIds(page));
+
+        assertEquals(1L, metric("history.archive.segments.read"));
+        assertEquals(2L, metric("history.archive.segments.skipped"));
+    }
+
+    /**
+     * Test that a search by recipient skips the segments whose summary doesn't have the recipient, and reads the ones that do
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void getHistory_SkipsSegmentsWithoutTheRecipient() throws Exception {
+        historyArchive.archiveBefore(thisMonth);
+
+        HistoryQueryDto query = new HistoryQueryDto();
+        query.setRecipient("tom@example.org");
+        assertEquals(0, historyService.getHistory(query).size());
+        assertEquals(0L, metric("history.archive.segments.read"));
+        assertEquals(3L, metric("history.archive.segments.skipped"));
+
+        query.setRecipient("john@example.org");
+        assertEquals(5, historyService.getHistory(query).size());
+        assertEquals(3L, metric("history.archive.segments.read"));
+    }
+
+    /**
+     * Test that a segment archived without a summary gets one the first time it's read
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void getHistory_WritesTheMissingSummaries() throws Exception {
+        historyArchive.archiveBefore(thisMonth);
+        for (File file : DIRECTORY.listFiles()) {
+            if (file.getName().endsWith(".idx")) {
+                file.delete();
+            }
+        }
+
+        HistoryQueryDto query = new HistoryQueryDto();
+        query.setResponseId("old-2");
+        assertArrayEquals(new String[]{"old-2"}, responseIds(historyService.getHistory(query)));
+        assertEquals(3L, metric("history.archive.segments.read"));
+
+        assertArrayEquals(new String[]{"old-2"}, responseIds(historyService.getHistory(query)));
+        assertEquals(4L, metric("history.archive.segments.read"));
+    }
+
+    /**
+     * Test that a query that starts after the archived months doesn't go into the archive
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void reaches_OnlyBeforeTheOldestMonthInTheTable() throws Exception {
+        historyArchive.archiveBefore(thisMonth.minusMonths(1));
+
+        HistoryQueryDto query = new HistoryQueryDto();
+        assertTrue(historyArchive.reaches(query));
+        query.setSince(thisMonth.toDateTime().getMillis());
+        assertFalse(historyArchive.reaches(query));
+        // The oldest month in the table is last month
+        query.setSince(thisMonth.minusMonths(1).plusDays(2).toDateTime().getMillis());
+        assertTrue(historyArchive.reaches(query));
+    }
+
+    private long metric(String name) {
+        for (Metric<?> metric : historyArchive.metrics()) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue().longValue();
+            }
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+
+    private void deleteSegments() {
+        File[] files = DIRECTORY.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private String[] responseIds(List<EmailHistoryDto> emails) {
+        String[] ids = new String[emails.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = emails.get(i).getResponseId();
+        }
+
+        return ids;
+    }
+
+    private EmailHistory newEmail(String responseId, LocalDateTime createdAt) {
+        EmailHistory history = new EmailHistory("noreply@example.org", null, new String[]{"john@example.org"}, null, null,
+                "Hello", "This is a test body", "text/plain", "SendGrid", responseId, "Queued");
+        history.setCreatedAt(createdAt);
+        history.setUpdatedAt(createdAt);
+
+        return history;
+    }
+
+}
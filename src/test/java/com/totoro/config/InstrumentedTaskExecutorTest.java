@@ -0,0 +1,167 @@
+package com.totoro.config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.task.TaskRejectedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InstrumentedTaskExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private InstrumentedTaskExecutor executor;
+
+    @Before
+    public void setUp() {
+        // A single thread and room for a single task
+        executor = new AsyncConfiguration().historyExecutor(1, 1, 1);
+        executor.initialize();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    /**
+     * Test that a task the saturated pool cannot take is counted and run by the caller
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void execute_RejectedTaskRunsOnTheCaller() throws Exception {
+        saturate();
+        assertEquals(0, executor.getRejectedCount());
+
+        final AtomicReference<Thread> ranOn = new AtomicReference<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        });
+
+        assertEquals(Thread.currentThread(), ranOn.get());
+        assertEquals(1, executor.getRejectedCount());
+    }
+
+    /**
+     * Test that the dispatch pool refuses a task it cannot take instead of running it on the caller
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void execute_DispatchPoolRefusesTheTask() throws Exception {
+        executor.shutdown();
+        executor = new AsyncConfiguration().mailDispatchExecutor(1, 1);
+        executor.initialize();
+        saturate();
+
+        final AtomicReference<Thread> ranOn = new AtomicReference<>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ranOn.set(Thread.currentThread());
+                }
+            });
+            fail("The pool is full");
+        } catch (TaskRejectedException e) {
+            // Expected
+        }
+
+        assertNull(ranOn.get());
+        assertEquals(1, executor.getRejectedCount());
+    }
+
+    /**
+     * Test that the gauges of every executor are published with its name, and follow the pool once it's been released
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void metrics_PublishesTheGauges() throws Exception {
+        InstrumentedTaskExecutor other = new AsyncConfiguration().mailDispatchExecutor(2, 10);
+        other.initialize();
+        AsyncExecutorMetrics asyncExecutorMetrics = new AsyncExecutorMetrics(Arrays.asList(executor, other));
+        try {
+            saturate();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Run by the caller
+                }
+            });
+
+            Collection<Metric<?>> metrics = asyncExecutorMetrics.metrics();
+            assertEquals(10, metrics.size());
+            assertEquals(1, value(metrics, "executor.history.active"));
+            assertEquals(1, value(metrics, "executor.history.pool"));
+            assertEquals(1, value(metrics, "executor.history.queue"));
+            assertEquals(0, value(metrics, "executor.history.completed"));
+            assertEquals(1, value(metrics, "executor.history.rejected"));
+            assertEquals(0, value(metrics, "executor.mail-dispatch.active"));
+            assertEquals(0, value(metrics, "executor.mail-dispatch.rejected"));
+
+            release.countDown();
+            executor.getThreadPoolExecutor().shutdown();
+            assertTrue(executor.getThreadPoolExecutor().awaitTermination(5, TimeUnit.SECONDS));
+            metrics = asyncExecutorMetrics.metrics();
+            assertEquals(0, value(metrics, "executor.history.active"));
+            assertEquals(0, value(metrics, "executor.history.queue"));
+            assertEquals(2, value(metrics, "executor.history.completed"));
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    /**
+     * Keeps the only thread busy and fills the queue until the test releases them
+     */
+    private void saturate() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        executor.execute(tasks.get(0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute(tasks.get(1));
+    }
+
+    private long value(Collection<Metric<?>> metrics, String name) {
+        for (Metric<?> metric : metrics) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue().longValue();
+            }
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+
+}
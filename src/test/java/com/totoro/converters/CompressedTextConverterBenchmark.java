@@ -0,0 +1,98 @@
+package com.totoro.converters;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/**
+ * Measures what the compression costs and saves when inserting and reading bodies, plain against deflated, on an in memory HSQLDB. It isn't a test (the
+ * numbers depend on the machine), run it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.totoro.converters.CompressedTextConverterBenchmark
+ * </pre>
+ * On a disk based database the saving is bigger, fewer bytes also means fewer pages to write and to keep in the buffer pool.
+ */
+public final class CompressedTextConverterBenchmark {
+
+    private static final int ROWS = 20000;
+    private static final int ROUNDS = 5;
+
+    private CompressedTextConverterBenchmark() {
+    }
+
+    public static void main(String[] args) throws SQLException {
+        JDBCDataSource dataSource = new JDBCDataSource();
+        dataSource.setUrl("jdbc:hsqldb:mem:benchmark");
+        dataSource.setUser("sa");
+
+        try (Connection connection = dataSource.getConnection()) {
+            for (int paragraphs : new int[]{1, 5, 20, 80}) {
+                String text = html(paragraphs);
+                String stored = CompressedTextConverter.compress(text);
+                System.out.println(String.format(Locale.ROOT, "%6d chars, stored %6d chars (%.1fx)", text.length(), stored.length(),
+                        (double) text.length() / stored.length()));
+                for (int round = 0; round < ROUNDS; round++) {
+                    run(connection, text, false, round == ROUNDS - 1);
+                    run(connection, text, true, round == ROUNDS - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param paragraphs How long the body is
+     * @return An HTML body that looks like our notifications, tags and sentences that repeat with a few values that don't
+     */
+    static String html(int paragraphs) {
+        StringBuilder sb = new StringBuilder("<html><head><style>p { font-family: Arial, sans-serif; color: #333333; }</style></head><body>");
+        for (int i = 0; i < paragraphs; i++) {
+            sb.append("<div class=\"row\"><p>Hello %recipient.name%, your order number ").append(10000 + i * 7919 % 9973)
+                    .append(" has been shipped and should arrive within ").append(i % 5 + 1)
+                    .append(" days.</p><p><a href=\"https://example.org/orders/").append(i * 31).append("\">Track your order</a></p></div>");
+        }
+
+        return sb.append("</body></html>").toString();
+    }
+
+    private static void run(Connection connection, String text, boolean compressed, boolean print) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists body");
+            statement.execute("create table body (id int primary key, text varchar(100000))");
+        }
+
+        long start = System.nanoTime();
+        try (PreparedStatement statement = connection.prepareStatement("insert into body (id, text) values (?, ?)")) {
+            for (int i = 0; i < ROWS; i++) {
+                // A different text every time, otherwise the same string instance would be compressed once and reused
+                String row = text + i;
+                statement.setInt(1, i);
+                statement.setString(2, compressed ? CompressedTextConverter.compress(row) : row);
+                statement.addBatch();
+                if (i % 500 == 499 || i == ROWS - 1) {
+                    statement.executeBatch();
+                }
+            }
+        }
+        long inserted = System.nanoTime();
+
+        long chars = 0;
+        try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("select text from body")) {
+            while (resultSet.next()) {
+                String row = resultSet.getString(1);
+                chars += (compressed ? CompressedTextConverter.decompress(row) : row).length();
+            }
+        }
+        long read = System.nanoTime();
+
+        if (print) {
+            System.out.println(String.format(Locale.ROOT, "  %-10s insert %6.2f us/row, read %6.2f us/row (%d chars)", compressed ? "deflated" : "plain",
+                    (inserted - start) / 1000.0 / ROWS, (read - inserted) / 1000.0 / ROWS, chars));
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.totoro.converters;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedTextConverterTest {
+
+    private final CompressedTextConverter converter = new CompressedTextConverter();
+
+    /**
+     * Test that a long text is stored deflated and much smaller, and reads back the same
+     */
+    @Test
+    public void convert_LongTextDeflated() {
+        String text = CompressedTextConverterBenchmark.html(20);
+
+        String stored = converter.convertToDatabaseColumn(text);
+
+        assertEquals(CompressedTextConverter.MARKER, stored.charAt(0));
+        assertTrue(stored.length() * 3 < text.length());
+        assertEquals(text, converter.convertToEntityAttribute(stored));
+    }
+
+    /**
+     * Test that a short text, a text that doesn't compress and a text that starts with the marker are stored plain and read back the same
+     */
+    @Test
+    public void convert_PlainTexts() {
+        assertNull(converter.convertToDatabaseColumn(null));
+        assertEquals("Hello", converter.convertToDatabaseColumn("Hello"));
+
+        StringBuilder random = new StringBuilder();
+        Random generator = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            random.append((char) (0x21 + generator.nextInt(94)));
+        }
+        assertEquals(random.toString(), converter.convertToDatabaseColumn(random.toString()));
+
+        String marked = CompressedTextConverter.MARKER + "D12:not deflated";
+        String stored = converter.convertToDatabaseColumn(marked);
+        assertEquals(marked, converter.convertToEntityAttribute(stored));
+    }
+
+    /**
+     * Test that a text that deflates a little but not enough to make up for base64 is stored plain, and that a deflated text is always at least a quarter
+     * shorter than the text
+     */
+    @Test
+    public void convert_BarelyCompressibleTextStoredPlain() {
+        StringBuilder barely = new StringBuilder();
+        Random generator = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            // 5 bits of every 8, it deflates to about two thirds of its size and base64 takes a third back
+            barely.append((char) (0x21 + generator.nextInt(32)));
+        }
+        assertEquals(barely.toString(), converter.convertToDatabaseColumn(barely.toString()));
+
+        for (int alphabet = 2; alphabet <= 94; alphabet++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 2000; i++) {
+                text.append((char) (0x21 + generator.nextInt(alphabet)));
+            }
+            String stored = converter.convertToDatabaseColumn(text.toString());
+            assertTrue(stored.equals(text.toString()) || stored.length() < text.length() * 3 / 4);
+            assertEquals(text.toString(), converter.convertToEntityAttribute(stored));
+        }
+    }
+
+    /**
+     * Test that the rows written before the compression are read as they are
+     */
+    @Test
+    public void convertToEntityAttribute_LegacyRow() {
+        String legacy = CompressedTextConverterBenchmark.html(20);
+
+        assertEquals(legacy, converter.convertToEntityAttribute(legacy));
+        assertNull(converter.convertToEntityAttribute(null));
+        assertEquals("", converter.convertToEntityAttribute(""));
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.totoro.idempotency;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.totoro.domain.IdempotentResponse;
+import com.totoro.dto.EmailResponseDto;
+import com.totoro.dto.EmailStatus;
+import com.totoro.exceptions.BadRequestException;
+import com.totoro.repository.IdempotentResponseRepository;
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IdempotencyKeysTest {
+
+    private static final long TTL = 60000;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Test that a request with a key that is in flight waits for the first one and that a later one gets the stored response without reading the table
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void begin_WaitsForTheFirstRequest() throws Exception {
+        IdempotentResponseRepository repository = mock(IdempotentResponseRepository.class);
+        IdempotencyKeys keys = new IdempotencyKeys(repository, objectMapper, 10, TTL);
+
+        assertNull(keys.begin("client", "key-1", "email"));
+        ListenableFuture<ResponseEntity<EmailResponseDto>> waiting = keys.begin("client", "key-1", "email");
+        assertFalse(waiting.isDone());
+        // Keys belong to their client
+        assertNull(keys.begin("other", "key-1", "email"));
+
+        ResponseEntity<EmailResponseDto> created = new ResponseEntity<>(new EmailResponseDto("Sent", 1, EmailStatus.SENT), HttpStatus.CREATED);
+        keys.complete("client", "key-1", created);
+
+        assertTrue(waiting.isDone());
+        assertEquals(created, waiting.get());
+        assertEquals("Sent", keys.begin("client", "key-1", "email").get().getBody().getMessage());
+        verify(repository, times(1)).save(any(IdempotentResponse.class));
+        verify(repository, times(1)).findByClientIdAndIdempotencyKey("client", "key-1");
+    }
+
+    /**
+     * Test that the response is read from the table when it isn't in memory and that a key cannot be used for a different email
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void begin_ReadsTheTable() throws Exception {
+        IdempotentResponseRepository repository = mock(IdempotentResponseRepository.class);
+        IdempotencyKeys keys = new IdempotencyKeys(repository, objectMapper, 10, TTL);
+        assertNull(keys.begin("client", "key-1", "email"));
+        keys.complete("client", "key-1", new ResponseEntity<>(new EmailResponseDto("Sent", 1, EmailStatus.SENT), HttpStatus.CREATED));
+        ArgumentCaptor<IdempotentResponse> saved = ArgumentCaptor.forClass(IdempotentResponse.class);
+        verify(repository).save(saved.capture());
+        saved.getValue().setCreatedAt(new LocalDateTime());
+        when(repository.findByClientIdAndIdempotencyKey("client", "key-1")).thenReturn(saved.getValue());
+
+        ResponseEntity<EmailResponseDto> replayed = new IdempotencyKeys(repository, objectMapper, 10, TTL).begin("client", "key-1", "email").get();
+        assertEquals(HttpStatus.CREATED, replayed.getStatusCode());
+        assertEquals(EmailStatus.SENT, replayed.getBody().getStatus());
+
+        try {
+            new IdempotencyKeys(repository, objectMapper, 10, TTL).begin("client", "key-1", "another email");
+            fail("A key cannot be used for another email");
+        } catch (BadRequestException e) {
+            assertTrue(e.getMessage().contains("key-1"));
+        }
+    }
+
+    /**
+     * Test that a key whose first request has failed can be used again and that the requests that were waiting for it fail too
+     */
+    @Test
+    public void abandon_KeyCanBeUsedAgain() {
+        IdempotencyKeys keys = new IdempotencyKeys(mock(IdempotentResponseRepository.class), objectMapper, 10, TTL);
+
+        assertNull(keys.begin("client", "key-1", "email"));
+        ListenableFuture<ResponseEntity<EmailResponseDto>> waiting = keys.begin("client", "key-1", "email");
+        keys.abandon("client", "key-1", new IllegalStateException("Provider is down"));
+
+        assertTrue(waiting.isDone());
+        try {
+            waiting.get();
+            fail("The waiting request has to fail like the first one");
+        } catch (Exception e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertNull(keys.begin("client", "key-1", "email"));
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.totoro.mails;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MailRequestTest {
+
+    private static final String TEXT = "<p>Hi \"there\" & welcome</p>\n\tCafé – 日本語 😀 100% + more";
+
+    /**
+     * Test that the MailGun body is encoded the same way as URLEncoder does it and that its length is worked out exactly
+     */
+    @Test
+    public void mailGunWriteTo_SameAsUrlEncoder() throws Exception {
+        MailRequest request = new MailGunRequest.Builder("from@test.com", new String[]{"to+1@test.com", "to2@test.com"}, "Subject é", TEXT + "\uD800")
+                .cc(new String[]{"cc@test.com"})
+                .bcc(new String[0])
+                .type("text/plain")
+                .build();
+
+        String expected = "from=" + URLEncoder.encode("from@test.com", "UTF-8")
+                + "&to=" + URLEncoder.encode("to+1@test.com", "UTF-8")
+                + "&to=" + URLEncoder.encode("to2@test.com", "UTF-8")
+                + "&cc=" + URLEncoder.encode("cc@test.com", "UTF-8")
+                + "&subject=" + URLEncoder.encode("Subject é", "UTF-8")
+                + "&text=" + URLEncoder.encode(TEXT + "\uD800", "UTF-8");
+
+        byte[] body = write(request);
+        assertEquals(expected, new String(body, StandardCharsets.US_ASCII));
+        assertEquals(body.length, request.getContentLength());
+    }
+
+    /**
+     * Test that the SendGrid body is valid json in UTF-8, leaves out empty recipient lists and that its length is worked out exactly
+     */
+    @Test
+    public void sendGridWriteTo_ValidJson() throws Exception {
+        MailRequest request = new SendGridRequest.Builder("from@test.com", new String[]{"to@test.com"}, "Subject é", TEXT)
+                .cc(new String[0])
+                .bcc(new String[]{"bcc@test.com"})
+                .type("text/html")
+                .build();
+
+        byte[] body = write(request);
+        assertEquals(body.length, request.getContentLength());
+
+        JsonNode json = new ObjectMapper().readTree(new String(body, StandardCharsets.UTF_8));
+        JsonNode personalization = json.get("personalizations").get(0);
+        assertEquals("to@test.com", personalization.get("to").get(0).get("email").asText());
+        assertFalse(personalization.has("cc"));
+        assertEquals("bcc@test.com", personalization.get("bcc").get(0).get("email").asText());
+        assertEquals("Subject é", personalization.get("subject").asText());
+        assertEquals("from@test.com", json.get("from").get("email").asText());
+        assertEquals("text/html", json.get("content").get(0).get("type").asText());
+        assertEquals(TEXT, json.get("content").get(0).get("value").asText());
+    }
+
+    /**
+     * Test that every extra personalization of a SendGrid request has its own recipients and the shared subject
+     */
+    @Test
+    public void sendGridWriteTo_ManyPersonalizations() throws Exception {
+        MailRequest request = new SendGridRequest.Builder("from@test.com", new String[]{"a@test.com"}, "Hi", "Text")
+                .personalization(new String[]{"b@test.com"}, new String[0], new String[]{"c@test.com"}, null)
+                .personalization(new String[]{"d@test.com"}, null, null, null)
+                .build();
+
+        byte[] body = write(request);
+        assertEquals(body.length, request.getContentLength());
+
+        JsonNode personalizations = new ObjectMapper().readTree(body).get("personalizations");
+        assertEquals(3, personalizations.size());
+        assertEquals("b@test.com", personalizations.get(1).get("to").get(0).get("email").asText());
+        assertEquals("c@test.com", personalizations.get(1).get("bcc").get(0).get("email").asText());
+        assertEquals("d@test.com", personalizations.get(2).get("to").get(0).get("email").asText());
+        assertEquals("Hi", personalizations.get(2).get("subject").asText());
+    }
+
+    /**
+     * Test that the length of a SendGrid body is worked out exactly whatever the values have to be escaped as, and without a type
+     */
+    @Test
+    public void sendGridGetContentLength_EscapedValues() throws Exception {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("name", "Ann \"The\" \\ Ünal\u0001");
+        variables.put("empty", "");
+        MailRequest request = new SendGridRequest.Builder("from@test.com", new String[]{"a@test.com", "b@test.com"}, "Hi\r\n\u001F", TEXT + "\b\f\u007F\uD800")
+                .cc(new String[]{"c@test.com"})
+                .variables(variables)
+                .personalization(new String[]{"d@test.com"}, null, new String[]{"e@test.com"}, Collections.singletonMap("name", "日本"))
+                .build();
+
+        byte[] body = write(request);
+        assertEquals(body.length, request.getContentLength());
+        assertEquals("Ann \"The\" \\ Ünal\u0001", new ObjectMapper().readTree(body).get("personalizations").get(0).get("substitutions").get("%recipient.name%")
+                .asText());
+    }
+
+    /**
+     * Test that a MailGun batch request sends every recipient's variables along
+     */
+    @Test
+    public void mailGunWriteTo_RecipientVariables() throws Exception {
+        Map<String, Map<String, String>> variables = new LinkedHashMap<>();
+        variables.put("a@test.com", Collections.singletonMap("name", "Ann"));
+        variables.put("b@test.com", Collections.<String, String>emptyMap());
+        MailRequest request = new MailGunRequest.Builder("from@test.com", new String[]{"a@test.com", "b@test.com"}, "Hi %recipient.name%", "Text")
+                .recipientVariables(variables)
+                .build();
+
+        byte[] body = write(request);
+        assertEquals(body.length, request.getContentLength());
+        assertTrue(new String(body, StandardCharsets.US_ASCII).endsWith("&recipient-variables="
+                + URLEncoder.encode("{\"a@test.com\":{\"name\":\"Ann\"},\"b@test.com\":{}}", "UTF-8")));
+    }
+
+    /**
+     * Test that the placeholders with a variable are replaced and the rest is left as it is
+     */
+    @Test
+    public void substitute_ReplacesKnownPlaceholders() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("name", "Ann");
+        variables.put("code", "100%");
+
+        assertEquals("Hi Ann, 100% off %recipient.other% for Ann%",
+                RecipientVariables.substitute("Hi %recipient.name%, %recipient.code% off %recipient.other% for %recipient.name%%", variables));
+        assertEquals("No placeholders", RecipientVariables.substitute("No placeholders", variables));
+    }
+
+    private byte[] write(MailRequest request) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.writeTo(out);
+
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.totoro.providers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    /**
+     * Test that the circuit opens once the failure rate goes over the threshold and rejects the calls afterwards
+     */
+    @Test
+    public void onFailure_OpensCircuit() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 10000, 4, 50, 5000, 100, 60000, 1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onSuccess(10);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // 3 failures out of 6 calls
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure(10);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1, breaker.getRejected());
+    }
+
+    /**
+     * Test that slow calls open the circuit even when they succeed
+     */
+    @Test
+    public void onSuccess_SlowCallsOpenCircuit() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 10000, 2, 50, 100, 100, 60000, 1);
+        breaker.onSuccess(150);
+        breaker.onSuccess(200);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    /**
+     * Test that after the open duration a trial call closes the circuit when it succeeds, while the other calls are still rejected
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void tryAcquire_HalfOpenTrialClosesCircuit() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 10000, 1, 50, 5000, 100, 50, 1);
+        breaker.onFailure(10);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        breaker.onSuccess(10);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.totoro.providers;
+
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProviderHealthMonitorTest {
+
+    private SendGridHttpConfiguration sendGrid;
+    private MailGunHttpConfiguration mailGun;
+    private ProviderTransport sendGridTransport;
+    private ProviderHealthMonitor monitor;
+
+    @Before
+    public void setUp() {
+        sendGrid = mock(SendGridHttpConfiguration.class);
+        when(sendGrid.getProvider()).thenReturn("sendgrid");
+        mailGun = mock(MailGunHttpConfiguration.class);
+        when(mailGun.getProvider()).thenReturn("mailgun");
+
+        sendGridTransport = mock(ProviderTransport.class);
+        ProviderTransports transports = mock(ProviderTransports.class);
+        when(transports.get(sendGrid)).thenReturn(sendGridTransport);
+        monitor = new ProviderHealthMonitor(sendGrid, mailGun, transports);
+    }
+
+    /**
+     * Test that a provider that hasn't been probed yet is unknown and still available
+     */
+    @Test
+    public void getHealth_UnknownBeforeTheFirstProbe() {
+        ProviderHealth health = monitor.getHealth(sendGrid);
+
+        assertEquals(ProviderHealth.Status.UNKNOWN, health.getStatus());
+        assertEquals(0, health.getConsecutiveFailures());
+        assertTrue(monitor.isAvailable(sendGrid));
+    }
+
+    /**
+     * Test that a successful probe takes the provider from unknown to up
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void check_UnknownToUp() throws Exception {
+        when(sendGridTransport.probe(anyInt())).thenReturn(200);
+
+        ProviderHealth health = monitor.check(sendGrid);
+
+        assertEquals(ProviderHealth.Status.UP, health.getStatus());
+        assertEquals(health, monitor.getHealth(sendGrid));
+        assertTrue(health.getCheckedAt() > 0);
+        assertTrue(monitor.isAvailable(sendGrid));
+        // The other provider hasn't been probed
+        assertEquals(ProviderHealth.Status.UNKNOWN, monitor.getHealth(mailGun).getStatus());
+    }
+
+    /**
+     * Test that a provider that cannot be reached goes from unknown to down and isn't available anymore
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void check_UnknownToDown() throws Exception {
+        when(sendGridTransport.probe(anyInt())).thenThrow(new ConnectException("Connection refused"));
+
+        ProviderHealth health = monitor.check(sendGrid);
+
+        assertEquals(ProviderHealth.Status.DOWN, health.getStatus());
+        assertEquals(1, health.getConsecutiveFailures());
+        assertFalse(monitor.isAvailable(sendGrid));
+    }
+
+    /**
+     * Test that the failures are counted while the provider stays down, whether it cannot be reached or doesn't answer OK, and that the count starts over once
+     * it's up again
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void check_CountsConsecutiveFailures() throws Exception {
+        when(sendGridTransport.probe(anyInt())).thenThrow(new IOException("Read timed out")).thenReturn(503).thenReturn(500);
+        assertEquals(1, monitor.check(sendGrid).getConsecutiveFailures());
+        assertEquals(2, monitor.check(sendGrid).getConsecutiveFailures());
+        assertEquals(3, monitor.check(sendGrid).getConsecutiveFailures());
+
+        when(sendGridTransport.probe(anyInt())).thenReturn(200);
+        ProviderHealth health = monitor.check(sendGrid);
+        assertEquals(ProviderHealth.Status.UP, health.getStatus());
+        assertEquals(0, health.getConsecutiveFailures());
+
+        when(sendGridTransport.probe(anyInt())).thenReturn(500);
+        assertEquals(1, monitor.check(sendGrid).getConsecutiveFailures());
+    }
+
+}
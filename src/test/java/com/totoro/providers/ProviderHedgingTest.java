@@ -0,0 +1,105 @@
+package com.totoro.providers;
+
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProviderHedgingTest {
+
+    private SendGridHttpConfiguration sendGrid;
+    private ProviderHedging hedging;
+
+    @Before
+    public void setUp() {
+        sendGrid = mock(SendGridHttpConfiguration.class);
+        when(sendGrid.getProvider()).thenReturn("SendGrid");
+        MailGunHttpConfiguration mailGun = mock(MailGunHttpConfiguration.class);
+        when(mailGun.getProvider()).thenReturn("MailGun");
+
+        hedging = new ProviderHedging(sendGrid, mailGun, true, 95, 100, 20, 10, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        hedging.destroy();
+    }
+
+    /**
+     * Test that an email is hedged after the percentile of the provider's latest calls and not before it has made enough calls
+     */
+    @Test
+    public void getDelay_FollowsPercentile() {
+        for (int i = 1; i < 20; i++) {
+            hedging.record(sendGrid, i * 10);
+        }
+        assertEquals(-1, hedging.getDelay(sendGrid));
+        assertNull(hedging.guard(sendGrid));
+
+        for (int i = 20; i <= 120; i++) {
+            hedging.record(sendGrid, i * 10);
+        }
+        // The window only has the latest 100 calls - 210ms to 1200ms
+        assertEquals(1150, hedging.getDelay(sendGrid));
+
+        // A provider that got much slower is still hedged by the maximum delay
+        for (int i = 0; i < 100; i++) {
+            hedging.record(sendGrid, 60000);
+        }
+        assertEquals(5000, hedging.getDelay(sendGrid));
+    }
+
+    /**
+     * Test that the guard hedges an email that hasn't been written yet after the delay and that a hedged email can't be written anymore
+     */
+    @Test
+    public void guard_HedgesBeforeWriting() throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            hedging.record(sendGrid, 1);
+        }
+
+        SendGuard guard = hedging.guard(sendGrid);
+        Thread.sleep(200);
+
+        assertTrue(guard.isHedged());
+        assertFalse(guard.startWriting());
+    }
+
+    /**
+     * Test that an email whose body is being written is never hedged
+     */
+    @Test
+    public void hedge_NotAfterWriting() {
+        SendGuard guard = new SendGuard();
+
+        assertTrue(guard.startWriting());
+        assertFalse(guard.hedge());
+        assertFalse(guard.isHedged());
+        assertTrue(guard.startWriting());
+    }
+
+    /**
+     * Test that the guard times the call until its body starts to be written, that's the only part of the call that can be hedged
+     *
+     * @throws InterruptedException If the test is interrupted
+     */
+    @Test
+    public void getTimeToWrite_StopsWhenWriting() throws InterruptedException {
+        SendGuard guard = new SendGuard();
+        Thread.sleep(50);
+        assertTrue(guard.startWriting());
+        Thread.sleep(200);
+
+        assertTrue(guard.getTimeToWrite() >= 50);
+        assertTrue(guard.getTimeToWrite() < 200);
+    }
+
+}
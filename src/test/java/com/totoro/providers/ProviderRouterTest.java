@@ -0,0 +1,89 @@
+package com.totoro.providers;
+
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProviderRouterTest {
+
+    private SendGridHttpConfiguration sendGrid;
+    private MailGunHttpConfiguration mailGun;
+    private ProviderRouter router;
+
+    @Before
+    public void setUp() {
+        sendGrid = mock(SendGridHttpConfiguration.class);
+        when(sendGrid.getProvider()).thenReturn("SendGrid");
+        when(sendGrid.getRoutingWeight()).thenReturn(80);
+        mailGun = mock(MailGunHttpConfiguration.class);
+        when(mailGun.getProvider()).thenReturn("MailGun");
+        when(mailGun.getRoutingWeight()).thenReturn(20);
+
+        router = new ProviderRouter(sendGrid, mailGun, 0.5, 100, 0.05);
+    }
+
+    /**
+     * Test that the traffic is spread by the configured weights while both providers are doing fine
+     */
+    @Test
+    public void route_SpreadsByWeight() {
+        int sendGridFirst = routeSendGridFirst(10000);
+
+        // 80% give or take
+        assertTrue("SendGrid went first " + sendGridFirst + " times", sendGridFirst > 7500 && sendGridFirst < 8500);
+    }
+
+    /**
+     * Test that a failing provider sheds its traffic but keeps the minimum share
+     */
+    @Test
+    public void onFailure_ShedsTraffic() {
+        for (int i = 0; i < 10; i++) {
+            router.onFailure(sendGrid, 10);
+            router.onSuccess(mailGun, 10);
+        }
+
+        assertEquals(80 * 0.05, router.getEffectiveWeight(sendGrid), 0.1);
+        assertEquals(20, router.getEffectiveWeight(mailGun), 0.1);
+        int sendGridFirst = routeSendGridFirst(10000);
+        assertTrue("SendGrid went first " + sendGridFirst + " times", sendGridFirst > 0 && sendGridFirst < 2500);
+
+        // The other provider is still there to fall back to
+        List<MailHttpConfiguration> routed = router.route(Arrays.<MailHttpConfiguration>asList(sendGrid, mailGun));
+        assertEquals(2, routed.size());
+    }
+
+    /**
+     * Test that a provider slower than the target gets proportionally less traffic
+     */
+    @Test
+    public void onSuccess_SlowProviderLosesWeight() {
+        router.onSuccess(sendGrid, 400);
+        router.onSuccess(mailGun, 50);
+
+        assertEquals(80 * 100 / 400.0, router.getEffectiveWeight(sendGrid), 0.001);
+        assertEquals(20, router.getEffectiveWeight(mailGun), 0.001);
+    }
+
+    private int routeSendGridFirst(int times) {
+        int sendGridFirst = 0;
+        for (int i = 0; i < times; i++) {
+            if (router.route(Arrays.<MailHttpConfiguration>asList(sendGrid, mailGun)).get(0) == sendGrid) {
+                sendGridFirst++;
+            }
+        }
+
+        return sendGridFirst;
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.totoro.providers;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProviderThrottleTest {
+
+    /**
+     * Test that a full bucket lets a burst through and then throttles until the next token
+     */
+    @Test
+    public void acquire_BurstThenThrottled() {
+        ProviderThrottle throttle = new ProviderThrottle(10, 5, 0);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(throttle.acquire(0));
+            throttle.release();
+        }
+
+        assertFalse(throttle.acquire(0));
+        assertEquals(1, throttle.getThrottled());
+
+        // A token comes every 100ms
+        assertTrue(throttle.acquire(TimeUnit.MILLISECONDS.toNanos(500)));
+    }
+
+    /**
+     * Test that no more than the maximum number of requests can be in flight
+     */
+    @Test
+    public void acquire_InFlightLimit() {
+        ProviderThrottle throttle = new ProviderThrottle(0, 0, 2);
+        assertTrue(throttle.acquire(0));
+        assertTrue(throttle.acquire(0));
+        assertFalse(throttle.acquire(TimeUnit.MILLISECONDS.toNanos(5)));
+
+        throttle.release();
+        assertTrue(throttle.acquire(0));
+        assertEquals(2, throttle.getInFlight());
+    }
+
+    /**
+     * Test that a paused provider doesn't get any requests and doesn't keep the in-flight slot either
+     */
+    @Test
+    public void pause_NoTokensUntilResumed() {
+        ProviderThrottle throttle = new ProviderThrottle(0, 0, 1);
+        throttle.pause(10000);
+
+        assertFalse(throttle.acquire(TimeUnit.MILLISECONDS.toNanos(5)));
+        assertEquals(0, throttle.getInFlight());
+    }
+
+}
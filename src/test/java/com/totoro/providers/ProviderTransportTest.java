@@ -0,0 +1,229 @@
+package com.totoro.providers;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import com.totoro.mails.MailGunRequest;
+import com.totoro.mails.MailRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ProviderTransportTest {
+
+    private static final String KEY = "key-123";
+
+    private final List<String> authorizations = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> contentTypes = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Integer> clientPorts = Collections.synchronizedList(new ArrayList<Integer>());
+    private volatile long delay;
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try (InputStream in = exchange.getRequestBody()) {
+                    while (in.read() >= 0) {
+                        // The whole body has to arrive
+                    }
+                }
+                authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                byte[] bytes = "{\"message\":\"Queued. Thank you.\"}".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        });
+        // More than one connection at a time
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    /**
+     * Test that the basic authorization of MailGun and the bearer token of SendGrid go out with every request and are only computed once
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void send_SendsTheAuthorization() throws Exception {
+        MailGunHttpConfiguration mailGun = spy(config(new MailGunHttpConfiguration(), "mailgun", "application/x-www-form-urlencoded", 1000, 2, 1000));
+        SendGridHttpConfiguration sendGrid = spy(config(new SendGridHttpConfiguration(), "sendgrid", "application/json", 1000, 2, 1000));
+        ProviderTransports transports = new ProviderTransports(sendGrid, mailGun);
+        try {
+            for (int i = 0; i < 2; i++) {
+                assertEquals(200, transports.get(mailGun).send(request()).getStatusCode());
+            }
+            transports.get(sendGrid).send(request());
+        } finally {
+            transports.destroy();
+        }
+
+        assertEquals("Basic YXBpOmtleS0xMjM=", authorizations.get(0));
+        assertEquals("Basic YXBpOmtleS0xMjM=", authorizations.get(1));
+        assertEquals("Bearer " + KEY, authorizations.get(2));
+        verify(mailGun, times(1)).getAuthorization();
+        verify(sendGrid, times(1)).getAuthorization();
+        // The charset of the body is always spelled out
+        assertEquals("application/x-www-form-urlencoded; charset=UTF-8", contentTypes.get(0));
+    }
+
+    /**
+     * Test that a provider that doesn't answer within the read timeout fails the request
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void send_ReadTimeout() throws Exception {
+        delay = 1000;
+        try (ProviderTransport transport = new ProviderTransport(config(new MailGunHttpConfiguration(), "mailgun", "application/x-www-form-urlencoded", 200, 1,
+                1000))) {
+            transport.send(request());
+            fail("The provider has answered too late");
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test that the requests go over the same pooled connection one after the other, and that the pool stats and the metrics show it
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void send_ReusesTheConnection() throws Exception {
+        MailGunHttpConfiguration mailGun = config(new MailGunHttpConfiguration(), "mailgun", "application/x-www-form-urlencoded", 1000, 2, 1000);
+        ProviderTransports transports = new ProviderTransports(config(new SendGridHttpConfiguration(), "sendgrid", "application/json", 1000, 2, 1000), mailGun);
+        try {
+            for (int i = 0; i < 3; i++) {
+                transports.get(mailGun).send(request());
+            }
+
+            assertEquals(3, clientPorts.size());
+            assertEquals(1, new HashSet<>(clientPorts).size());
+            PoolStats stats = transports.get(mailGun).getPoolStats();
+            assertEquals(0, stats.getLeased());
+            assertEquals(1, stats.getAvailable());
+            assertEquals(2, stats.getMax());
+            assertEquals(1, metric(transports, "mail.transport.mailgun.pool.available"));
+            assertEquals(0, metric(transports, "mail.transport.sendgrid.pool.available"));
+        } finally {
+            transports.destroy();
+        }
+    }
+
+    /**
+     * Test that a request waits no longer than the acquire timeout for a connection when the pool is all leased
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void send_PoolAcquireTimeout() throws Exception {
+        delay = 1000;
+        final ProviderTransport transport = new ProviderTransport(config(new MailGunHttpConfiguration(), "mailgun", "application/x-www-form-urlencoded", 3000, 1,
+                100));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ProviderResponse> first = executor.submit(new Callable<ProviderResponse>() {
+                @Override
+                public ProviderResponse call() throws Exception {
+                    return transport.send(request());
+                }
+            });
+            while (transport.getPoolStats().getLeased() == 0) {
+                Thread.sleep(10);
+            }
+
+            try {
+                transport.send(request());
+                fail("The only connection is leased");
+            } catch (ConnectionPoolTimeoutException e) {
+                // Expected
+            }
+            assertEquals(200, first.get().getStatusCode());
+        } finally {
+            executor.shutdownNow();
+            transport.close();
+        }
+    }
+
+    private <T extends MailHttpConfiguration> T config(T config, String provider, String contentType, int readTimeout, int maxConnections, int acquireTimeout) {
+        ReflectionTestUtils.setField(config, "provider", provider);
+        ReflectionTestUtils.setField(config, "url", url);
+        ReflectionTestUtils.setField(config, "requestMethod", "POST");
+        ReflectionTestUtils.setField(config, "key", KEY);
+        ReflectionTestUtils.setField(config, "contentType", contentType);
+        ReflectionTestUtils.setField(config, "acceptType", "application/json");
+        ReflectionTestUtils.setField(config, "connectTimeout", 1000);
+        ReflectionTestUtils.setField(config, "readTimeout", readTimeout);
+        ReflectionTestUtils.setField(config, "poolAcquireTimeout", acquireTimeout);
+        ReflectionTestUtils.setField(config, "poolMaxConnections", maxConnections);
+
+        return config;
+    }
+
+    private MailRequest request() {
+        return new MailGunRequest.Builder("from@example.org", new String[]{"john@example.org"}, "Subject", "Text").build();
+    }
+
+    private long metric(ProviderTransports transports, String name) {
+        for (Metric<?> metric : transports.metrics()) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue().longValue();
+            }
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.totoro.providers;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ResponseReaderTest {
+
+    /**
+     * Test that the fields are picked out of the json and the rest is skipped
+     */
+    @Test
+    public void read_PicksFields() throws Exception {
+        String body = "{\"errors\":[{\"field\":{\"nested\":[1,2]},\"message\":\"Bad 'to' é\"},{\"message\":\"second\"}],\"other\":[{}],"
+                + "\"id\":\"<123@mailgun.org>\",\"message\":\"Queued. Thank you.\"}";
+
+        ProviderResponse response = ResponseReader.read(response(200, body, ContentType.APPLICATION_JSON), 1024);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(body, response.getBody());
+        assertEquals("<123@mailgun.org>", response.getId());
+        assertEquals("Queued. Thank you.", response.getMessage());
+        assertEquals("Bad 'to' é", response.getErrorMessage());
+    }
+
+    /**
+     * Test that a body in another charset is decoded with the charset of its content type
+     */
+    @Test
+    public void read_UsesCharsetOfContentType() throws Exception {
+        Charset latin1 = StandardCharsets.ISO_8859_1;
+        String body = "{\"message\":\"Café\"}";
+
+        ProviderResponse response = ResponseReader.read(response(400, body, ContentType.create("application/json", latin1)), 1024);
+
+        assertEquals(body, response.getBody());
+        assertEquals("Café", response.getMessage());
+    }
+
+    /**
+     * Test that an oversized body is cut off at the cap without failing the response
+     */
+    @Test
+    public void read_CapsBody() throws Exception {
+        StringBuilder body = new StringBuilder("{\"id\":\"abc\",\"message\":\"");
+        for (int i = 0; i < 10000; i++) {
+            body.append("xxxxxxxxxx");
+        }
+        body.append("\"}");
+
+        ProviderResponse response = ResponseReader.read(response(200, body.toString(), ContentType.APPLICATION_JSON), 100);
+
+        assertEquals(100, response.getBody().length());
+        assertEquals("abc", response.getId());
+        assertNull(response.getMessage());
+    }
+
+    private HttpResponse response(int status, String body, ContentType contentType) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        response.setEntity(new ByteArrayEntity(body.getBytes(contentType.getCharset()), contentType));
+
+        return response;
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.totoro.quota;
+
+import com.totoro.dto.MailMessageDto;
+import com.totoro.exceptions.BadRequestException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AdmissionControlTest {
+
+    private final AdmissionControl admissionControl = new AdmissionControl(5, 60000, 2, 60000);
+
+    /**
+     * Test that a batch with more emails from one sender than the sender quota is a bad request rather than told to try again, and doesn't use up any quota
+     */
+    @Test
+    public void admit_BatchOverSenderLimitIsBadRequest() {
+        try {
+            admissionControl.admit("client", batch("noreply@example.org", "noreply@example.org", "noreply@example.org"));
+            fail("The batch can never fit into the sender quota");
+        } catch (BadRequestException e) {
+            assertEquals("A batch cannot have more than 2 emails from noreply@example.org, that's the quota of a sender per 60 seconds", e.getMessage());
+        }
+
+        admissionControl.admit("client", batch("noreply@example.org", "noreply@example.org", "other@example.org"));
+    }
+
+    /**
+     * Test that a batch with more emails than the client quota is a bad request rather than told to try again, and doesn't use up any quota
+     */
+    @Test
+    public void admit_BatchOverClientLimitIsBadRequest() {
+        try {
+            admissionControl.admit("client", batch("a@example.org", "b@example.org", "c@example.org", "d@example.org", "e@example.org", "f@example.org"));
+            fail("The batch can never fit into the client quota");
+        } catch (BadRequestException e) {
+            assertEquals("A batch cannot have more than 5 emails, that's your quota of emails per 60 seconds", e.getMessage());
+        }
+
+        admissionControl.admit("client", batch("a@example.org", "b@example.org", "c@example.org", "d@example.org", "e@example.org"));
+    }
+
+    private List<MailMessageDto> batch(String... senders) {
+        List<MailMessageDto> messages = new ArrayList<>();
+        for (String sender : senders) {
+            MailMessageDto dto = new MailMessageDto();
+            dto.setFrom(sender);
+            messages.add(dto);
+        }
+
+        return messages;
+    }
+
+}
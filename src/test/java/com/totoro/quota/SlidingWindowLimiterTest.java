@@ -0,0 +1,55 @@
+package com.totoro.quota;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlidingWindowLimiterTest {
+
+    /**
+     * Test that the requests over the limit are rejected until the previous window has faded away
+     */
+    @Test
+    public void tryAcquire_PreviousWindowFadesAway() {
+        SlidingWindowLimiter limiter = new SlidingWindowLimiter(10, 1000);
+        assertEquals(0, limiter.tryAcquire("client", 10, 1000));
+        assertTrue(limiter.tryAcquire("client", 1, 1500) > 0);
+
+        // Half way through the next window half of the previous one still counts
+        long retryAfter = limiter.tryAcquire("client", 6, 2500);
+        assertEquals(100, retryAfter);
+        assertEquals(0, limiter.tryAcquire("client", 6, 2500 + retryAfter));
+
+        // Another key has its own counter
+        assertEquals(0, limiter.tryAcquire("another client", 10, 1500));
+    }
+
+    /**
+     * Test that released requests don't count anymore
+     */
+    @Test
+    public void release_GivesBackRequests() {
+        SlidingWindowLimiter limiter = new SlidingWindowLimiter(10, 1000);
+        assertEquals(0, limiter.tryAcquire("client", 10, 1000));
+        limiter.release("client", 4, 1100);
+
+        assertEquals(0, limiter.tryAcquire("client", 4, 1200));
+        assertTrue(limiter.tryAcquire("client", 1, 1200) > 0);
+    }
+
+    /**
+     * Test that the counters of idle keys are removed
+     */
+    @Test
+    public void evictIdle_RemovesOldCounters() {
+        SlidingWindowLimiter limiter = new SlidingWindowLimiter(10, 1000);
+        limiter.tryAcquire("client", 1, 1000);
+        limiter.evictIdle(2500);
+        assertEquals(1, limiter.size());
+
+        limiter.evictIdle(3000);
+        assertEquals(0, limiter.size());
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.totoro.services;
+
+import com.totoro.EmailApplication;
+import com.totoro.domain.EmailHistory;
+import com.totoro.repository.EmailBodyRepository;
+import com.totoro.repository.EmailHistoryRepository;
+import com.totoro.repository.EmailRecipientRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+@ActiveProfiles("test")
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {EmailApplication.class})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class EmailHistoryWriterTest {
+
+    @Autowired
+    private EmailHistoryWriter writer;
+    @Autowired
+    private EmailHistoryRepository emailHistoryRepository;
+    @Autowired
+    private EmailBodyRepository emailBodyRepository;
+    @Autowired
+    private EmailRecipientRepository emailRecipientRepository;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Before
+    public void setup() throws Exception {
+        this.emailHistoryRepository.deleteAllInBatch();
+    }
+
+    /**
+     * Test that the buffered emails end up in the history table the same way the repository would have saved them
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void write_FlushedIntoHistoryTable() throws Exception {
+        List<EmailHistory> histories = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            EmailHistory history = newEmail("message-" + i);
+            histories.add(history);
+            writer.write(history);
+        }
+
+        // Stopping the writer flushes whatever is left in the buffer
+        writer.stop();
+        assertEquals(3, emailHistoryRepository.count());
+
+        EmailHistory history = emailHistoryRepository.findOne(histories.get(1).getId());
+        assertNotNull(history);
+        assertEquals("message-1", history.getResponseId());
+        assertNotNull(history.getCreatedAt());
+        assertArrayEquals(new String[]{"john@example.org", "tom@example.org"}, history.getToRecipients());
+    }
+
+    /**
+     * Test that an email written after the writer has stopped is still inserted
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void write_AfterStop_InsertedDirectly() throws Exception {
+        writer.stop();
+        writer.write(newEmail("late"));
+
+        assertEquals(1, emailHistoryRepository.count());
+    }
+
+    /**
+     * Test that a text is stored once however many emails have it, in a batch as well as in the next one
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void writeNow_StoresEachTextOnce() throws Exception {
+        List<EmailHistory> batch = new ArrayList<>();
+        batch.add(newEmail("first"));
+        batch.add(newEmail("second"));
+        EmailHistory other = newEmail("other");
+        other.setText("This is another body");
+        batch.add(other);
+        writer.writeNow(batch);
+
+        List<EmailHistory> next = new ArrayList<>();
+        next.add(newEmail("third"));
+        writer.writeNow(next);
+
+        assertEquals(4, emailHistoryRepository.count());
+        assertEquals(2, emailBodyRepository.count());
+        assertEquals("This is a test body", emailHistoryRepository.findOne(next.get(0).getId()).getText());
+        assertEquals("This is another body", emailHistoryRepository.findOne(other.getId()).getText());
+    }
+
+    /**
+     * Test that the emails sent to an address are found through the recipient index whatever the case of the domain
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void writeNow_IndexesRecipients() throws Exception {
+        List<EmailHistory> batch = new ArrayList<>();
+        batch.add(newEmail("first"));
+        EmailHistory withCc = newEmail("second");
+        withCc.setCcRecipients(new String[]{"Jane@EXAMPLE.org"});
+        batch.add(withCc);
+        writer.writeNow(batch);
+
+        assertEquals(5, emailRecipientRepository.count());
+        List<EmailHistory> toJohn = emailHistoryRepository.findByRecipient("john@example.org", new PageRequest(0, 10));
+        assertEquals(2, toJohn.size());
+        assertEquals("second", toJohn.get(0).getResponseId());
+
+        List<EmailHistory> toJane = emailHistoryRepository.findByRecipient(RecipientValidator.canonicalize("Jane@Example.ORG"), new PageRequest(0, 10));
+        assertEquals(1, toJane.size());
+        assertEquals("second", toJane.get(0).getResponseId());
+    }
+
+    /**
+     * Test that the emails of a batch whose recipients cannot be inserted are inserted one by one under ids of their own, and that their recipients point
+     * at those ids rather than at the ones of the rolled back batch
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void insert_RecipientBatchFails_InsertedOneByOne() throws Exception {
+        jdbcTemplate.execute("alter table email_recipient add constraint ck_test_recipient check (address <> 'bad@example.org')");
+        try {
+            List<EmailHistory> batch = new ArrayList<>();
+            EmailHistory good = newEmail("good");
+            batch.add(good);
+            EmailHistory bad = newEmail("bad");
+            bad.setCcRecipients(new String[]{"bad@example.org"});
+            batch.add(bad);
+            writer.insert(batch);
+        } finally {
+            jdbcTemplate.execute("alter table email_recipient drop constraint ck_test_recipient");
+        }
+
+        assertEquals(1, emailHistoryRepository.count());
+        assertEquals(2, emailRecipientRepository.count());
+        List<EmailHistory> toJohn = emailHistoryRepository.findByRecipient("john@example.org", new PageRequest(0, 10));
+        assertEquals(1, toJohn.size());
+        assertEquals("good", toJohn.get(0).getResponseId());
+    }
+
+    private EmailHistory newEmail(String responseId) {
+        return new EmailHistory("noreply@example.org", null, new String[]{"john@example.org", "tom@example.org"}, null, null,
+                "Hello", "This is a test body", "text/plain", "SendGrid", responseId, "Queued");
+    }
+
+}
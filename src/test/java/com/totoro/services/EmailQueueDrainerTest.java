@@ -0,0 +1,253 @@
+package com.totoro.services;
+
+import com.totoro.EmailApplication;
+import com.totoro.config.InstrumentedTaskExecutor;
+import com.totoro.domain.EmailQueue;
+import com.totoro.domain.QueueStatus;
+import com.totoro.dto.MailMessageDto;
+import com.totoro.repository.EmailQueueRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ActiveProfiles("test")
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {EmailApplication.class})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class EmailQueueDrainerTest {
+
+    private static final long LEASE_TIME = 300000;
+    private static final long RETRY_DELAY = 60000;
+    private static final int MAX_ATTEMPTS = 3;
+
+    @Autowired
+    private EmailQueueDrainer drainer;
+    @Autowired
+    private EmailQueueRepository emailQueueRepository;
+    @Autowired
+    private AsyncEmailService asyncEmailService;
+    @Autowired
+    private InstrumentedTaskExecutor mailDispatchExecutor;
+
+    @Before
+    public void setup() throws Exception {
+        this.emailQueueRepository.deleteAllInBatch();
+    }
+
+    /**
+     * Test that the rows leased by one instance cannot be leased by another one until the lease has been released
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void claim_RowsCannotBeClaimedTwice() throws Exception {
+        EmailQueue first = emailQueueRepository.save(newEmail("first"));
+        EmailQueue second = emailQueueRepository.save(newEmail("second"));
+
+        List<EmailQueue> claimed = drainer.claim();
+        assertEquals(2, claimed.size());
+        for (EmailQueue email : claimed) {
+            assertEquals(drainer.getOwner(), email.getClaimedBy());
+        }
+
+        // Nothing is left for this or any other instance
+        assertTrue(drainer.claim().isEmpty());
+        long now = System.currentTimeMillis();
+        assertEquals(0, emailQueueRepository.claim(Arrays.asList(first.getId(), second.getId()), "another-instance", now + 1000, now));
+
+        // Once released and due, the row can be claimed again
+        assertEquals(1, emailQueueRepository.release(first.getId(), drainer.getOwner(), now - 1, "Provider is down"));
+        claimed = drainer.claim();
+        assertEquals(1, claimed.size());
+        assertEquals(first.getId(), claimed.get(0).getId());
+        assertEquals(1, claimed.get(0).getAttempts());
+        assertEquals("Provider is down", claimed.get(0).getReason());
+    }
+
+    /**
+     * Test that an email that may have reached the provider is put aside and never re-attempted, neither by this instance nor by another one
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void resend_UncertainNeverReattempted() throws Exception {
+        EmailQueue email = emailQueueRepository.save(newEmail("uncertain"));
+        MailDispatcher mailDispatcher = mock(MailDispatcher.class);
+        when(mailDispatcher.dispatchAll(anyListOf(MailMessageDto.class)))
+                .thenReturn(Collections.singletonList(DispatchResult.uncertain("Lost the connection to the mail provider after sending the email")));
+        EmailQueueDrainer drainer = drainer(mailDispatcher);
+
+        assertEquals(0, drainer.resend(drainer.claim()));
+
+        email = emailQueueRepository.findOne(email.getId());
+        assertEquals(QueueStatus.UNCERTAIN, email.getStatus());
+        assertNull(email.getClaimedBy());
+        assertNull(email.getLeaseUntil());
+        assertTrue(drainer.claim().isEmpty());
+        long now = System.currentTimeMillis();
+        assertEquals(0, emailQueueRepository.claim(Collections.singletonList(email.getId()), "another-instance", now + 1000, now));
+        verify(mailDispatcher, times(1)).dispatchAll(anyListOf(MailMessageDto.class));
+    }
+
+    /**
+     * Test that a sent email is removed from the queue
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void resend_SentEmailDeleted() throws Exception {
+        EmailQueue email = emailQueueRepository.save(newEmail("sent"));
+        EmailQueueDrainer drainer = drainer(dispatcher(DispatchResult.sent("sendgrid", "response-1", "Accepted")));
+
+        assertEquals(1, drainer.resend(drainer.claim()));
+
+        assertNull(emailQueueRepository.findOne(email.getId()));
+    }
+
+    /**
+     * Test that an email that couldn't be sent is released with a back-off and isn't due again until then
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void resend_ReleasedWithBackOff() throws Exception {
+        EmailQueue email = emailQueueRepository.save(newEmail("failed"));
+        EmailQueueDrainer drainer = drainer(dispatcher(DispatchResult.failed("Both providers couldn't be reached")));
+
+        long before = System.currentTimeMillis();
+        assertEquals(0, drainer.resend(drainer.claim()));
+        long after = System.currentTimeMillis();
+
+        email = emailQueueRepository.findOne(email.getId());
+        assertEquals(QueueStatus.PENDING, email.getStatus());
+        assertNull(email.getClaimedBy());
+        assertEquals(1, email.getAttempts());
+        assertEquals("Both providers couldn't be reached", email.getReason());
+        assertTrue(email.getLeaseUntil() >= before + RETRY_DELAY);
+        assertTrue(email.getLeaseUntil() <= after + RETRY_DELAY);
+        assertTrue(drainer.claim().isEmpty());
+        // The delay doubles with every attempt
+        assertEquals(2 * RETRY_DELAY, drainer.backOff(1));
+    }
+
+    /**
+     * Test that a row whose lease has been taken over by another instance is skipped rather than sent a second time
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void resend_ExpiredLeaseSkipped() throws Exception {
+        MailDispatcher mailDispatcher = dispatcher(DispatchResult.sent("sendgrid", "response-1", "Accepted"));
+        EmailQueueDrainer drainer = drainer(mailDispatcher);
+        EmailQueue email = emailQueueRepository.save(newEmail("expired"));
+        List<EmailQueue> claimed = drainer.claim();
+
+        // The lease runs out and another instance claims the row
+        long now = System.currentTimeMillis();
+        assertEquals(1, emailQueueRepository.release(email.getId(), drainer.getOwner(), now - 1, "Took too long"));
+        assertEquals(1, emailQueueRepository.claim(Collections.singletonList(email.getId()), "another-instance", now + LEASE_TIME, now));
+
+        assertEquals(0, drainer.resend(claimed));
+
+        verify(mailDispatcher, never()).dispatchAll(anyListOf(MailMessageDto.class));
+        email = emailQueueRepository.findOne(email.getId());
+        assertEquals("another-instance", email.getClaimedBy());
+        assertEquals(QueueStatus.PENDING, email.getStatus());
+    }
+
+    /**
+     * Test that an email that still couldn't be sent on its last attempt is marked as failed and isn't re-attempted
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void resend_FailedAfterMaxAttempts() throws Exception {
+        EmailQueue email = newEmail("exhausted");
+        email.setAttempts(MAX_ATTEMPTS - 1);
+        email = emailQueueRepository.save(email);
+        EmailQueueDrainer drainer = drainer(dispatcher(DispatchResult.failed("Both providers couldn't be reached")));
+
+        assertEquals(0, drainer.resend(drainer.claim()));
+
+        email = emailQueueRepository.findOne(email.getId());
+        assertEquals(QueueStatus.FAILED, email.getStatus());
+        assertEquals(MAX_ATTEMPTS, email.getAttempts());
+        assertNull(email.getClaimedBy());
+        assertNull(email.getLeaseUntil());
+        assertTrue(emailQueueRepository.findClaimableIds(Long.MAX_VALUE, new PageRequest(0, 100)).isEmpty());
+    }
+
+    /**
+     * Test that an email the provider has rejected is marked as failed on its first attempt
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void resend_RejectedNotReattempted() throws Exception {
+        EmailQueue email = emailQueueRepository.save(newEmail("rejected"));
+        EmailQueueDrainer drainer = drainer(dispatcher(DispatchResult.rejected("Template 42 doesn't exist")));
+
+        assertEquals(0, drainer.resend(drainer.claim()));
+
+        email = emailQueueRepository.findOne(email.getId());
+        assertEquals(QueueStatus.FAILED, email.getStatus());
+        assertEquals(1, email.getAttempts());
+        assertEquals("Template 42 doesn't exist", email.getReason());
+        assertTrue(emailQueueRepository.findClaimableIds(Long.MAX_VALUE, new PageRequest(0, 100)).isEmpty());
+    }
+
+    /**
+     * Test that the recipients are read back the way they have been written
+     */
+    @Test
+    public void recipients_SplitByDelimiter() {
+        EmailQueue email = emailQueueRepository.save(newEmail("recipients"));
+        email = emailQueueRepository.findOne(email.getId());
+
+        assertEquals(2, email.getToRecipients().length);
+        assertEquals("tom@example.org", email.getToRecipients()[1]);
+    }
+
+    /**
+     * @return A drainer of its own that sends the emails with the given dispatcher
+     */
+    private EmailQueueDrainer drainer(MailDispatcher mailDispatcher) {
+        return new EmailQueueDrainer(emailQueueRepository, mailDispatcher, asyncEmailService, mailDispatchExecutor, 100, LEASE_TIME, RETRY_DELAY, MAX_ATTEMPTS);
+    }
+
+    /**
+     * @return A dispatcher that answers every email with the given result
+     */
+    private MailDispatcher dispatcher(DispatchResult result) throws Exception {
+        MailDispatcher mailDispatcher = mock(MailDispatcher.class);
+        when(mailDispatcher.dispatchAll(anyListOf(MailMessageDto.class))).thenReturn(Collections.singletonList(result));
+
+        return mailDispatcher;
+    }
+
+    private EmailQueue newEmail(String subject) {
+        return new EmailQueue("noreply@example.org", null, new String[]{"john@example.org", "tom@example.org"}, null, null,
+                subject, "This is a test body", "text/plain", "Both providers couldn't be reached!!!");
+    }
+
+}
@@ -0,0 +1,224 @@
+package com.totoro.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.totoro.config.MailGunHttpConfiguration;
+import com.totoro.config.MailHttpConfiguration;
+import com.totoro.config.SendGridHttpConfiguration;
+import com.totoro.dto.MailMessageDto;
+import com.totoro.providers.CircuitBreaker;
+import com.totoro.providers.CircuitBreakers;
+import com.totoro.providers.ProviderHealthMonitor;
+import com.totoro.providers.ProviderHedging;
+import com.totoro.providers.ProviderRouter;
+import com.totoro.providers.ProviderThrottles;
+import com.totoro.providers.ProviderTransports;
+import com.totoro.providers.ThrottlePolicy;
+import com.totoro.templates.TemplateCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MailDispatcherTest {
+
+    private static final int READ_TIMEOUT = 300;
+
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final AtomicInteger sendGridCalls = new AtomicInteger();
+    private final AtomicInteger mailGunCalls = new AtomicInteger();
+    private SendGridHttpConfiguration sendGrid;
+    private MailGunHttpConfiguration mailGun;
+    private ProviderHealthMonitor healthMonitor;
+    private ProviderTransports transports;
+    private ProviderHedging hedging;
+    private CircuitBreakers circuitBreakers;
+    private MailDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws IOException {
+        sendGrid = config(SendGridHttpConfiguration.class, "sendgrid", "application/json", "Bearer key");
+        mailGun = config(MailGunHttpConfiguration.class, "mailgun", "application/x-www-form-urlencoded", "Basic a2V5");
+        when(mailGun.getUrl()).thenReturn(start(mailGunCalls, 0, 200, "{\"id\":\"<1@example.org>\",\"message\":\"Queued. Thank you.\"}"));
+
+        healthMonitor = mock(ProviderHealthMonitor.class);
+        when(healthMonitor.isAvailable(sendGrid)).thenReturn(true);
+        when(healthMonitor.isAvailable(mailGun)).thenReturn(true);
+
+        // SendGrid always goes first
+        ProviderRouter router = mock(ProviderRouter.class);
+        when(router.route(anyListOf(MailHttpConfiguration.class))).thenAnswer(new Answer<List<MailHttpConfiguration>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public List<MailHttpConfiguration> answer(InvocationOnMock invocation) {
+                return (List<MailHttpConfiguration>) invocation.getArguments()[0];
+            }
+        });
+
+        transports = new ProviderTransports(sendGrid, mailGun);
+        hedging = new ProviderHedging(sendGrid, mailGun, false, 95, 100, 20, 10, 5000);
+        // A single failure opens a circuit and an open circuit is half open straight away
+        circuitBreakers = new CircuitBreakers(sendGrid, mailGun, 10000, 1, 50, 60000, 100, 0, 1);
+        dispatcher = new MailDispatcher(sendGrid, mailGun, healthMonitor, transports, new ProviderThrottles(sendGrid, mailGun), circuitBreakers, router,
+                hedging, mock(TemplateCache.class), ThrottlePolicy.DIVERT, 0, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        transports.destroy();
+        hedging.destroy();
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Test that an email whose body has reached the provider isn't sent to the other provider when the response doesn't come in time, it may have been
+     * delivered already
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void dispatch_ReadTimeoutAfterWriteNotFailedOver() throws Exception {
+        when(sendGrid.getUrl()).thenReturn(start(sendGridCalls, READ_TIMEOUT * 5, 202, ""));
+
+        DispatchResult result = dispatcher.dispatch(message());
+
+        assertFalse(result.isSent());
+        assertTrue(result.isUncertain());
+        assertEquals(1, sendGridCalls.get());
+        assertEquals(0, mailGunCalls.get());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreakers.get(sendGrid).getState());
+    }
+
+    /**
+     * Test that an email goes to the other provider when the first one cannot even be connected to
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void dispatch_ConnectFailureFailedOver() throws Exception {
+        when(sendGrid.getUrl()).thenReturn(closedPort());
+
+        DispatchResult result = dispatcher.dispatch(message());
+
+        assertTrue(result.isSent());
+        assertEquals("mailgun", result.getProvider());
+        assertEquals(1, mailGunCalls.get());
+    }
+
+    /**
+     * Test that a call that fails with an unexpected exception gives its permit back, otherwise a half open circuit would run out of them for good
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void dispatch_UnexpectedExceptionReleasesPermit() throws Exception {
+        when(healthMonitor.isAvailable(mailGun)).thenReturn(false);
+        when(sendGrid.getUrl()).thenReturn(closedPort());
+        dispatcher.dispatch(message());
+        CircuitBreaker breaker = circuitBreakers.get(sendGrid);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // The request cannot even be built without a method
+        when(sendGrid.getRequestMethod()).thenReturn(null);
+        try {
+            dispatcher.dispatch(message());
+            fail("The request has no method");
+        } catch (IllegalArgumentException e) {
+            assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        }
+
+        assertTrue(breaker.tryAcquire());
+    }
+
+    private <T extends MailHttpConfiguration> T config(Class<T> type, String provider, String contentType, String authorization) {
+        T config = mock(type);
+        when(config.getProvider()).thenReturn(provider);
+        when(config.getRequestMethod()).thenReturn("POST");
+        when(config.getContentType()).thenReturn(contentType);
+        when(config.getAcceptType()).thenReturn("application/json");
+        when(config.getAuthorization()).thenReturn(authorization);
+        when(config.getConnectTimeout()).thenReturn(1000);
+        when(config.getReadTimeout()).thenReturn(READ_TIMEOUT);
+        when(config.getPoolAcquireTimeout()).thenReturn(1000);
+        when(config.getPoolMaxConnections()).thenReturn(2);
+        when(config.getRoutingWeight()).thenReturn(50);
+
+        return config;
+    }
+
+    /**
+     * Starts a provider that reads the whole request and answers after a delay
+     */
+    private String start(final AtomicInteger calls, final long delay, final int status, final String body) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try (InputStream in = exchange.getRequestBody()) {
+                    while (in.read() >= 0) {
+                        // The whole body has to arrive
+                    }
+                }
+                calls.incrementAndGet();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        });
+        server.start();
+        servers.add(server);
+
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    private String closedPort() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        return "http://127.0.0.1:" + port + "/";
+    }
+
+    private MailMessageDto message() {
+        MailMessageDto dto = new MailMessageDto();
+        dto.setFrom("from@example.org");
+        dto.setTo(new String[]{"john@example.org"});
+        dto.setSubject("Subject");
+        dto.setText("Text");
+
+        return dto;
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.totoro.services;
+
+import com.totoro.dto.MailMessageDto;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageGroupsTest {
+
+    /**
+     * Test that emails with the same content are grouped in order and that a group is split once it has too many recipients
+     */
+    @Test
+    public void group_SameContentTogether() {
+        List<MailMessageDto> messages = Arrays.asList(
+                message("Welcome", "a@example.org", "b@example.org"),
+                message("Reset", "c@example.org"),
+                message("Welcome", "d@example.org"),
+                message("Welcome", "e@example.org", "f@example.org"),
+                message("Reset", "g@example.org"));
+
+        List<List<Integer>> groups = MessageGroups.group(messages, 3);
+
+        assertEquals(Arrays.asList(Arrays.asList(0, 2), Arrays.asList(3), Arrays.asList(1, 4)), groups);
+    }
+
+    /**
+     * Test that nothing is grouped when grouping is turned off
+     */
+    @Test
+    public void group_Off() {
+        List<MailMessageDto> messages = Arrays.asList(message("Welcome", "a@example.org"), message("Welcome", "b@example.org"));
+
+        assertEquals(Arrays.asList(Arrays.asList(0), Arrays.asList(1)), MessageGroups.group(messages, 0));
+    }
+
+    private MailMessageDto message(String subject, String... to) {
+        MailMessageDto dto = new MailMessageDto();
+        dto.setFrom("from@example.org");
+        dto.setTo(to);
+        dto.setSubject(subject);
+        dto.setText("Hello " + subject.length());
+
+        return dto;
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.totoro.services;
+
+import com.totoro.dto.MailMessageDto;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecipientValidatorTest {
+
+    /**
+     * Test that every error is reported in one go and that duplicates are found regardless of the case of their domain
+     */
+    @Test
+    public void validate_ReportsAllErrors() {
+        MailMessageDto dto = new MailMessageDto();
+        dto.setFrom("from@example");
+        dto.setTo(new String[]{"john@example.org", "bad"});
+        dto.setCc(new String[]{"John@example.org"});
+        dto.setBcc(new String[]{"john@EXAMPLE.org", "jane@example.org"});
+
+        List<String> errors = new ArrayList<>();
+        new RecipientValidator(100).validate(dto, errors);
+
+        assertEquals(3, errors.size());
+        assertEquals("'from' email is invalid - from@example", errors.get(0));
+        assertEquals("'to' email is invalid - bad", errors.get(1));
+        // The local part is case sensitive so only the bcc one is a duplicate
+        assertEquals("Email address in to, cc and bcc should be unique - john@EXAMPLE.org", errors.get(2));
+    }
+
+    /**
+     * Test that the verdicts stay right once the cache has rolled over
+     */
+    @Test
+    public void isValid_CacheStaysBounded() {
+        RecipientValidator validator = new RecipientValidator(10);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(validator.isValid("user" + i + "@example.org"));
+            assertFalse(validator.isValid("user" + i + "@example"));
+        }
+
+        assertTrue(validator.isValid("user99@Example.org"));
+        assertFalse(validator.isValid("user99@example"));
+        assertEquals("User@example.org", RecipientValidator.canonicalize("User@EXAMPLE.org"));
+    }
+
+}
@@ -0,0 +1,211 @@
+package com.totoro.spool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.totoro.dto.MailMessageDto;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EmailSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private EmailSpool spool;
+
+    @Before
+    public void setup() throws Exception {
+        directory = folder.newFolder("spool");
+        spool = open(1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        spool.close();
+    }
+
+    /**
+     * Test that the records are read back in the order they have been appended, across segments
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void append_ReadBackInOrder() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            spool.append(newEmail("Subject " + i));
+        }
+        assertTrue(directory.list().length > 1);
+
+        List<SpoolRecord> records = spool.read(100);
+        assertEquals(20, records.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("Subject " + i, records.get(i).getMessage().getSubject());
+            assertEquals("john@example.org", records.get(i).getMessage().getTo()[0]);
+        }
+        assertTrue(spool.read(100).isEmpty());
+    }
+
+    /**
+     * Test that after a restart only the records after the checkpoint are read again and the delivered segments are gone
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void checkpoint_ReadFromCheckpointAfterRestart() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            spool.append(newEmail("Subject " + i));
+        }
+        List<SpoolRecord> records = spool.read(15);
+        SpoolPosition checkpoint = records.get(14).getEnd();
+        spool.checkpoint(checkpoint);
+        spool.close();
+
+        spool = open(1024);
+        records = spool.read(100);
+        assertEquals(5, records.size());
+        assertEquals("Subject 15", records.get(0).getMessage().getSubject());
+        // Only the segments before the checkpoint's segment are deleted
+        assertEquals(records.get(4).getEnd().getSegment() - checkpoint.getSegment() + 1, countSegments());
+    }
+
+    /**
+     * Test that a record that has only been partially written is dropped when the spool is opened and the spool can be appended to afterwards
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void open_TruncatesIncompleteRecord() throws Exception {
+        SpoolRecord first = spool.append(newEmail("First"));
+        spool.close();
+
+        File segment = new File(directory, "spool-0000000000000000.log");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(file.length());
+            file.writeInt(500);
+            file.write(new byte[10]);
+        }
+
+        spool = open(1024);
+        assertEquals(first.getEnd().getOffset(), segment.length());
+        spool.append(newEmail("Second"));
+
+        List<SpoolRecord> records = spool.read(100);
+        assertEquals(2, records.size());
+        assertEquals("Second", records.get(1).getMessage().getSubject());
+    }
+
+    /**
+     * Test that a record that cannot be decoded is quarantined and counted, and that the records around it are still read
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void read_UndecodableRecordQuarantined() throws Exception {
+        spool.append(newEmail("First"));
+        spool.close();
+
+        File segment = new File(directory, "spool-0000000000000000.log");
+        byte[] payload = "{\"unknown\":true}".getBytes(StandardCharsets.UTF_8);
+        long offset = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            file.seek(offset);
+            file.writeInt(payload.length);
+            file.writeInt((int) crc.getValue());
+            file.write(payload);
+        }
+
+        spool = open(1024);
+        spool.append(newEmail("Second"));
+
+        List<SpoolRecord> records = spool.read(100);
+        assertEquals(2, records.size());
+        assertEquals("First", records.get(0).getMessage().getSubject());
+        assertEquals("Second", records.get(1).getMessage().getSubject());
+        assertEquals(1, metric("spool.skipped.records"));
+        File copy = new File(directory, String.format("quarantine/spool-0000000000000000-%016d.json", offset));
+        assertArrayEquals(payload, Files.readAllBytes(copy.toPath()));
+    }
+
+    /**
+     * Test that the rest of a segment after a corrupt record is quarantined and counted, and that the next segment is still read
+     *
+     * @throws Exception If an exception occurs
+     */
+    @Test
+    public void read_CorruptSegmentQuarantined() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            spool.append(newEmail("Subject " + i));
+        }
+
+        // Damage the payload of the second record
+        File segment = new File(directory, "spool-0000000000000000.log");
+        long second;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            second = 8 + file.readInt();
+            file.seek(second + 8 + 10);
+            file.write('#');
+        }
+
+        List<SpoolRecord> records = spool.read(100);
+        assertEquals("Subject 0", records.get(0).getMessage().getSubject());
+        assertEquals(1, records.get(1).getEnd().getSegment());
+        assertEquals(1, metric("spool.skipped.segments"));
+        assertTrue(new File(directory, "quarantine/spool-0000000000000000.log").length() > second);
+    }
+
+    private EmailSpool open(long segmentSize) throws Exception {
+        EmailSpool spool = new EmailSpool(new ObjectMapper(), true, directory.getAbsolutePath(), segmentSize);
+        spool.open();
+
+        return spool;
+    }
+
+    private long metric(String name) {
+        for (Metric<?> metric : spool.metrics()) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue().longValue();
+            }
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+
+    private int countSegments() {
+        int segments = 0;
+        for (String name : directory.list()) {
+            if (name.endsWith(".log")) {
+                segments++;
+            }
+        }
+
+        return segments;
+    }
+
+    private MailMessageDto newEmail(String subject) {
+        MailMessageDto dto = new MailMessageDto();
+        dto.setFrom("noreply@example.org");
+        dto.setTo(new String[]{"john@example.org", "tom@example.org"});
+        dto.setSubject(subject);
+        dto.setText("This is a test body");
+
+        return dto;
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.totoro.templates;
+
+import com.totoro.domain.EmailTemplate;
+import com.totoro.repository.EmailTemplateRepository;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TemplateCacheTest {
+
+    /**
+     * Test that the placeholders are rendered from the compiled parts and that anything that isn't one of our placeholders is left as it is
+     */
+    @Test
+    public void render_Success() {
+        CompiledTemplate template = CompiledTemplate.compile(1, "Hi %recipient.name%",
+                "100% off for %recipient.name%, %recipient.bad name% and %recipient.unknown%%recipient.", "text/plain");
+
+        Map<String, String> variables = new HashMap<>();
+        variables.put("name", "John");
+
+        assertEquals(2, template.getVariables().size());
+        assertEquals("Hi John", template.renderSubject(variables));
+        assertEquals("100% off for John, %recipient.bad name% and %recipient.unknown%%recipient.", template.renderText(variables));
+        assertSame(template.getText(), template.renderText(Collections.<String, String>emptyMap()));
+    }
+
+    /**
+     * Test that the least recently used template is evicted once the cache is full
+     */
+    @Test
+    public void get_EvictsLeastRecentlyUsed() {
+        EmailTemplateRepository repository = mock(EmailTemplateRepository.class);
+        for (long id = 1; id <= 3; id++) {
+            when(repository.findOne(id)).thenReturn(template(id, "Subject " + id));
+        }
+
+        TemplateCache cache = new TemplateCache(repository, 2, 60000);
+        cache.get(1);
+        cache.get(2);
+        cache.get(1);
+        // 2 is the least recently used one
+        cache.get(3);
+        cache.get(1);
+        cache.get(2);
+
+        verify(repository, times(1)).findOne(1L);
+        verify(repository, times(2)).findOne(2L);
+        verify(repository, times(1)).findOne(3L);
+    }
+
+    /**
+     * Test that an updated template is read and compiled again
+     */
+    @Test
+    public void invalidate_ReadsTheNewVersion() {
+        EmailTemplateRepository repository = mock(EmailTemplateRepository.class);
+        when(repository.findOne(1L)).thenReturn(template(1, "Old"));
+
+        TemplateCache cache = new TemplateCache(repository, 10, 60000);
+        CompiledTemplate old = cache.get(1);
+        assertSame(old, cache.get(1));
+
+        when(repository.findOne(1L)).thenReturn(template(1, "New"));
+        cache.invalidate(1);
+
+        CompiledTemplate updated = cache.get(1);
+        assertNotSame(old, updated);
+        assertEquals("New", updated.getSubject());
+    }
+
+    /**
+     * Test that a template that has been updated by another instance, so it hasn't been invalidated here, is read again once it has expired
+     */
+    @Test
+    public void get_ReadsAgainOnceExpired() {
+        EmailTemplateRepository repository = mock(EmailTemplateRepository.class);
+        when(repository.findOne(1L)).thenReturn(template(1, "Old"));
+
+        TemplateCache cache = new TemplateCache(repository, 10, 1000);
+        CompiledTemplate old = cache.get(1, 5000);
+        when(repository.findOne(1L)).thenReturn(template(1, "New"));
+        assertSame(old, cache.get(1, 5999));
+
+        CompiledTemplate updated = cache.get(1, 6000);
+        assertEquals("New", updated.getSubject());
+        assertSame(updated, cache.get(1, 6999));
+        verify(repository, times(2)).findOne(1L);
+    }
+
+    private EmailTemplate template(long id, String subject) {
+        EmailTemplate template = new EmailTemplate("template " + id, subject, "Text", "text/plain");
+        template.setId(id);
+
+        return template;
+    }
+
+}